@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.alibaba.fastjson.JSON;
+import com.hippo.nimingban.Fixtures;
+import com.hippo.nimingban.client.ac.data.ACPost;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import okio.Okio;
+
+/**
+ * Compares {@link ACJsonDecoder} with the string path of fastjson on a large thread page
+ * and a forum page: the time to the first post of a page just loaded, the allocation
+ * per page, and the peak heap.
+ * <p>
+ * It is not in the benchmark module, JsonReader of android-all is built against libcore
+ * and calls methods the jvm doesn't have.
+ */
+public class ACJsonDecoderBenchmark extends TestCase {
+
+    private static final String TAG = ACJsonDecoderBenchmark.class.getSimpleName();
+
+    private static final int LARGE_THREAD = 1000;
+    private static final int SHOTS = 20;
+
+    /**
+     * Takes the heap used at the point of a path holding the most.
+     */
+    private static final class HeapProbe {
+
+        private final Runtime mRuntime = Runtime.getRuntime();
+        private long mBase;
+        private long mPeak;
+
+        private long used() {
+            mRuntime.gc();
+            mRuntime.runFinalization();
+            mRuntime.gc();
+            return mRuntime.totalMemory() - mRuntime.freeMemory();
+        }
+
+        public void start() {
+            mBase = used();
+            mPeak = 0;
+        }
+
+        public void sample() {
+            mPeak = Math.max(mPeak, used() - mBase);
+        }
+
+        public long getPeak() {
+            return mPeak;
+        }
+    }
+
+    private static abstract class Path {
+
+        final String name;
+
+        Path(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Decodes the page and returns the first post.
+         * Probe is sampled where the path holds the most, it could be null.
+         */
+        abstract ACPost decode(InputStream is, HeapProbe probe) throws IOException;
+    }
+
+    // Like ACEngine without stream decoding, the body, its utf-16 copy and the posts are all held
+
+    private static final Path THREAD_STRING = new Path("thread string") {
+        @Override
+        ACPost decode(InputStream is, HeapProbe probe) throws IOException {
+            String body = Okio.buffer(Okio.source(is)).readUtf8();
+            ACPost post = JSON.parseObject(body, ACPost.class);
+            if (probe != null) {
+                probe.sample();
+            }
+            // Body is still held here
+            assertTrue(body.length() > 0);
+            return post;
+        }
+    };
+
+    private static final Path THREAD_STREAM = new Path("thread stream") {
+        @Override
+        ACPost decode(InputStream is, HeapProbe probe) throws IOException {
+            ACPost post = ACJsonDecoder.decodePost(is);
+            if (probe != null) {
+                probe.sample();
+            }
+            return post;
+        }
+    };
+
+    private static final Path FORUM_STRING = new Path("forum string") {
+        @Override
+        ACPost decode(InputStream is, HeapProbe probe) throws IOException {
+            String body = Okio.buffer(Okio.source(is)).readUtf8();
+            List<ACPost> posts = JSON.parseArray(body, ACPost.class);
+            if (probe != null) {
+                probe.sample();
+            }
+            assertTrue(body.length() > 0);
+            return posts.get(0);
+        }
+    };
+
+    private static final Path FORUM_STREAM = new Path("forum stream") {
+        @Override
+        ACPost decode(InputStream is, HeapProbe probe) throws IOException {
+            List<ACPost> posts = ACJsonDecoder.decodePostList(is);
+            if (probe != null) {
+                probe.sample();
+            }
+            return posts.get(0);
+        }
+    };
+
+    /**
+     * Single shots without warm up, each one a page just loaded.
+     * The page is given as a whole, so the first post is there when the page is decoded.
+     *
+     * @return median of the shots in nanoseconds
+     */
+    private static long timeToFirstPost(byte[] bytes, Path path, String expectedId) throws IOException {
+        long[] shots = new long[SHOTS];
+        long alloc = 0;
+        for (int i = 0; i < SHOTS; i++) {
+            long baseAlloc = Debug.getThreadAllocSize();
+            long start = System.nanoTime();
+            ACPost post = path.decode(new ByteArrayInputStream(bytes), null);
+            shots[i] = System.nanoTime() - start;
+            alloc += Debug.getThreadAllocSize() - baseAlloc;
+            assertEquals(expectedId, post.id);
+        }
+        long first = shots[0];
+        Arrays.sort(shots);
+        long median = shots[SHOTS / 2];
+        Log.i(TAG, path.name + ": " + bytes.length + " bytes, first post in " +
+                (first / 1000) + " us cold, " + (median / 1000) + " us median, " +
+                (alloc / SHOTS) + " bytes allocated/page");
+        return median;
+    }
+
+    private static long peakHeap(byte[] bytes, Path path) throws IOException {
+        HeapProbe probe = new HeapProbe();
+        probe.start();
+        ACPost post = path.decode(new ByteArrayInputStream(bytes), probe);
+        assertNotNull(post);
+        long peak = probe.getPeak();
+        Log.i(TAG, path.name + ": " + bytes.length + " bytes, " + peak + " bytes peak heap");
+        return peak;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Debug.stopAllocCounting();
+        super.tearDown();
+    }
+
+    public void testLargeThreadPage() throws Exception {
+        byte[] bytes = Fixtures.readLargeThread(LARGE_THREAD).getBytes("utf-8");
+        String id = JSON.parseObject(new String(bytes, "utf-8"), ACPost.class).id;
+
+        timeToFirstPost(bytes, THREAD_STRING, id);
+        timeToFirstPost(bytes, THREAD_STREAM, id);
+
+        long string = peakHeap(bytes, THREAD_STRING);
+        long stream = peakHeap(bytes, THREAD_STREAM);
+        // The body and its utf-16 copy are not held by the stream path
+        assertTrue(stream < string);
+    }
+
+    public void testForumPage() throws Exception {
+        byte[] bytes = Fixtures.read(Fixtures.FORUM);
+        String id = JSON.parseArray(new String(bytes, "utf-8"), ACPost.class).get(0).id;
+
+        timeToFirstPost(bytes, FORUM_STRING, id);
+        timeToFirstPost(bytes, FORUM_STREAM, id);
+
+        peakHeap(bytes, FORUM_STRING);
+        peakHeap(bytes, FORUM_STREAM);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac;
+
+import com.alibaba.fastjson.JSON;
+import com.hippo.nimingban.client.ac.data.ACPost;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+/**
+ * Checks {@link ACJsonDecoder} against the string path of fastjson
+ * on pages shaped like the AC api output.
+ * The timing is in ACJsonDecoderBenchmark.
+ */
+public class ACJsonDecoderTest extends TestCase {
+
+    private static void appendItem(StringBuilder sb, int id) {
+        sb.append("{\"id\":\"").append(id)
+                .append("\",\"img\":\"2017-01-01/586a1a5e0f3c9\",\"ext\":\".jpg\"")
+                .append(",\"now\":\"2017-01-01(日)12:34:56\",\"userid\":\"AbCd1234\"")
+                .append(",\"name\":\"无名氏\",\"email\":\"\",\"title\":\"无标题\"")
+                .append(",\"content\":\"");
+        for (int i = 0; i < 8; i++) {
+            sb.append("<font color=\\\"#789922\\\">&gt;&gt;No.").append(id - i - 1)
+                    .append("</font><br />\\u8fd9\\u662f\\u4e00\\u6bb5\\u5f88\\u957f\\u7684\\u56de\\u590d http://www.example.com/");
+        }
+        sb.append("\",\"sage\":\"0\",\"admin\":\"0\"");
+    }
+
+    private static String buildPost(int id, int replyCount) {
+        StringBuilder sb = new StringBuilder();
+        appendItem(sb, id);
+        sb.append(",\"replyCount\":\"").append(replyCount).append("\",\"replys\":[");
+        for (int i = 0; i < replyCount; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            appendItem(sb, id + i + 1);
+            sb.append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String buildPostList(int postCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = 0; i < postCount; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(buildPost(10000000 + i * 100, 5));
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    public void testDecodeSame() throws Exception {
+        byte[] bytes = buildPost(10000000, 19).getBytes("utf-8");
+        ACPost expected = JSON.parseObject(new String(bytes, "utf-8"), ACPost.class);
+        ACPost actual = ACJsonDecoder.decodePost(new ByteArrayInputStream(bytes));
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.replys.size(), actual.replys.size());
+        for (int i = 0, n = expected.replys.size(); i < n; i++) {
+            assertEquals(expected.replys.get(i).toString(), actual.replys.get(i).toString());
+        }
+    }
+
+    public void testDecodeListSame() throws Exception {
+        byte[] bytes = buildPostList(20).getBytes("utf-8");
+        List<ACPost> expected = JSON.parseArray(new String(bytes, "utf-8"), ACPost.class);
+        List<ACPost> actual = ACJsonDecoder.decodePostList(new ByteArrayInputStream(bytes));
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0, n = expected.size(); i < n; i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+            assertEquals(expected.get(i).replys.size(), actual.get(i).replys.size());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac.data;
+
+import android.util.Log;
+
+import com.alibaba.fastjson.JSON;
+import com.hippo.nimingban.Fixtures;
+import com.hippo.nimingban.client.data.ACSite;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the time from a parsed thread page to the content of the first screen,
+ * all replies generated at once against only the visible ones generated,
+ * and the same replies bound again with the content cache warm.
+ */
+public class ACContentBenchmark extends TestCase {
+
+    private static final String TAG = ACContentBenchmark.class.getSimpleName();
+
+    private static final int ROUNDS = 50;
+    private static final int REPLY_COUNT = 20;
+    private static final int FIRST_SCREEN = 5;
+
+    private String mThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = Fixtures.readLargeThread(REPLY_COUNT);
+    }
+
+    private long firstScreen(int bound) {
+        // A page just parsed
+        ACPost post = JSON.parseObject(mThread, ACPost.class);
+        long start = System.nanoTime();
+        post.generateSelfAndReplies(ACSite.getInstance());
+        for (int i = 0; i < bound; i++) {
+            assertNotNull(post.replys.get(i).getNMBDisplayContent());
+        }
+        return System.nanoTime() - start;
+    }
+
+    public void testFirstScreen() {
+        // Warm up
+        firstScreen(REPLY_COUNT);
+
+        long all = 0;
+        long visible = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            ACItemUtils.clearContentCache();
+            all += firstScreen(REPLY_COUNT);
+            ACItemUtils.clearContentCache();
+            visible += firstScreen(FIRST_SCREEN);
+        }
+
+        Log.i(TAG, "all " + REPLY_COUNT + " replies: " + (all / ROUNDS / 1000) + " us/op, " +
+                "first " + FIRST_SCREEN + " replies: " + (visible / ROUNDS / 1000) + " us/op");
+        assertTrue(visible < all);
+    }
+
+    public void testRebind() {
+        // Warm up
+        firstScreen(REPLY_COUNT);
+
+        long cold = 0;
+        long warm = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            ACItemUtils.clearContentCache();
+            cold += firstScreen(REPLY_COUNT);
+            // Same replies come again, like a refresh or a config change
+            warm += firstScreen(REPLY_COUNT);
+        }
+
+        Log.i(TAG, "cold: " + (cold / ROUNDS / 1000) + " us/op, warm: " + (warm / ROUNDS / 1000) + " us/op");
+        assertTrue(warm < cold);
+    }
+}
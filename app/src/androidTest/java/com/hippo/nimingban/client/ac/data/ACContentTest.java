@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac.data;
+
+import com.hippo.nimingban.client.data.ACSite;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Checks the content generated when it is shown, and reused for the same reply.
+ * The timing is in ACContentBenchmark.
+ */
+public class ACContentTest extends TestCase {
+
+    private static final int REPLY_COUNT = 20;
+
+    private static void fill(ACReply reply, int id) {
+        reply.id = Integer.toString(id);
+        reply.now = "2017-01-01(日)12:34:56";
+        reply.userid = "AbCd1234";
+        reply.name = "无名氏";
+        reply.title = "无标题";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            sb.append("<font color=\"#789922\">&gt;&gt;No.").append(id - i - 1)
+                    .append("</font><br />这是一段很长的回复 http://www.example.com/ ac123456<br />");
+        }
+        reply.content = sb.toString();
+    }
+
+    private static ACPost buildPost(int id) {
+        ACPost post = new ACPost();
+        post.id = Integer.toString(id);
+        post.now = "2017-01-01(日)12:34:56";
+        post.userid = "AbCd1234";
+        post.content = "content";
+        post.replyCount = Integer.toString(REPLY_COUNT);
+        post.replys = new ArrayList<>(REPLY_COUNT);
+        for (int i = 0; i < REPLY_COUNT; i++) {
+            ACReply reply = new ACReply();
+            fill(reply, id + i + 1);
+            post.replys.add(reply);
+        }
+        return post;
+    }
+
+    public void testSameContent() {
+        ACItemUtils.clearContentCache();
+        ACPost post = buildPost(10000000);
+        post.generateSelfAndReplies(ACSite.getInstance());
+        ACReply reply = post.replys.get(0);
+        CharSequence content = reply.getNMBDisplayContent();
+        assertEquals(ACItemUtils.generateContent(reply.content, reply.sage,
+                reply.title, reply.name, reply.email).toString(), content.toString());
+    }
+
+    public void testRebind() {
+        ACItemUtils.clearContentCache();
+        ACPost cold = buildPost(20000000);
+        cold.generateSelfAndReplies(ACSite.getInstance());
+        // Same replies come again, like a refresh or a config change
+        ACPost warm = buildPost(20000000);
+        warm.generateSelfAndReplies(ACSite.getInstance());
+        for (int i = 0; i < REPLY_COUNT; i++) {
+            assertSame(cold.replys.get(i).getNMBDisplayContent(),
+                    warm.replys.get(i).getNMBDisplayContent());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac.data;
+
+import android.util.Log;
+
+import com.alibaba.fastjson.JSON;
+import com.hippo.nimingban.Fixtures;
+import com.hippo.nimingban.client.data.ACSite;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares sequential and parallel {@link ACGenerator} on large thread pages
+ * and a forum page, built from the fixtures.
+ */
+public class ACGeneratorBenchmark extends TestCase {
+
+    private static final String TAG = ACGeneratorBenchmark.class.getSimpleName();
+
+    private static final int ROUNDS = 30;
+
+    private interface Page {
+        List<ACPost> parse();
+    }
+
+    private static Page thread(final String json) {
+        return new Page() {
+            @Override
+            public List<ACPost> parse() {
+                return Collections.singletonList(JSON.parseObject(json, ACPost.class));
+            }
+        };
+    }
+
+    private static Page forum(final String json) {
+        return new Page() {
+            @Override
+            public List<ACPost> parse() {
+                return JSON.parseArray(json, ACPost.class);
+            }
+        };
+    }
+
+    private static long measure(Page page, boolean parallel) {
+        // Warm up
+        ACGenerator.generate(page.parse(), ACSite.getInstance(), parallel);
+
+        long time = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            // A page just parsed
+            List<ACPost> posts = page.parse();
+            long start = System.nanoTime();
+            ACGenerator.generate(posts, ACSite.getInstance(), parallel);
+            time += System.nanoTime() - start;
+        }
+        return time / ROUNDS;
+    }
+
+    private static void report(String name, Page page) {
+        long sequential = measure(page, false);
+        long parallel = measure(page, true);
+        Log.i(TAG, name + " on " + Runtime.getRuntime().availableProcessors() + " cores: " +
+                "sequential " + (sequential / 1000) + " us/op, " +
+                "parallel " + (parallel / 1000) + " us/op, " +
+                "speedup " + ((float) sequential / parallel));
+    }
+
+    public void testThreadPage() throws Exception {
+        report("thread page 200 replies", thread(Fixtures.readLargeThread(200)));
+    }
+
+    public void testLargeThreadPage() throws Exception {
+        report("thread page 1000 replies", thread(Fixtures.readLargeThread(1000)));
+    }
+
+    public void testForumPage() throws Exception {
+        report("forum page", forum(Fixtures.readString(Fixtures.FORUM)));
+    }
+}
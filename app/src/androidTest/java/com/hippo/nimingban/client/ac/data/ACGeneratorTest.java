@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac.data;
+
+import com.hippo.nimingban.client.data.ACSite;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks parallel {@link ACGenerator} gets the same result as the sequential one.
+ */
+public class ACGeneratorTest extends TestCase {
+
+    private static void fill(ACReply reply, int id) {
+        reply.id = Integer.toString(id);
+        reply.img = "2017-01-01/586a1a5e0f3c9";
+        reply.ext = ".jpg";
+        reply.now = "2017-01-01(日)12:" + (id % 60 < 10 ? "0" : "") + (id % 60) + ":56";
+        reply.userid = "<font color=\"red\">AbCd" + (id % 10000) + "</font>";
+        reply.content = "content";
+    }
+
+    private static ACPost buildPost(int id, int replyCount) {
+        ACPost post = new ACPost();
+        post.id = Integer.toString(id);
+        post.now = "2017-01-01(日)12:34:56";
+        post.userid = "AbCd1234";
+        post.content = "content";
+        post.replyCount = Integer.toString(replyCount);
+        post.replys = new ArrayList<>(replyCount);
+        for (int i = 0; i < replyCount; i++) {
+            ACReply reply = new ACReply();
+            fill(reply, id + i + 1);
+            post.replys.add(reply);
+        }
+        return post;
+    }
+
+    private static List<ACPost> buildPage(int postCount, int replyCount) {
+        List<ACPost> posts = new ArrayList<>(postCount);
+        for (int i = 0; i < postCount; i++) {
+            posts.add(buildPost(10000000 + i * 1000, replyCount));
+        }
+        return posts;
+    }
+
+    public void testSame() {
+        List<ACPost> expected = buildPage(3, 50);
+        List<ACPost> actual = buildPage(3, 50);
+        ACGenerator.generate(expected, ACSite.getInstance(), false);
+        ACGenerator.generate(actual, ACSite.getInstance(), true);
+        for (int i = 0; i < expected.size(); i++) {
+            ACPost e = expected.get(i);
+            ACPost a = actual.get(i);
+            assertEquals(e.getNMBTime(), a.getNMBTime());
+            assertEquals(e.getNMBReplies().length, a.getNMBReplies().length);
+            for (int j = 0; j < e.replys.size(); j++) {
+                ACReply er = e.replys.get(j);
+                ACReply ar = a.replys.get(j);
+                assertEquals(er.getNMBPostId(), ar.getNMBPostId());
+                assertEquals(er.getNMBTime(), ar.getNMBTime());
+                assertEquals(er.getNMBDisplayUsername().toString(), ar.getNMBDisplayUsername().toString());
+                assertEquals(er.getNMBImageKey(), ar.getNMBImageKey());
+            }
+        }
+    }
+}
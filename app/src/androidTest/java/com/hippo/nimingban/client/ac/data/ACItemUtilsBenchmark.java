@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac.data;
+
+import android.util.Log;
+
+import com.hippo.nimingban.Fixtures;
+import com.hippo.text.Html;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Content generation of a forum page, the whole
+ * {@link ACItemUtils#generateContent(String, String, String, String, String)}
+ * and each step of it. The times are per item.
+ * <p>
+ * They make spans, which the jvm of the benchmark module can't run.
+ */
+public class ACItemUtilsBenchmark extends TestCase {
+
+    private static final String TAG = ACItemUtilsBenchmark.class.getSimpleName();
+
+    private static final int ROUNDS = 20;
+
+    private List<ACReply> mItems;
+    private String[] mText;
+
+    private interface Step {
+        CharSequence run(int index);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mItems = Fixtures.readItems();
+        mText = new String[mItems.size()];
+        for (int i = 0, n = mItems.size(); i < n; i++) {
+            mText[i] = Html.fromHtml(mItems.get(i).content).toString();
+        }
+    }
+
+    private void measure(String name, Step step) {
+        int n = mItems.size();
+        // Warm up
+        for (int i = 0; i < n; i++) {
+            step.run(i);
+        }
+
+        long time = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                assertNotNull(step.run(i));
+            }
+            time += System.nanoTime() - start;
+        }
+        Log.i(TAG, name + ": " + (time / ROUNDS / n / 1000.0f) + " us/item");
+    }
+
+    public void testGenerateContent() {
+        measure("generateContent", new Step() {
+            @Override
+            public CharSequence run(int index) {
+                ACReply item = mItems.get(index);
+                return ACItemUtils.generateContent(item.content, item.sage, item.title, item.name, item.email);
+            }
+        });
+    }
+
+    public void testHtml() {
+        measure("fromHtml", new Step() {
+            @Override
+            public CharSequence run(int index) {
+                return Html.fromHtml(mItems.get(index).content, null, null);
+            }
+        });
+        measure("fromSimpleHtml", new Step() {
+            @Override
+            public CharSequence run(int index) {
+                return Html.fromSimpleHtml(mItems.get(index).content, null, null);
+            }
+        });
+    }
+
+    // The text is a String, so every call makes its own spannable
+
+    public void testHandle() {
+        measure("handleReference", new Step() {
+            @Override
+            public CharSequence run(int index) {
+                return ACItemUtils.handleReference(mText[index]);
+            }
+        });
+        measure("handleTextUrl", new Step() {
+            @Override
+            public CharSequence run(int index) {
+                return ACItemUtils.handleTextUrl(mText[index]);
+            }
+        });
+        measure("handleAcUrl", new Step() {
+            @Override
+            public CharSequence run(int index) {
+                return ACItemUtils.handleAcUrl(mText[index]);
+            }
+        });
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.text;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.XMLReader;
+
+/**
+ * Checks {@link Html#fromSimpleHtml(String, Html.ImageGetter, Html.TagHandler)}
+ * gives the same result as TagSoup.
+ */
+public class SimpleHtmlParserTest extends TestCase {
+
+    // Html the simple parser should handle
+    private static final String[] SIMPLE_CORPUS = {
+            "",
+            "plain text",
+            "   leading and   inner    spaces  ",
+            "line\nbreak\r\nand\rreturn",
+            "a<br>b<br/>c<br />d<BR>e",
+            "<br /><br />",
+            "<b>bold</b> <i>italic</i> <strong>strong</strong> <span>span</span>",
+            "<B>upper</B><I>case</I>",
+            "<font color=\"#789922\">&gt;&gt;No.12345678</font><br />reply",
+            "<font color='red'>single quoted</font>",
+            "<font color=red>unquoted</font>",
+            "<font color=\"#FF0000\" face=\"monospace\">face</font>",
+            "<font color=\"not a color\">bad color</font>",
+            "<font>no attribute</font>",
+            "<font color=\"#789922\"><b>nested</b> <i>tags</i></font>",
+            "<b><i><font color=\"blue\">deep</font></i></b>",
+            "<b></b><i></i>empty",
+            "<b>unclosed <i>tags",
+            "<a href=\"http://www.example.com/\">link</a>",
+            "<a href=\"/t/123\">relative link</a>",
+            "<a href=\"t/123\" target=\"_blank\">relative link</a>",
+            "&lt;&gt;&amp;&quot;&nbsp;&#39;&#x4e2d;&#25991;",
+            "text > with greater",
+            "中文内容<br />\r\n第二行 ac123456 http://www.example.com/",
+            "<span style=\"color: red\">style ignored</span>",
+    };
+
+    // Html the simple parser should leave to TagSoup
+    private static final String[] FALLBACK_CORPUS = {
+            "<p>paragraph</p>",
+            "<div>div</div>",
+            "<img src=\"a.png\">",
+            "<!-- comment -->text",
+            "a < b",
+            "a & b",
+            "&copy; unknown entity",
+            "&#150; windows-1252",
+            "<b>mismatched<i></b></i>",
+            "stray end</b>",
+            "<a href=\"a\"><a href=\"b\">nested</a></a>",
+            "<font color=\"&quot;\">entity in attribute</font>",
+            "<b/>self closing",
+            "<font color>no value</font>",
+            "tab\tin text",
+            "<u>underline</u>",
+    };
+
+    private static String describe(Spanned spanned) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('"').append(spanned.toString()).append('"');
+        Object[] spans = spanned.getSpans(0, spanned.length(), Object.class);
+        for (Object span : spans) {
+            sb.append(", ").append(span.getClass().getSimpleName())
+                    .append('[').append(spanned.getSpanStart(span))
+                    .append(',').append(spanned.getSpanEnd(span))
+                    .append(',').append(spanned.getSpanFlags(span));
+            if (span instanceof ForegroundColorSpan) {
+                sb.append(',').append(Integer.toHexString(((ForegroundColorSpan) span).getForegroundColor()));
+            } else if (span instanceof URLSpan) {
+                sb.append(',').append(((URLSpan) span).getURL());
+            } else if (span instanceof StyleSpan) {
+                sb.append(',').append(((StyleSpan) span).getStyle());
+            } else if (span instanceof TypefaceSpan) {
+                sb.append(',').append(((TypefaceSpan) span).getFamily());
+            }
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+
+    private static class Link {
+        public final String href;
+
+        public Link(String href) {
+            this.href = href;
+        }
+    }
+
+    private static final Html.TagHandler LINK_HANDLER = new Html.TagHandler() {
+        @Override
+        public boolean handleTag(boolean opening, String tag, SpannableStringBuilder output,
+                XMLReader xmlReader, Attributes attributes) {
+            // Like the AC tag handler, it reads attributes and sets spans
+            if (!tag.equalsIgnoreCase("a")) {
+                return false;
+            }
+
+            int len = output.length();
+            if (opening) {
+                output.setSpan(new Link("host/" + attributes.getValue("", "href")),
+                        len, len, Spanned.SPAN_MARK_MARK);
+            } else {
+                Link[] links = output.getSpans(0, len, Link.class);
+                Link link = links[links.length - 1];
+                int where = output.getSpanStart(link);
+                output.removeSpan(link);
+                if (where != len) {
+                    output.setSpan(new URLSpan(link.href), where, len, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+            return true;
+        }
+    };
+
+    public void testCorpus() throws Exception {
+        for (String html : SIMPLE_CORPUS) {
+            assertTrue(html, SimpleHtmlParser.parse(html, null));
+            assertEquals(html, describe(Html.fromHtml(html, null, null)),
+                    describe(Html.fromSimpleHtml(html, null, null)));
+            assertEquals(html, describe(Html.fromHtml(html, null, LINK_HANDLER)),
+                    describe(Html.fromSimpleHtml(html, null, LINK_HANDLER)));
+        }
+    }
+
+    public void testFallback() throws Exception {
+        for (String html : FALLBACK_CORPUS) {
+            assertFalse(html, SimpleHtmlParser.parse(html, null));
+            assertEquals(html, describe(Html.fromHtml(html, null, null)),
+                    describe(Html.fromSimpleHtml(html, null, null)));
+        }
+    }
+}
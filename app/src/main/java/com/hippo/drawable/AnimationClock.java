@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.drawable;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import com.hippo.yorozuya.SimpleHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One clock for all animated {@link ImageWrapper}s. It wakes up on the vsync
+ * of the earliest deadline, and shows all due frames in that vsync,
+ * so their invalidations are handled in one traversal.
+ * <p>
+ * Before Jelly Bean, there is no {@link Choreographer}, the main handler is used.
+ * <p>
+ * Only used in main thread.
+ */
+final class AnimationClock {
+
+    // Frames due before next vsync are shown in this one
+    private static final long FRAME_TOLERANCE = 8;
+
+    private static AnimationClock sInstance;
+
+    static AnimationClock getInstance() {
+        if (sInstance == null) {
+            sInstance = new AnimationClock();
+        }
+        return sInstance;
+    }
+
+    // Image wrappers with a rendered frame waiting for its deadline
+    private final List<ImageWrapper> mWrappers = new ArrayList<>();
+    private final List<ImageWrapper> mDueWrappers = new ArrayList<>();
+
+    private final Ticker mTicker;
+    private boolean mScheduled;
+    private long mScheduledTime;
+
+    private AnimationClock() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mTicker = new ChoreographerTicker(this);
+        } else {
+            mTicker = new HandlerTicker(this);
+        }
+    }
+
+    /**
+     * The frame of the image wrapper is rendered. It will be shown at its deadline.
+     */
+    void add(ImageWrapper wrapper) {
+        if (!mWrappers.contains(wrapper)) {
+            mWrappers.add(wrapper);
+        }
+        schedule();
+    }
+
+    void remove(ImageWrapper wrapper) {
+        mWrappers.remove(wrapper);
+        if (mWrappers.isEmpty() && mScheduled) {
+            mScheduled = false;
+            mTicker.cancel();
+        }
+    }
+
+    private void schedule() {
+        if (mWrappers.isEmpty()) {
+            return;
+        }
+
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0, n = mWrappers.size(); i < n; i++) {
+            deadline = Math.min(deadline, mWrappers.get(i).getDeadline());
+        }
+
+        if (mScheduled && mScheduledTime <= deadline) {
+            return;
+        }
+        if (mScheduled) {
+            mTicker.cancel();
+        }
+        mScheduled = true;
+        mScheduledTime = deadline;
+        mTicker.post(Math.max(0, deadline - SystemClock.uptimeMillis()));
+    }
+
+    private void tick() {
+        mScheduled = false;
+
+        long now = SystemClock.uptimeMillis();
+        List<ImageWrapper> due = mDueWrappers;
+        for (int i = mWrappers.size() - 1; i >= 0; i--) {
+            ImageWrapper wrapper = mWrappers.get(i);
+            if (wrapper.getDeadline() <= now + FRAME_TOLERANCE) {
+                mWrappers.remove(i);
+                due.add(wrapper);
+            }
+        }
+
+        // Show them together
+        for (int i = 0, n = due.size(); i < n; i++) {
+            due.get(i).showFrame(now);
+        }
+        due.clear();
+
+        schedule();
+    }
+
+    private interface Ticker {
+
+        void post(long delay);
+
+        void cancel();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerTicker implements Ticker, Choreographer.FrameCallback {
+
+        private final AnimationClock mClock;
+
+        public ChoreographerTicker(AnimationClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public void post(long delay) {
+            Choreographer.getInstance().postFrameCallbackDelayed(this, delay);
+        }
+
+        @Override
+        public void cancel() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mClock.tick();
+        }
+    }
+
+    private static class HandlerTicker implements Ticker, Runnable {
+
+        private final AnimationClock mClock;
+
+        public HandlerTicker(AnimationClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public void post(long delay) {
+            SimpleHandler.getInstance().postDelayed(this, delay);
+        }
+
+        @Override
+        public void cancel() {
+            SimpleHandler.getInstance().removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            mClock.tick();
+        }
+    }
+}
@@ -16,52 +16,219 @@
 
 package com.hippo.drawable;
 
+import android.annotation.TargetApi;
 import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
 
-class BitmapPool {
+/**
+ * A pool of ARGB_8888 bitmaps, bucketed by byte size, with a byte budget.
+ * The least recently put bitmaps are recycled when it is over budget.
+ * <p>
+ * Before KitKat only a bitmap of the same size could be reused.
+ * Since KitKat a larger bitmap is reconfigured to the requested size,
+ * so the edge tiles could reuse full tiles.
+ */
+public class BitmapPool {
 
     private static final String TAG = BitmapPool.class.getSimpleName();
 
-    private final Set<WeakReference<Bitmap>> mReusableBitmapSet = new LinkedHashSet<>();
+    // A reused bitmap wastes at most (MAX_SIZE_MULTIPLE - 1) / MAX_SIZE_MULTIPLE of it
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static final boolean CAN_RECONFIGURE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private final int mMaxSize;
+    private int mSize;
+
+    // Byte count -> bitmaps
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    // Put order, the first is the least recently put
+    private final LinkedList<Bitmap> mLru = new LinkedList<>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private long mAllocatedBytes;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    private static int getSize(Bitmap bitmap) {
+        if (CAN_RECONFIGURE) {
+            return getAllocationByteCount(bitmap);
+        } else {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationByteCount(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height) {
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+    }
 
     public synchronized void put(@Nullable Bitmap bitmap) {
-        if (bitmap != null) {
-            mReusableBitmapSet.add(new WeakReference<>(bitmap));
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
         }
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap.recycle();
+            return;
+        }
+        int size = getSize(bitmap);
+        if (size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        mLru.addLast(bitmap);
+        mSize += size;
+
+        trimToSize(mMaxSize);
     }
 
     @Nullable
     public synchronized Bitmap get(int width, int height) {
-        final Iterator<WeakReference<Bitmap>> iterator = mReusableBitmapSet.iterator();
-        Bitmap item;
-        while (iterator.hasNext()) {
-            item = iterator.next().get();
-            if (item != null) {
-                if (item.getWidth() == width && item.getHeight() == height) {
-                    // Remove from reusable set so it can't be used again.
-                    iterator.remove();
-                    return item;
-                }
-            } else {
-                // Remove from the set if the reference has been cleared or
-                // it can't be used.
-                iterator.remove();
-            }
+        int size = width * height * 4;
+        Bitmap bitmap = CAN_RECONFIGURE ? removeAtLeast(width, height, size) : removeExact(width, height, size);
+        if (bitmap != null) {
+            mHitCount++;
+            return bitmap;
         }
 
         // Can not find reusable bitmap
+        mMissCount++;
         try {
-            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mAllocatedBytes += size;
+            return bitmap;
         } catch (OutOfMemoryError e) {
             Log.e(TAG, "Out of memory");
+            // Free pooled bitmaps for next time
+            trimToSize(0);
+            return null;
+        }
+    }
+
+    private Bitmap removeExact(int width, int height, int size) {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            return null;
+        }
+        for (Iterator<Bitmap> iterator = bucket.descendingIterator(); iterator.hasNext();) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                iterator.remove();
+                onRemoved(bitmap, size, bucket);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private Bitmap removeAtLeast(int width, int height, int size) {
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBuckets.ceilingEntry(size);
+        if (entry == null || entry.getKey() > size * MAX_SIZE_MULTIPLE) {
             return null;
         }
+        ArrayDeque<Bitmap> bucket = entry.getValue();
+        // The most recently put one
+        Bitmap bitmap = bucket.removeLast();
+        onRemoved(bitmap, entry.getKey(), bucket);
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            reconfigure(bitmap, width, height);
+            // Not to show the pixels of old layout
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return bitmap;
+    }
+
+    private void onRemoved(Bitmap bitmap, int size, ArrayDeque<Bitmap> bucket) {
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+        mLru.remove(bitmap);
+        mSize -= size;
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mLru.isEmpty()) {
+            Bitmap bitmap = mLru.removeFirst();
+            int size = getSize(bitmap);
+            ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(size);
+                }
+            }
+            mSize -= size;
+            mEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycles all bitmaps in pool.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the bytes of bitmaps in pool.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the bytes of bitmaps created for misses.
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + ": " + mSize + "/" + mMaxSize + " bytes, hit " + mHitCount +
+                ", miss " + mMissCount + ", evictions " + mEvictionCount +
+                ", allocated " + mAllocatedBytes + " bytes";
     }
 }
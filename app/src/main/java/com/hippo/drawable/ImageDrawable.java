@@ -21,11 +21,12 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
 
-import com.hippo.yorozuya.MathUtils;
+import com.hippo.yorozuya.SimpleHandler;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -33,40 +34,82 @@ import java.util.List;
 public class ImageDrawable extends Drawable implements ImageWrapper.Callback, Animatable {
 
     private static final int TILE_SIZE = 512;
+    // Tiles this close to the clip are kept, not to drop and render them again while moving
+    private static final int TILE_MARGIN = TILE_SIZE / 2;
 
     private ImageWrapper mImageWrapper;
     private Paint mPaint;
 
-    private List<Tile> mTileList;
+    private final List<Tile> mTileList;
+
+    private final Rect mClipRect = new Rect();
+
+    // Guarded by mTileList
+    private boolean mRecycled;
+    // Guarded by mTileList
+    private boolean mPendingPosted;
+
+    private final Runnable mRenderPendingTask = new Runnable() {
+        @Override
+        public void run() {
+            renderPendingTiles();
+        }
+    };
+
+    private final Runnable mInvalidateTask = new Runnable() {
+        @Override
+        public void run() {
+            invalidateImage(mImageWrapper);
+        }
+    };
 
     private static class Tile {
+        // Shown
         Bitmap bitmap;
+        // Rendered in background for next frame, only for animated image
+        Bitmap back;
+        boolean backReady;
+        // Got a bitmap but not rendered yet, only for animated image
+        boolean pending;
         int w;
         int h;
         int x;
         int y;
     }
 
-    private static final BitmapPool sBitmapPool = new BitmapPool();
+    private static final int BITMAP_POOL_MAX_SIZE =
+            (int) Math.min(32 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+    private static final BitmapPool sBitmapPool = new BitmapPool(BITMAP_POOL_MAX_SIZE);
+
+    /**
+     * The pool for tile bitmaps of all image drawables.
+     */
+    public static BitmapPool getBitmapPool() {
+        return sBitmapPool;
+    }
 
     public ImageDrawable(@NonNull ImageWrapper imageWrapper) {
+        // Tiles are rendered in draw(), decoding regions there blocks main thread
+        if (imageWrapper.isRegionDecodable()) {
+            throw new IllegalArgumentException("Use RegionDrawable for region decodable image");
+        }
+
         mImageWrapper = imageWrapper;
         mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
         mTileList = createTileArray();
 
-        // Render first frame
-        render();
-
         // Add callback
         imageWrapper.addCallback(this);
     }
 
+    /**
+     * Only creates the tiles, their bitmaps are got in {@link #draw(Canvas)}.
+     */
     private List<Tile> createTileArray() {
         int width = mImageWrapper.getWidth();
         int height = mImageWrapper.getHeight();
-        int capacity = MathUtils.clamp(MathUtils.ceilDivide(width, TILE_SIZE) *
-                MathUtils.ceilDivide(height, TILE_SIZE), 0, 100);
-        List<Tile> tiles = new ArrayList<>(capacity);
+        List<Tile> tiles = new ArrayList<>();
 
         for (int x = 0; x < width; x += TILE_SIZE) {
             int w = Math.min(TILE_SIZE, width - x);
@@ -77,7 +120,6 @@ public class ImageDrawable extends Drawable implements ImageWrapper.Callback, An
                 tile.y = y;
                 tile.w = w;
                 tile.h = h;
-                tile.bitmap = sBitmapPool.get(w, h);
                 tiles.add(tile);
             }
         }
@@ -85,21 +127,6 @@ public class ImageDrawable extends Drawable implements ImageWrapper.Callback, An
         return tiles;
     }
 
-    private void render() {
-        ImageWrapper imageWrapper = mImageWrapper;
-        if (imageWrapper.isRecycled()) {
-            return;
-        }
-
-        List<Tile> tiles = mTileList;
-        for (int i = 0, length = tiles.size(); i < length; i++) {
-            Tile tile = tiles.get(i);
-            if (tile.bitmap != null) {
-                imageWrapper.render(tile.x, tile.y, tile.bitmap, 0, 0, tile.w, tile.h, false, 0);
-            }
-        }
-    }
-
     @Override
     public int getIntrinsicWidth() {
         return mImageWrapper.getWidth();
@@ -110,17 +137,84 @@ public class ImageDrawable extends Drawable implements ImageWrapper.Callback, An
         return mImageWrapper.getHeight();
     }
 
+    /**
+     * Only the tiles around the clip have bitmaps. Tiles get bitmaps
+     * when they come close, and give them back to pool when they go away.
+     */
     @Override
     public void draw(Canvas canvas) {
+        Rect clip = mClipRect;
+        if (!canvas.getClipBounds(clip)) {
+            // Nothing to draw
+            return;
+        }
+
+        ImageWrapper imageWrapper = mImageWrapper;
+        // Rendering animated image here waits for the frame advanced in render thread
+        boolean animated = imageWrapper.getFrameCount() > 1;
+        boolean hasPending = false;
+        int keepLeft = clip.left - TILE_MARGIN;
+        int keepTop = clip.top - TILE_MARGIN;
+        int keepRight = clip.right + TILE_MARGIN;
+        int keepBottom = clip.bottom + TILE_MARGIN;
+
         List<Tile> tiles = mTileList;
-        for (int i = 0, length = tiles.size(); i < length; i++) {
-            Tile tile = tiles.get(i);
-            if (tile.bitmap != null) {
-                canvas.drawBitmap(tile.bitmap, tile.x, tile.y, mPaint);
+        synchronized (tiles) {
+            boolean recycled = mRecycled || imageWrapper.isRecycled();
+            for (int i = 0, length = tiles.size(); i < length; i++) {
+                Tile tile = tiles.get(i);
+                int right = tile.x + tile.w;
+                int bottom = tile.y + tile.h;
+
+                if (tile.x >= keepRight || right <= keepLeft || tile.y >= keepBottom || bottom <= keepTop) {
+                    releaseTile(tile);
+                    continue;
+                }
+
+                if (tile.bitmap == null && !recycled) {
+                    tile.bitmap = sBitmapPool.get(tile.w, tile.h);
+                    if (tile.bitmap != null) {
+                        if (animated) {
+                            tile.pending = true;
+                        } else {
+                            imageWrapper.render(tile.x, tile.y, tile.bitmap, 0, 0, tile.w, tile.h, false, 0);
+                        }
+                    }
+                }
+                hasPending |= tile.pending;
+
+                if (tile.bitmap != null && !tile.pending && tile.x < clip.right && right > clip.left &&
+                        tile.y < clip.bottom && bottom > clip.top) {
+                    canvas.drawBitmap(tile.bitmap, tile.x, tile.y, mPaint);
+                }
+            }
+
+            if (hasPending) {
+                postRenderPendingLocked();
             }
         }
     }
 
+    private void postRenderPendingLocked() {
+        if (!mPendingPosted && !mRecycled) {
+            mPendingPosted = true;
+            ImageWrapper.getRenderHandler().post(mRenderPendingTask);
+        }
+    }
+
+    private static void releaseTile(Tile tile) {
+        if (tile.bitmap != null) {
+            sBitmapPool.put(tile.bitmap);
+            tile.bitmap = null;
+        }
+        if (tile.back != null) {
+            sBitmapPool.put(tile.back);
+            tile.back = null;
+        }
+        tile.backReady = false;
+        tile.pending = false;
+    }
+
     @Override
     public void setAlpha(int alpha) {
         mPaint.setAlpha(alpha);
@@ -141,23 +235,124 @@ public class ImageDrawable extends Drawable implements ImageWrapper.Callback, An
 
         // Free tile's bitmap
         List<Tile> tiles = mTileList;
-        for (int i = 0, length = tiles.size(); i < length; i++) {
-            Tile tile = tiles.get(i);
-            sBitmapPool.put(tile.bitmap);
-            tile.bitmap = null;
+        synchronized (tiles) {
+            mRecycled = true;
+            for (int i = 0, length = tiles.size(); i < length; i++) {
+                releaseTile(tiles.get(i));
+            }
         }
     }
 
+    /**
+     * Renders the next frame to back bitmaps of the shown tiles,
+     * the pending tiles are shown with the others when it is swapped.
+     */
     @Override
     public void renderImage(ImageWrapper who) {
-        render();
+        renderBacks(who, false);
+    }
+
+    /**
+     * Renders the pending tiles of a stopped animation in render thread,
+     * where the frame is not advanced meanwhile. Running animation renders
+     * them in next {@link #renderImage(ImageWrapper)}.
+     */
+    private void renderPendingTiles() {
+        synchronized (mTileList) {
+            mPendingPosted = false;
+        }
+        if (!mImageWrapper.isRunning()) {
+            renderBacks(mImageWrapper, true);
+            // Swap all ready backs, they are of the same frame
+            SimpleHandler.getInstance().post(mInvalidateTask);
+        }
     }
 
+    /**
+     * The lock is not held while rendering, so drawing is not blocked.
+     */
+    private void renderBacks(ImageWrapper who, boolean pendingOnly) {
+        List<Tile> tiles = mTileList;
+        List<Tile> targets = new ArrayList<>();
+        List<Bitmap> backs = new ArrayList<>();
+        synchronized (tiles) {
+            if (mRecycled) {
+                return;
+            }
+            for (int i = 0, length = tiles.size(); i < length; i++) {
+                Tile tile = tiles.get(i);
+                if (tile.bitmap == null || (pendingOnly && (!tile.pending || tile.backReady))) {
+                    continue;
+                }
+                Bitmap back = tile.back;
+                tile.back = null;
+                tile.backReady = false;
+                if (back == null) {
+                    back = sBitmapPool.get(tile.w, tile.h);
+                }
+                if (back != null) {
+                    targets.add(tile);
+                    backs.add(back);
+                }
+            }
+        }
+
+        for (int i = 0, n = targets.size(); i < n; i++) {
+            Tile tile = targets.get(i);
+            who.render(tile.x, tile.y, backs.get(i), 0, 0, tile.w, tile.h, false, 0);
+        }
+
+        synchronized (tiles) {
+            for (int i = 0, n = targets.size(); i < n; i++) {
+                Tile tile = targets.get(i);
+                Bitmap back = backs.get(i);
+                if (!mRecycled && tile.bitmap != null && tile.back == null) {
+                    tile.back = back;
+                    tile.backReady = true;
+                } else {
+                    // Released while rendering
+                    sBitmapPool.put(back);
+                }
+            }
+        }
+    }
+
+    /**
+     * Swaps the rendered back bitmaps to front.
+     */
     @Override
     public void invalidateImage(ImageWrapper who) {
+        List<Tile> tiles = mTileList;
+        synchronized (tiles) {
+            for (int i = 0, length = tiles.size(); i < length; i++) {
+                Tile tile = tiles.get(i);
+                if (tile.backReady && tile.bitmap != null) {
+                    // The old front is the buffer for the next frame
+                    Bitmap front = tile.bitmap;
+                    tile.bitmap = tile.back;
+                    tile.back = front;
+                    tile.backReady = false;
+                    tile.pending = false;
+                }
+            }
+        }
         invalidateSelf();
     }
 
+    @Override
+    public boolean isImageVisible(ImageWrapper who) {
+        return isVisible() && getCallback() != null;
+    }
+
+    @Override
+    public boolean setVisible(boolean visible, boolean restart) {
+        boolean changed = super.setVisible(visible, restart);
+        if (changed && visible) {
+            mImageWrapper.onCallbackVisible();
+        }
+        return changed;
+    }
+
     @Override
     public void start() {
         mImageWrapper.start();
@@ -166,6 +361,15 @@ public class ImageDrawable extends Drawable implements ImageWrapper.Callback, An
     @Override
     public void stop() {
         mImageWrapper.stop();
+        // Pending tiles are not rendered by the stopped animation
+        synchronized (mTileList) {
+            for (int i = 0, length = mTileList.size(); i < length; i++) {
+                if (mTileList.get(i).pending) {
+                    postRenderPendingLocked();
+                    break;
+                }
+            }
+        }
     }
 
     @Override
@@ -17,64 +17,238 @@
 package com.hippo.drawable;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.drawable.Animatable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.hippo.image.Image;
 import com.hippo.yorozuya.SimpleHandler;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
-public class ImageWrapper implements Animatable, Runnable {
+/**
+ * Wraps an {@link Image}, a still bitmap, or a region decoder of a large still image.
+ * <p>
+ * Frames of animated images are advanced and rendered on a background thread,
+ * ahead of the time they are shown. {@link AnimationClock} shows the rendered frames
+ * of all image wrappers on vsync, by {@link Callback#invalidateImage(ImageWrapper)}.
+ */
+public class ImageWrapper implements Animatable {
 
     private static final String TAG = ImageWrapper.class.getSimpleName();
 
-    private Image mImage;
+    private static final Paint SRC_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    static {
+        SRC_PAINT.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
 
-    private boolean mRunning = false;
+    private static Handler sRenderHandler;
+
+    /**
+     * The handler of render thread, frames are advanced in it.
+     */
+    static synchronized Handler getRenderHandler() {
+        if (sRenderHandler == null) {
+            HandlerThread thread = new HandlerThread("ImageRenderer",
+                    android.os.Process.THREAD_PRIORITY_DEFAULT);
+            thread.start();
+            sRenderHandler = new Handler(thread.getLooper());
+        }
+        return sRenderHandler;
+    }
+
+    // One of them is not null
+    private Image mImage;
+    // A downsampled still image
+    private Bitmap mBitmap;
+    // A still image too large to decode at once
+    private BitmapRegionDecoder mRegionDecoder;
+
+    private volatile boolean mRecycled = false;
+    private volatile boolean mRunning = false;
+    // Changed by start and stop, the frames of old generation are dropped
+    private volatile int mGeneration;
+    // The time to show the rendered frame
+    private long mDeadline;
+    // The delay of the rendered frame
+    private int mNextDelay;
+    // The generation of the rendered frame
+    private volatile int mReadyGeneration;
+    // The rendered frame is not shown because no callback is visible
+    private boolean mPaused;
 
     private final Set<WeakReference<Callback>> mCallbackSet = new LinkedHashSet<>();
 
+    private final Runnable mRenderTask = new Runnable() {
+        @Override
+        public void run() {
+            renderNextFrame();
+        }
+    };
+
+    private final Runnable mReadyTask = new Runnable() {
+        @Override
+        public void run() {
+            onFrameReady();
+        }
+    };
+
     public ImageWrapper(@NonNull Image image) {
         mImage = image;
     }
 
+    public ImageWrapper(@NonNull Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public ImageWrapper(@NonNull BitmapRegionDecoder regionDecoder) {
+        mRegionDecoder = regionDecoder;
+    }
+
     public int getWidth() {
-        return mImage.getWidth();
+        if (mImage != null) {
+            return mImage.getWidth();
+        } else if (mBitmap != null) {
+            return mBitmap.getWidth();
+        } else {
+            return mRegionDecoder.getWidth();
+        }
     }
 
     public int getHeight() {
-        return mImage.getHeight();
+        if (mImage != null) {
+            return mImage.getHeight();
+        } else if (mBitmap != null) {
+            return mBitmap.getHeight();
+        } else {
+            return mRegionDecoder.getHeight();
+        }
+    }
+
+    /**
+     * Returns true if it should be shown by {@link RegionDrawable},
+     * which decodes the visible region at the shown scale.
+     */
+    public boolean isRegionDecodable() {
+        return mRegionDecoder != null;
     }
 
-    public void render(int srcX, int srcY, Bitmap dst, int dstX, int dstY,
+    /**
+     * Decodes the region with the sample size. Only for region decodable image.
+     * It could be called in any thread.
+     *
+     * @return null if recycled or failed
+     */
+    @Nullable
+    public synchronized Bitmap decodeRegion(@NonNull Rect rect, int sampleSize) {
+        if (isRecycled() || mRegionDecoder == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        try {
+            return mRegionDecoder.decodeRegion(rect, options);
+        } catch (OutOfMemoryError | IllegalArgumentException e) {
+            Log.e(TAG, "Can't decode region " + rect, e);
+            return null;
+        }
+    }
+
+    /**
+     * Renders current frame. It could be called in any thread.
+     */
+    public synchronized void render(int srcX, int srcY, Bitmap dst, int dstX, int dstY,
             int width, int height, boolean fillBlank, int defaultColor) {
-        mImage.render(srcX, srcY, dst, dstX, dstY,
-                width, height, fillBlank, defaultColor);
+        if (isRecycled()) {
+            return;
+        }
+
+        if (mImage != null) {
+            mImage.render(srcX, srcY, dst, dstX, dstY,
+                    width, height, fillBlank, defaultColor);
+            return;
+        }
+        // Copy pixels, not blend with the old content of dst
+        Bitmap src = mBitmap;
+        Canvas canvas = new Canvas(dst);
+        Rect dstRect = new Rect(dstX, dstY, dstX + width, dstY + height);
+        if (fillBlank) {
+            canvas.save();
+            canvas.clipRect(dstRect);
+            canvas.drawColor(defaultColor, PorterDuff.Mode.SRC);
+            canvas.restore();
+        }
+        Rect srcRect = new Rect(srcX, srcY, srcX + width, srcY + height);
+        if (srcRect.intersect(0, 0, getWidth(), getHeight())) {
+            int left = dstX + srcRect.left - srcX;
+            int top = dstY + srcRect.top - srcY;
+            dstRect.set(left, top, left + srcRect.width(), top + srcRect.height());
+            if (mRegionDecoder != null) {
+                // Full size region, RegionDrawable is the better way to show it
+                src = decodeRegion(srcRect, 1);
+                if (src == null) {
+                    return;
+                }
+                srcRect.offsetTo(0, 0);
+            }
+            canvas.drawBitmap(src, srcRect, dstRect, SRC_PAINT);
+            if (src != mBitmap) {
+                src.recycle();
+            }
+        }
     }
 
     public int getFrameCount() {
-        return mImage.getFrameCount();
+        return mImage != null ? mImage.getFrameCount() : 1;
     }
 
     public void recycle() {
         stop();
-        mImage.recycle();
+        synchronized (this) {
+            mRecycled = true;
+            if (mImage != null) {
+                mImage.recycle();
+            } else if (mBitmap != null) {
+                mBitmap.recycle();
+            } else {
+                mRegionDecoder.recycle();
+            }
+        }
     }
 
     public boolean isRecycled() {
-        return mImage.isRecycled();
+        return mRecycled;
     }
 
     public boolean isLarge() {
-        return mImage.getWidth() * mImage.getHeight() > 512 * 512;
+        return mRegionDecoder != null || getWidth() * getHeight() > 512 * 512;
     }
 
     public void addCallback(@NonNull Callback callback) {
+        synchronized (mCallbackSet) {
+            addCallbackLocked(callback);
+        }
+    }
+
+    private void addCallbackLocked(@NonNull Callback callback) {
         final Iterator<WeakReference<Callback>> iterator = mCallbackSet.iterator();
         Callback c;
         while (iterator.hasNext()) {
@@ -92,6 +266,12 @@ public class ImageWrapper implements Animatable, Runnable {
     }
 
     public void removeCallback(@NonNull Callback callback) {
+        synchronized (mCallbackSet) {
+            removeCallbackLocked(callback);
+        }
+    }
+
+    private void removeCallbackLocked(@NonNull Callback callback) {
         final Iterator<WeakReference<Callback>> iterator = mCallbackSet.iterator();
         Callback c;
         while (iterator.hasNext()) {
@@ -109,19 +289,27 @@ public class ImageWrapper implements Animatable, Runnable {
 
     @Override
     public void start() {
-        if (mImage.isRecycled() || mImage.getFrameCount() <= 1 || mRunning) {
+        if (mImage == null || isRecycled() || mImage.getFrameCount() <= 1 || mRunning) {
             return;
         }
 
         mRunning = true;
+        mPaused = false;
+        mGeneration++;
 
-        SimpleHandler.getInstance().postDelayed(this, Math.max(0, mImage.getDelay()));
+        // Current frame is shown, render the next one
+        mDeadline = SystemClock.uptimeMillis() + Math.max(0, mImage.getDelay());
+        getRenderHandler().post(mRenderTask);
     }
 
     @Override
     public void stop() {
         mRunning = false;
-        SimpleHandler.getInstance().removeCallbacks(this);
+        mPaused = false;
+        mGeneration++;
+        SimpleHandler.getInstance().removeCallbacks(mReadyTask);
+        getRenderHandler().removeCallbacks(mRenderTask);
+        AnimationClock.getInstance().remove(this);
     }
 
     @Override
@@ -129,52 +317,135 @@ public class ImageWrapper implements Animatable, Runnable {
         return mRunning;
     }
 
-    private boolean notifyUpdate() {
-        boolean hasCallback = false;
-        final Iterator<WeakReference<Callback>> iterator = mCallbackSet.iterator();
-        Callback callback;
-        while (iterator.hasNext()) {
-            callback = iterator.next().get();
-            if (callback != null) {
-                hasCallback = true;
-                callback.renderImage(this);
-                callback.invalidateImage(this);
-            } else {
-                // Remove from the set if the reference has been cleared or
-                // it can't be used.
-                iterator.remove();
+    private List<Callback> getCallbacks() {
+        List<Callback> callbacks = new ArrayList<>();
+        synchronized (mCallbackSet) {
+            final Iterator<WeakReference<Callback>> iterator = mCallbackSet.iterator();
+            Callback callback;
+            while (iterator.hasNext()) {
+                callback = iterator.next().get();
+                if (callback != null) {
+                    callbacks.add(callback);
+                } else {
+                    // Remove from the set if the reference has been cleared or
+                    // it can't be used.
+                    iterator.remove();
+                }
             }
         }
-        return hasCallback;
+        return callbacks;
     }
 
-    @Override
-    public void run() {
-        //Log.i(TAG, this + " run");
-
-        // Check recycled
-        if (mImage.isRecycled()) {
-            mRunning = false;
+    // In render thread
+    private void renderNextFrame() {
+        int generation = mGeneration;
+        if (!mRunning) {
             return;
         }
 
-        mImage.advance();
-
-        if (notifyUpdate()) {
-            if (mRunning) {
-                SimpleHandler.getInstance().postDelayed(this, Math.max(0, mImage.getDelay()));
+        synchronized (this) {
+            // Check recycled
+            if (mRecycled) {
+                mRunning = false;
+                return;
             }
-        } else {
+            mImage.advance();
+            mNextDelay = mImage.getDelay();
+        }
+
+        List<Callback> callbacks = getCallbacks();
+        if (callbacks.isEmpty()) {
             // No callback ? Stop now
             Log.w(TAG, "No callback");
             mRunning = false;
+            return;
+        }
+        for (int i = 0, n = callbacks.size(); i < n; i++) {
+            callbacks.get(i).renderImage(this);
+        }
+
+        if (mRunning && generation == mGeneration) {
+            mReadyGeneration = generation;
+            SimpleHandler.getInstance().post(mReadyTask);
+        }
+    }
+
+    // In main thread
+    private void onFrameReady() {
+        if (mRunning && mReadyGeneration == mGeneration) {
+            AnimationClock.getInstance().add(this);
+        }
+    }
+
+    /**
+     * Returns the time to show the rendered frame.
+     */
+    long getDeadline() {
+        return mDeadline;
+    }
+
+    private boolean hasVisibleCallback() {
+        List<Callback> callbacks = getCallbacks();
+        for (int i = 0, n = callbacks.size(); i < n; i++) {
+            if (callbacks.get(i).isImageVisible(this)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shows the rendered frame, and starts rendering the next one.
+     * If no callback is visible, it pauses until one is.
+     * Called by {@link AnimationClock} in main thread.
+     */
+    void showFrame(long now) {
+        if (!mRunning) {
+            return;
+        }
+
+        if (!hasVisibleCallback()) {
+            mPaused = true;
+            return;
+        }
+
+        List<Callback> callbacks = getCallbacks();
+        for (int i = 0, n = callbacks.size(); i < n; i++) {
+            callbacks.get(i).invalidateImage(this);
+        }
+
+        mDeadline = now + Math.max(0, mNextDelay);
+        getRenderHandler().post(mRenderTask);
+    }
+
+    /**
+     * Callbacks call it when they become visible, to resume the paused animation.
+     */
+    public void onCallbackVisible() {
+        if (mRunning && mPaused) {
+            mPaused = false;
+            // The rendered frame is still there, show it now
+            mDeadline = SystemClock.uptimeMillis();
+            AnimationClock.getInstance().add(this);
         }
     }
 
     public interface Callback {
 
+        /**
+         * Renders the next frame to back buffer. Called in render thread.
+         */
         void renderImage(ImageWrapper who);
 
+        /**
+         * Shows the rendered frame. Called in main thread.
+         */
         void invalidateImage(ImageWrapper who);
+
+        /**
+         * Returns false if the callback is off screen or detached,
+         * animation is paused when no callback is visible. Called in main thread.
+         */
+        boolean isImageVisible(ImageWrapper who);
     }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.drawable;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+
+import com.hippo.yorozuya.SimpleHandler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Shows a region decodable {@link ImageWrapper}. A subsampled base layer
+ * of the whole image is always drawn, tiles of the visible region
+ * are decoded at the shown scale on top of it.
+ * <p>
+ * The shown scale is set by {@link #setScale(float)}.
+ * Only used in main thread, decoding is in a background thread.
+ */
+public class RegionDrawable extends Drawable {
+
+    // Size of tile bitmaps
+    private static final int TILE_SIZE = 512;
+    // Tiles this close to the clip are decoded and kept
+    private static final int TILE_MARGIN = TILE_SIZE / 2;
+    // Limits of the base layer bitmap
+    private static final int BASE_MAX_PIXELS = 1024 * 1024;
+    private static final int BASE_MAX_SIDE = 4096;
+
+    private static Handler sDecodeHandler;
+
+    private static synchronized Handler getDecodeHandler() {
+        if (sDecodeHandler == null) {
+            HandlerThread thread = new HandlerThread("RegionDecoder",
+                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sDecodeHandler = new Handler(thread.getLooper());
+        }
+        return sDecodeHandler;
+    }
+
+    private final ImageWrapper mImageWrapper;
+    private final Paint mPaint;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final int mBaseSampleSize;
+    private Bitmap mBase;
+
+    private float mScale = 1.0f;
+    private final List<Tile> mTiles = new ArrayList<>();
+
+    private final Rect mClipRect = new Rect();
+    private final Rect mDstRect = new Rect();
+
+    private boolean mRecycled;
+
+    private class Tile implements Runnable {
+        // Region in image
+        final Rect rect = new Rect();
+        final int sampleSize;
+        volatile boolean canceled;
+        Bitmap bitmap;
+
+        Tile(int left, int top, int right, int bottom, int sampleSize) {
+            rect.set(left, top, right, bottom);
+            this.sampleSize = sampleSize;
+        }
+
+        // In decode thread
+        @Override
+        public void run() {
+            if (canceled) {
+                return;
+            }
+            final Bitmap bitmap = mImageWrapper.decodeRegion(rect, sampleSize);
+            if (bitmap == null) {
+                return;
+            }
+            SimpleHandler.getInstance().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (canceled || mRecycled) {
+                        bitmap.recycle();
+                    } else {
+                        Tile.this.bitmap = bitmap;
+                        invalidateSelf();
+                    }
+                }
+            });
+        }
+    }
+
+    public RegionDrawable(@NonNull ImageWrapper imageWrapper) {
+        mImageWrapper = imageWrapper;
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mWidth = imageWrapper.getWidth();
+        mHeight = imageWrapper.getHeight();
+        mBaseSampleSize = getBaseSampleSize(mWidth, mHeight);
+        decodeBase();
+    }
+
+    private static int getBaseSampleSize(int width, int height) {
+        int sampleSize = 1;
+        while ((width / sampleSize) * (height / sampleSize) > BASE_MAX_PIXELS ||
+                Math.max(width, height) / sampleSize > BASE_MAX_SIDE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void decodeBase() {
+        final Rect rect = new Rect(0, 0, mWidth, mHeight);
+        getDecodeHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = mImageWrapper.decodeRegion(rect, mBaseSampleSize);
+                if (bitmap == null) {
+                    return;
+                }
+                SimpleHandler.getInstance().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mRecycled) {
+                            bitmap.recycle();
+                        } else {
+                            mBase = bitmap;
+                            invalidateSelf();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sets the scale the image is shown at, screen pixels per image pixel.
+     */
+    public void setScale(float scale) {
+        if (scale > 0.0f && mScale != scale) {
+            mScale = scale;
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * Returns the largest power of two sample size which is still sharp at the scale.
+     */
+    private int getTileSampleSize() {
+        int sampleSize = 1;
+        while (sampleSize * 2 * mScale <= 1.0f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas) {
+        if (mRecycled) {
+            return;
+        }
+
+        Rect bounds = getBounds();
+        if (bounds.isEmpty()) {
+            return;
+        }
+
+        // Draw in image coordinates
+        int saved = canvas.save();
+        canvas.translate(bounds.left, bounds.top);
+        canvas.scale((float) bounds.width() / mWidth, (float) bounds.height() / mHeight);
+
+        if (mBase != null) {
+            mDstRect.set(0, 0, mWidth, mHeight);
+            canvas.drawBitmap(mBase, null, mDstRect, mPaint);
+        }
+
+        Rect clip = mClipRect;
+        if (canvas.getClipBounds(clip)) {
+            updateTiles(clip);
+            for (int i = 0, n = mTiles.size(); i < n; i++) {
+                Tile tile = mTiles.get(i);
+                if (tile.bitmap != null && Rect.intersects(tile.rect, clip)) {
+                    canvas.drawBitmap(tile.bitmap, null, tile.rect, mPaint);
+                }
+            }
+        }
+
+        canvas.restoreToCount(saved);
+    }
+
+    /**
+     * Drops the tiles of other scales or far from clip,
+     * and decodes the missing tiles around clip.
+     */
+    private void updateTiles(Rect clip) {
+        int sampleSize = getTileSampleSize();
+        // Base layer is sharp enough
+        boolean needTiles = sampleSize < mBaseSampleSize;
+
+        int tileSize = TILE_SIZE * sampleSize;
+        int margin = TILE_MARGIN * sampleSize;
+        int keepLeft = Math.max(0, clip.left - margin);
+        int keepTop = Math.max(0, clip.top - margin);
+        int keepRight = Math.min(mWidth, clip.right + margin);
+        int keepBottom = Math.min(mHeight, clip.bottom + margin);
+
+        for (Iterator<Tile> iterator = mTiles.iterator(); iterator.hasNext();) {
+            Tile tile = iterator.next();
+            if (!needTiles || tile.sampleSize != sampleSize ||
+                    tile.rect.left >= keepRight || tile.rect.right <= keepLeft ||
+                    tile.rect.top >= keepBottom || tile.rect.bottom <= keepTop) {
+                iterator.remove();
+                releaseTile(tile);
+            }
+        }
+
+        if (!needTiles || keepLeft >= keepRight || keepTop >= keepBottom) {
+            return;
+        }
+
+        // Grid aligned to tile size
+        int startX = keepLeft / tileSize * tileSize;
+        int startY = keepTop / tileSize * tileSize;
+        for (int y = startY; y < keepBottom; y += tileSize) {
+            for (int x = startX; x < keepRight; x += tileSize) {
+                if (findTile(x, y) == null) {
+                    Tile tile = new Tile(x, y, Math.min(mWidth, x + tileSize),
+                            Math.min(mHeight, y + tileSize), sampleSize);
+                    mTiles.add(tile);
+                    getDecodeHandler().post(tile);
+                }
+            }
+        }
+    }
+
+    private Tile findTile(int x, int y) {
+        for (int i = 0, n = mTiles.size(); i < n; i++) {
+            Tile tile = mTiles.get(i);
+            if (tile.rect.left == x && tile.rect.top == y) {
+                return tile;
+            }
+        }
+        return null;
+    }
+
+    private static void releaseTile(Tile tile) {
+        tile.canceled = true;
+        getDecodeHandler().removeCallbacks(tile);
+        if (tile.bitmap != null) {
+            tile.bitmap.recycle();
+            tile.bitmap = null;
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    /**
+     * Frees the bitmaps. The image wrapper is not recycled.
+     */
+    public void recycle() {
+        mRecycled = true;
+        for (int i = 0, n = mTiles.size(); i < n; i++) {
+            releaseTile(mTiles.get(i));
+        }
+        mTiles.clear();
+        if (mBase != null) {
+            mBase.recycle();
+            mBase = null;
+        }
+    }
+}
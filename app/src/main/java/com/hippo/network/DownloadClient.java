@@ -19,9 +19,10 @@ package com.hippo.network;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
-import com.hippo.io.UniFileOutputStreamPipe;
 import com.hippo.unifile.UniFile;
 import com.hippo.yorozuya.FileUtils;
+import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.PriorityThreadFactory;
 import com.hippo.yorozuya.StringUtils;
 import com.hippo.yorozuya.Utilities;
 import com.hippo.yorozuya.io.OutputStreamPipe;
@@ -29,30 +30,70 @@ import com.hippo.yorozuya.io.OutputStreamPipe;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
+/**
+ * Downloads a url to a file in a dir, or to an output stream pipe.
+ * <p>
+ * To a dir, data is written to a {@code .download} file first. It is kept
+ * if the download fails with an IO error, the next download of the same
+ * filename resumes it with a range request. Large files can be downloaded
+ * by several connections, see {@link DownloadRequest#setMaxConnections(int)}.
+ * Segments except the first one are written to {@code .download.N} files,
+ * they are appended to the {@code .download} file at last.
+ */
 public class DownloadClient {
 
-    private static long transferData(InputStream in, OutputStream out, OnDownloadListener listener)
-            throws Exception {
-        final byte data[] = new byte[1024 * 4];
+    private static final String TAG = DownloadClient.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // A segment is no smaller than it
+    private static final long SEGMENT_MIN_SIZE = 1024 * 1024;
+    private static final int MAX_CONNECTIONS = 4;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new PriorityThreadFactory(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND));
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @param limit the max bytes to transfer, -1 for no limit
+     */
+    private static long transferData(InputStream in, OutputStream out, long limit, Progress progress)
+            throws IOException {
+        final byte data[] = new byte[BUFFER_SIZE];
         long receivedSize = 0;
 
-        while (true) {
-            int bytesRead = in.read(data);
+        while (limit < 0 || receivedSize < limit) {
+            int length = limit < 0 ? data.length : (int) Math.min(data.length, limit - receivedSize);
+            int bytesRead = in.read(data, 0, length);
             if (bytesRead == -1) {
                 break;
             }
             out.write(data, 0, bytesRead);
             receivedSize += bytesRead;
-            if (listener != null) {
-                listener.onDonwlad(receivedSize, bytesRead);
-            }
+            progress.onReceived(bytesRead);
         }
 
         out.flush();
@@ -81,22 +122,249 @@ public class DownloadClient {
         return null;
     }
 
-    public static boolean execute(DownloadRequest request) {
-        OnDownloadListener listener = request.mListener;
-        OkHttpClient okHttpClient = request.mOkHttpClient;
+    /**
+     * Parses {@code bytes start-end/total}, total is -1 if it is {@code *}.
+     */
+    private static long[] parseContentRange(String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+
+        String str = contentRange.trim();
+        if (!str.startsWith("bytes")) {
+            return null;
+        }
+        str = str.substring("bytes".length()).trim();
+        int dash = str.indexOf('-');
+        int slash = str.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
 
-        UniFile uniFile = null;
-        OutputStreamPipe osPipe = null;
         try {
-            Call call = okHttpClient.newCall(new Request.Builder().url(request.mUrl).build());
-            request.mCall = call;
+            long start = Long.parseLong(str.substring(0, dash).trim());
+            long end = Long.parseLong(str.substring(dash + 1, slash).trim());
+            String totalStr = str.substring(slash + 1).trim();
+            long total = "*".equals(totalStr) ? -1 : Long.parseLong(totalStr);
+            return new long[] {start, end, total};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
+    private static String fixFilename(DownloadRequest request, Response response) {
+        String extension;
+        String name;
+
+        String dispositionFilename = getFilenameFromContentDisposition(response.header("Content-Disposition"));
+        if (dispositionFilename != null) {
+            name = FileUtils.getNameFromFilename(dispositionFilename);
+            extension = FileUtils.getExtensionFromFilename(dispositionFilename);
+        } else {
+            name = Utilities.getNameFromUrl(request.mUrl);
+            extension = Utilities.getExtensionFromMimeType(response.header("Content-Type"));
+            if (extension == null) {
+                extension = MimeTypeMap.getFileExtensionFromUrl(request.mUrl);
+            }
+        }
+
+        if (request.mListener != null) {
+            return request.mListener.onFixname(name, extension, request.mFilename);
+        } else {
+            return request.mFilename;
+        }
+    }
+
+    /**
+     * The temp filename must be known before connecting to find the partial file,
+     * so it is from the request, not from the response.
+     */
+    private static String getTempFilename(DownloadRequest request) {
+        String name = request.mFilename;
+        if (name == null) {
+            name = Utilities.getNameFromUrl(request.mUrl);
+        }
+        if (name == null) {
+            name = Integer.toHexString(request.mUrl.hashCode());
+        }
+        return FileUtils.sanitizeFilename(name + ".download");
+    }
+
+    /**
+     * @param end the last byte, inclusive, -1 for the end of the file
+     */
+    private static Response requestRange(DownloadRequest request, long start, long end)
+            throws IOException {
+        Request.Builder builder = new Request.Builder().url(request.mUrl);
+        if (start > 0 || end >= 0) {
+            builder.header("Range", "bytes=" + start + "-" + (end >= 0 ? Long.toString(end) : ""));
+        }
+        Call call = request.mOkHttpClient.newCall(builder.build());
+        request.addCall(call);
+        return call.execute();
+    }
+
+    private static void deleteParts(UniFile dir, String tempFilename) {
+        for (int i = 1; i < MAX_CONNECTIONS; i++) {
+            UniFile part = dir.findFile(tempFilename + "." + i);
+            if (part != null) {
+                part.delete();
+            }
+        }
+    }
+
+    /**
+     * Splits the file to segments. The first one is the temp file.
+     *
+     * @param offset the length of the temp file
+     */
+    private static List<Segment> getSegments(DownloadRequest request, UniFile temp, String tempFilename,
+            long total, long offset, boolean acceptRanges) throws IOException {
+        int count = 1;
+        if (acceptRanges && total > 0) {
+            count = (int) Math.max(1, Math.min(Math.min(request.mMaxConnections, MAX_CONNECTIONS),
+                    total / SEGMENT_MIN_SIZE));
+        }
+        long segmentSize = count > 1 ? (total + count - 1) / count : total;
+        // The temp file is longer than the first segment,
+        // the last download was done by one connection
+        if (count > 1 && offset > segmentSize) {
+            count = 1;
+            segmentSize = total;
+        }
+
+        List<Segment> segments = new ArrayList<>(count);
+        segments.add(new Segment(0, segmentSize, temp));
+        if (count == 1) {
+            deleteParts(request.mDir, tempFilename);
+            return segments;
+        }
+
+        for (int i = 1; i < count; i++) {
+            String name = tempFilename + "." + i;
+            long start = i * segmentSize;
+            long end = Math.min(start + segmentSize, total);
+            UniFile part = request.mDir.findFile(name);
+            if (part != null && part.length() > end - start) {
+                // Not from the same layout
+                part.delete();
+                part = null;
+            }
+            if (part == null) {
+                part = request.mDir.createFile(name);
+            }
+            if (part == null) {
+                throw new IOException("Can't create file " + name);
+            }
+            segments.add(new Segment(start, end, part));
+        }
+        return segments;
+    }
+
+    private static void mergeSegments(List<Segment> segments) throws IOException {
+        if (segments.size() == 1) {
+            return;
+        }
+
+        OutputStream os = null;
+        try {
+            os = segments.get(0).file.openOutputStream(true);
+            for (int i = 1, n = segments.size(); i < n; i++) {
+                UniFile part = segments.get(i).file;
+                InputStream is = null;
+                try {
+                    is = part.openInputStream();
+                    IOUtils.copy(is, os);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+            }
+            os.flush();
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+
+        // Only delete parts after all are appended, a broken merge
+        // is resumed by one connection from the end of the temp file
+        for (int i = 1, n = segments.size(); i < n; i++) {
+            segments.get(i).file.delete();
+        }
+    }
+
+    private static void waitFor(List<Future<Void>> futures) throws Exception {
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for all futures to end, ignores their results.
+     */
+    private static void awaitQuietly(List<Future<Void>> futures) {
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the partial files kept to resume the download to a dir.
+     */
+    public static void deleteTempFiles(DownloadRequest request) {
+        if (request.mDir == null) {
+            return;
+        }
+        String tempFilename = getTempFilename(request);
+        UniFile temp = request.mDir.findFile(tempFilename);
+        if (temp != null) {
+            temp.delete();
+        }
+        deleteParts(request.mDir, tempFilename);
+    }
+
+    public static boolean execute(DownloadRequest request) {
+        if (request.mOSPipe != null) {
+            return executeToPipe(request);
+        } else {
+            return executeToDir(request);
+        }
+    }
+
+    private static boolean executeToPipe(DownloadRequest request) {
+        OnDownloadListener listener = request.mListener;
+        OutputStreamPipe osPipe = request.mOSPipe;
+        Response response = null;
+        try {
             // Listener
             if (listener != null) {
                 listener.onStartDownloading();
             }
 
-            Response response = call.execute();
+            response = requestRange(request, 0, -1);
             ResponseBody body = response.body();
 
             // Check response code
@@ -105,60 +373,162 @@ public class DownloadClient {
                 throw new ResponseCodeException(responseCode);
             }
 
-            osPipe = request.mOSPipe;
-            if (osPipe == null) {
-                String extension;
-                String name;
+            osPipe.obtain();
 
-                String dispositionFilename = getFilenameFromContentDisposition(response.header("Content-Disposition"));
-                if (dispositionFilename != null) {
-                    name = FileUtils.getNameFromFilename(dispositionFilename);
-                    extension = FileUtils.getExtensionFromFilename(dispositionFilename);
-                } else {
-                    name = Utilities.getNameFromUrl(request.mUrl);
-                    extension = Utilities.getExtensionFromMimeType(response.header("Content-Type"));
-                    if (extension == null) {
-                        extension = MimeTypeMap.getFileExtensionFromUrl(request.mUrl);
-                    }
-                }
+            long contentLength = body.contentLength();
 
-                String filename;
-                if (listener != null) {
-                    filename = listener.onFixname(name, extension, request.mFilename);
-                } else {
-                    filename = request.mFilename;
+            // Listener
+            if (listener != null) {
+                listener.onConnect(contentLength);
+            }
+
+            long receivedSize = transferData(body.byteStream(), osPipe.open(), -1,
+                    new Progress(listener, 0));
+
+            if (contentLength > 0 && contentLength != receivedSize) {
+                throw new IOException("contentLength is " + contentLength + ", but receivedSize is " + receivedSize);
+            }
+
+            // Listener
+            if (listener != null) {
+                listener.onSucceed();
+            }
+            return true;
+        } catch (Exception e) {
+            if (listener != null) {
+                listener.onFailed(e);
+            }
+            return false;
+        } finally {
+            if (response != null) {
+                response.body().close();
+            }
+            osPipe.close();
+            osPipe.release();
+            request.clearCalls();
+        }
+    }
+
+    private static boolean executeToDir(DownloadRequest request) {
+        OnDownloadListener listener = request.mListener;
+        UniFile dir = request.mDir;
+        String tempFilename = getTempFilename(request);
+
+        UniFile temp = null;
+        Response response = null;
+        OutputStream os = null;
+        try {
+            // Listener
+            if (listener != null) {
+                listener.onStartDownloading();
+            }
+
+            temp = dir.findFile(tempFilename);
+            long offset = temp != null ? temp.length() : 0;
+            response = requestRange(request, offset, -1);
+
+            // Check response code
+            int responseCode = response.code();
+            if (responseCode == 416 && offset > 0) {
+                // The partial file doesn't match the file on server
+                response.body().close();
+                temp.delete();
+                temp = null;
+                offset = 0;
+                deleteParts(dir, tempFilename);
+                response = requestRange(request, 0, -1);
+                responseCode = response.code();
+            }
+            if (responseCode >= 400) {
+                throw new ResponseCodeException(responseCode);
+            }
+
+            final long total;
+            final boolean acceptRanges;
+            if (responseCode == 206) {
+                long[] range = parseContentRange(response.header("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    throw new IOException("Request range from " + offset + ", but get " +
+                            response.header("Content-Range"));
+                }
+                total = range[2];
+                acceptRanges = true;
+            } else {
+                // Range is not supported, download from start
+                if (offset > 0) {
+                    offset = 0;
+                    deleteParts(dir, tempFilename);
                 }
-                request.mFilename = filename;
+                total = response.body().contentLength();
+                acceptRanges = "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+            }
 
-                // Use Temp filename
-                uniFile = request.mDir.createFile(FileUtils.sanitizeFilename(filename + ".download"));
-                if (uniFile == null) {
+            // Keep request filename, the temp filename is from it
+            String filename = fixFilename(request, response);
+
+            if (temp == null) {
+                temp = dir.createFile(tempFilename);
+                if (temp == null) {
                     // Listener
                     if (listener != null) {
                         listener.onFailed(new IOException("Can't create file " + filename));
                     }
                     return false;
                 }
-                osPipe = new UniFileOutputStreamPipe(uniFile);
             }
-            osPipe.obtain();
-
-            long contentLength = body.contentLength();
 
             // Listener
             if (listener != null) {
-                listener.onConnect(contentLength);
+                listener.onConnect(total);
             }
 
-            long receivedSize = transferData(body.byteStream(), osPipe.open(), listener);
+            List<Segment> segments = getSegments(request, temp, tempFilename, total, offset, acceptRanges);
+            long receivedSize = offset;
+            for (int i = 1, n = segments.size(); i < n; i++) {
+                receivedSize += segments.get(i).file.length();
+            }
+            Progress progress = new Progress(listener, receivedSize);
 
-            if (contentLength > 0 && contentLength != receivedSize) {
-                throw new IOException("contentLength is " + contentLength + ", but receivedSize is " + receivedSize);
+            // Other segments are downloaded in other threads
+            List<Future<Void>> futures = new ArrayList<>(segments.size() - 1);
+            for (int i = 1, n = segments.size(); i < n; i++) {
+                futures.add(getExecutor().submit(new SegmentTask(request, segments.get(i), progress)));
+            }
+
+            try {
+                // The first segment takes the response
+                Segment first = segments.get(0);
+                long limit = first.end >= 0 ? first.end - offset : -1;
+                if (limit != 0) {
+                    // Overwrite it if it is not resumed
+                    os = temp.openOutputStream(offset > 0);
+                    transferData(response.body().byteStream(), os, limit, progress);
+                    os.close();
+                    os = null;
+                }
+                response.body().close();
+                response = null;
+                if (first.end >= 0 && temp.length() != first.end) {
+                    throw new IOException("Expect " + first.end + " bytes, but get " + temp.length());
+                }
+
+                waitFor(futures);
+            } catch (Exception e) {
+                // Stop other segments, downloaded data is kept.
+                // Wait for them, the files can't be touched until they end.
+                request.cancelCalls();
+                awaitQuietly(futures);
+                throw e;
+            }
+
+            mergeSegments(segments);
+            if (total >= 0 && temp.length() != total) {
+                throw new IOException("contentLength is " + total + ", but receivedSize is " + temp.length());
             }
 
             // Rename
-            if (uniFile != null && request.mFilename != null) {
-                uniFile.renameTo(request.mFilename);
+            if (filename != null) {
+                temp.renameTo(filename);
             }
 
             // Listener
@@ -167,9 +537,12 @@ public class DownloadClient {
             }
             return true;
         } catch (Exception e) {
-            // remove download failed file
-            if (uniFile != null) {
-                uniFile.delete();
+            // Keep the partial file to resume, except the file is not there
+            if (e instanceof ResponseCodeException) {
+                if (temp != null) {
+                    temp.delete();
+                }
+                deleteParts(dir, tempFilename);
             }
 
             if (listener != null) {
@@ -177,9 +550,92 @@ public class DownloadClient {
             }
             return false;
         } finally {
-            if (osPipe != null) {
-                osPipe.close();
-                osPipe.release();
+            IOUtils.closeQuietly(os);
+            if (response != null) {
+                response.body().close();
+            }
+            request.clearCalls();
+        }
+    }
+
+    private static class Segment {
+
+        public final long start;
+        // Exclusive, -1 for unknown
+        public final long end;
+        public final UniFile file;
+
+        public Segment(long start, long end, UniFile file) {
+            this.start = start;
+            this.end = end;
+            this.file = file;
+        }
+    }
+
+    private static class SegmentTask implements Callable<Void> {
+
+        private final DownloadRequest mRequest;
+        private final Segment mSegment;
+        private final Progress mProgress;
+
+        public SegmentTask(DownloadRequest request, Segment segment, Progress progress) {
+            mRequest = request;
+            mSegment = segment;
+            mProgress = progress;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            long size = mSegment.end - mSegment.start;
+            long done = mSegment.file.length();
+            if (done >= size) {
+                return null;
+            }
+
+            Response response = requestRange(mRequest, mSegment.start + done, mSegment.end - 1);
+            OutputStream os = null;
+            try {
+                int responseCode = response.code();
+                if (responseCode >= 400) {
+                    throw new ResponseCodeException(responseCode);
+                }
+                long[] range = parseContentRange(response.header("Content-Range"));
+                if (responseCode != 206 || range == null || range[0] != mSegment.start + done) {
+                    throw new IOException("Request range from " + (mSegment.start + done) +
+                            ", but get " + response.header("Content-Range"));
+                }
+
+                os = mSegment.file.openOutputStream(true);
+                transferData(response.body().byteStream(), os, size - done, mProgress);
+            } finally {
+                IOUtils.closeQuietly(os);
+                response.body().close();
+            }
+
+            if (mSegment.file.length() != size) {
+                throw new IOException("Expect " + size + " bytes, but get " + mSegment.file.length());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Sums the bytes received by all segments, the listener is called by one thread at a time.
+     */
+    private static class Progress {
+
+        private final OnDownloadListener mListener;
+        private long mReceivedSize;
+
+        public Progress(OnDownloadListener listener, long receivedSize) {
+            mListener = listener;
+            mReceivedSize = receivedSize;
+        }
+
+        public synchronized void onReceived(int size) {
+            mReceivedSize += size;
+            if (mListener != null) {
+                mListener.onDonwlad(mReceivedSize, size);
             }
         }
     }
@@ -18,6 +18,10 @@ package com.hippo.network;
 
 import com.hippo.unifile.UniFile;
 import com.hippo.yorozuya.io.OutputStreamPipe;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
 
@@ -29,8 +33,13 @@ public class DownloadRequest {
     String mFilename;
     OutputStreamPipe mOSPipe;
     DownloadClient.OnDownloadListener mListener;
+    int mMaxConnections = 1;
 
-    Call mCall;
+    // Guarded by this
+    private final List<Call> mCalls = new ArrayList<>(1);
+    private boolean mCancelled;
+    // Calls of the current attempt are cancelled, reset when the attempt ends
+    private boolean mCallsCancelled;
 
     public void setOkHttpClient(OkHttpClient okHttpClient) {
         mOkHttpClient = okHttpClient;
@@ -56,9 +65,37 @@ public class DownloadRequest {
         mListener = listener;
     }
 
-    public void cancel() {
-        if (mCall != null) {
-            mCall.cancel();
+    /**
+     * Large files are downloaded in ranges by at most max connections
+     * if the server supports. Default is 1.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    synchronized void addCall(Call call) {
+        if (mCancelled || mCallsCancelled) {
+            call.cancel();
+        } else {
+            mCalls.add(call);
         }
     }
+
+    synchronized void cancelCalls() {
+        mCallsCancelled = true;
+        for (Call call : mCalls) {
+            call.cancel();
+        }
+        mCalls.clear();
+    }
+
+    synchronized void clearCalls() {
+        mCallsCancelled = false;
+        mCalls.clear();
+    }
+
+    public synchronized void cancel() {
+        mCancelled = true;
+        cancelCalls();
+    }
 }
@@ -122,6 +122,18 @@ public class NMBAppConfig {
         }
     }
 
+    /**
+     * Compressed gifs to upload, by content hash.
+     */
+    public static @Nullable File getGifCacheDir() {
+        File dir = new File(sContext.getCacheDir(), "gif");
+        if (FileUtils.ensureDirectory(dir)) {
+            return dir;
+        } else {
+            return null;
+        }
+    }
+
     private static @Nullable File getRecordImageDir() {
         File temp = sContext.getDir("record", 0);
         if (FileUtils.ensureDirectory(temp)) {
@@ -24,26 +24,34 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Resources;
 import android.net.ConnectivityManager;
+import android.os.AsyncTask;
 import android.os.Debug;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.alibaba.fastjson.JSON;
 import com.hippo.conaco.Conaco;
+import com.hippo.drawable.ImageDrawable;
 import com.hippo.drawable.ImageWrapper;
+import com.hippo.nimingban.client.NMBCacheInterceptor;
 import com.hippo.nimingban.client.NMBClient;
 import com.hippo.nimingban.client.NMBDns;
 import com.hippo.nimingban.client.NMBRequest;
+import com.hippo.nimingban.client.ac.ACUrl;
 import com.hippo.nimingban.client.ac.data.ACCdnPath;
 import com.hippo.nimingban.client.data.ACSite;
+import com.hippo.nimingban.client.NMBCdnInterceptor;
 import com.hippo.nimingban.client.NMBInterceptor;
 import com.hippo.nimingban.network.HttpCookieDB;
 import com.hippo.nimingban.network.HttpCookieWithId;
 import com.hippo.nimingban.network.SimpleCookieStore;
+import com.hippo.nimingban.service.DownloadService;
 import com.hippo.nimingban.util.BitmapUtils;
 import com.hippo.nimingban.util.Crash;
 import com.hippo.nimingban.util.DB;
+import com.hippo.nimingban.util.ImageCacheStats;
 import com.hippo.nimingban.util.ReadableTime;
 import com.hippo.nimingban.util.ResImageGetter;
 import com.hippo.nimingban.util.Settings;
@@ -67,6 +75,8 @@ import java.net.URL;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.Cache;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 
 public final class NMBApplication extends Application
@@ -78,13 +88,28 @@ public final class NMBApplication extends Application
 
     private static final String AC_CDN_PATH_FILENAME = "ac_cdn_path";
 
+    private static final long HTTP_CACHE_MAX_SIZE = 10 * 1024 * 1024; // 10MB
+    private static final int THUMB_CACHE_MAX_SIZE = 40 * 1024 * 1024; // 40MB
+    private static final int IMAGE_CACHE_MAX_SIZE = 120 * 1024 * 1024; // 120MB
+    private static final int SIMPLE_IMAGE_CACHE_MAX_SIZE = 5 * 1024 * 1024; // 5MB
+    private static final String THUMB_CACHE_OLD_DIR = "thumb_old";
+
     private Thread.UncaughtExceptionHandler mDefaultHandler;
 
     private SimpleCookieStore mSimpleCookieStore;
     private NMBClient mNMBClient;
     private Conaco<ImageWrapper> mConaco;
+    private Conaco<ImageWrapper> mImageConaco;
+    private Conaco<ImageWrapper> mSimpleImageConaco;
+    private ImageCacheStats mThumbCacheStats;
+    private ImageCacheStats mImageCacheStats;
     private ImageWrapperHelper mImageWrapperHelper;
+    private ImageWrapperHelper mGalleryImageWrapperHelper;
+    private ImageWrapperHelper mThumbImageWrapperHelper;
     private OkHttpClient mOkHttpClient;
+    private OkHttpClient mApiOkHttpClient;
+    private NMBCacheInterceptor mCacheInterceptor;
+    private NMBDns mDns;
 
     private boolean mConnectedWifi;
 
@@ -118,6 +143,10 @@ public final class NMBApplication extends Application
             @Override
             public void onReceive(Context context, Intent intent) {
                 updateNetworkState(context);
+                // Addresses may be different in the new network
+                getNMBDns(context).clear();
+                // Cdn latency of another network means nothing
+                ACSite.getInstance().clearCdnHealth();
             }
         }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
 
@@ -140,7 +169,47 @@ public final class NMBApplication extends Application
     }
 
     private void start() {
+        splitImageCache();
+        updateImageCacheStats(this);
         updateACCdnPath();
+        // Continue downloads killed with last process
+        DownloadService.resume(this);
+    }
+
+    // Full images were in thumb cache before they got their own cache.
+    // It is too slow to pick them out, drop the whole old thumb cache.
+    private void splitImageCache() {
+        if (Settings.getImageCacheSplit()) {
+            return;
+        }
+
+        final File old = new File(getCacheDir(), THUMB_CACHE_OLD_DIR);
+        new File(getCacheDir(), "thumb").renameTo(old);
+        Settings.putImageCacheSplit(true);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileUtils.deleteContent(old);
+                old.delete();
+            }
+        });
+    }
+
+    /**
+     * Reads occupancy of image caches in background.
+     */
+    public static void updateImageCacheStats(@NonNull Context context) {
+        final ImageCacheStats thumbCacheStats = getThumbCacheStats(context);
+        final ImageCacheStats imageCacheStats = getImageCacheStats(context);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                thumbCacheStats.update();
+                imageCacheStats.update();
+                Log.i(TAG, thumbCacheStats.toString());
+                Log.i(TAG, imageCacheStats.toString());
+            }
+        });
     }
 
     private void readACCdnPathFromFile() {
@@ -171,9 +240,17 @@ public final class NMBApplication extends Application
         }
     }
 
+    // Resolve hosts ahead, the first requests don't wait for dns
+    private void prefetchACHosts() {
+        NMBDns dns = getNMBDns(this);
+        dns.prefetch(ACUrl.DOMAIN);
+        dns.prefetch(ACSite.getInstance().getCdnHosts());
+    }
+
     private void updateACCdnPath() {
         // First read cdn path from file
         readACCdnPathFromFile();
+        prefetchACHosts();
 
         NMBRequest request = new NMBRequest();
         request.setSite(ACSite.getInstance());
@@ -183,6 +260,7 @@ public final class NMBApplication extends Application
             public void onSuccess(List<ACCdnPath> result) {
                 ACSite.getInstance().setCdnPath(result);
                 writeACCdnPathToFile(result);
+                prefetchACHosts();
             }
 
             @Override
@@ -253,6 +331,8 @@ public final class NMBApplication extends Application
             if (mConaco != null) {
                 mConaco.clearMemoryCache();
             }
+            ImageDrawable.getBitmapPool().clear();
+            updateImageCacheStats(this);
         }
     }
 
@@ -289,6 +369,9 @@ public final class NMBApplication extends Application
                 Math.round(0.2f * activityManager.getMemoryClass() * 1024 * 1024));
     }
 
+    /**
+     * The conaco for thumbnails. Images are decoded to the size of thumbnail views.
+     */
     @NonNull
     public static Conaco<ImageWrapper> getConaco(@NonNull Context context) {
         NMBApplication application = ((NMBApplication) context.getApplicationContext());
@@ -297,15 +380,78 @@ public final class NMBApplication extends Application
             builder.hasMemoryCache = true;
             builder.memoryCacheMaxSize = getMemoryCacheMaxSize(context);
             builder.hasDiskCache = true;
-            builder.diskCacheDir = new File(context.getCacheDir(), "thumb");
-            builder.diskCacheMaxSize = 80 * 1024 * 1024; // 80MB
+            builder.diskCacheDir = getThumbCacheStats(context).getDir();
+            builder.diskCacheMaxSize = THUMB_CACHE_MAX_SIZE;
             builder.okHttpClient = getOkHttpClient(context);
-            builder.objectHelper = getImageWrapperHelper(context);
+            builder.objectHelper = getThumbImageWrapperHelper(context);
             application.mConaco = builder.build();
         }
         return application.mConaco;
     }
 
+    /**
+     * The conaco for full size images in gallery. It has its own disk cache,
+     * so a few large images don't evict lots of thumbnails.
+     * Full images are not kept in memory cache, very large ones are region decoded.
+     */
+    @NonNull
+    public static Conaco<ImageWrapper> getImageConaco(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mImageConaco == null) {
+            Conaco.Builder<ImageWrapper> builder = new Conaco.Builder<>();
+            builder.hasMemoryCache = false;
+            builder.hasDiskCache = true;
+            builder.diskCacheDir = getImageCacheStats(context).getDir();
+            builder.diskCacheMaxSize = IMAGE_CACHE_MAX_SIZE;
+            builder.okHttpClient = getOkHttpClient(context);
+            builder.objectHelper = getGalleryImageWrapperHelper(context);
+            application.mImageConaco = builder.build();
+        }
+        return application.mImageConaco;
+    }
+
+    /**
+     * The conaco for full size images out of gallery, like the header image
+     * and images in forum notice. They are few and shown again and again,
+     * a small disk cache keeps them, not evicted by gallery images.
+     * Images are never region decoded, they are drawn by {@link com.hippo.drawable.ImageDrawable}.
+     */
+    @NonNull
+    public static Conaco<ImageWrapper> getSimpleImageConaco(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mSimpleImageConaco == null) {
+            Conaco.Builder<ImageWrapper> builder = new Conaco.Builder<>();
+            builder.hasMemoryCache = false;
+            builder.hasDiskCache = true;
+            builder.diskCacheDir = new File(context.getCacheDir(), "simple_image");
+            builder.diskCacheMaxSize = SIMPLE_IMAGE_CACHE_MAX_SIZE;
+            builder.okHttpClient = getOkHttpClient(context);
+            builder.objectHelper = getImageWrapperHelper(context);
+            application.mSimpleImageConaco = builder.build();
+        }
+        return application.mSimpleImageConaco;
+    }
+
+    @NonNull
+    public static ImageCacheStats getThumbCacheStats(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mThumbCacheStats == null) {
+            application.mThumbCacheStats = new ImageCacheStats("thumb",
+                    new File(context.getCacheDir(), "thumb"), THUMB_CACHE_MAX_SIZE);
+        }
+        return application.mThumbCacheStats;
+    }
+
+    @NonNull
+    public static ImageCacheStats getImageCacheStats(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mImageCacheStats == null) {
+            application.mImageCacheStats = new ImageCacheStats("image",
+                    new File(context.getCacheDir(), "image"), IMAGE_CACHE_MAX_SIZE);
+        }
+        return application.mImageCacheStats;
+    }
+
     @NonNull
     public static ImageWrapperHelper getImageWrapperHelper(@NonNull Context context) {
         NMBApplication application = ((NMBApplication) context.getApplicationContext());
@@ -315,21 +461,89 @@ public final class NMBApplication extends Application
         return application.mImageWrapperHelper;
     }
 
+    /**
+     * The helper for gallery, very large images are region decoded.
+     */
+    @NonNull
+    public static ImageWrapperHelper getGalleryImageWrapperHelper(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mGalleryImageWrapperHelper == null) {
+            application.mGalleryImageWrapperHelper = new ImageWrapperHelper(true);
+        }
+        return application.mGalleryImageWrapperHelper;
+    }
+
+    /**
+     * The helper for thumbnails, it decodes images to the size of thumbnail views.
+     */
+    @NonNull
+    public static ImageWrapperHelper getThumbImageWrapperHelper(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mThumbImageWrapperHelper == null) {
+            Resources resources = context.getResources();
+            application.mThumbImageWrapperHelper = new ImageWrapperHelper(
+                    resources.getDimensionPixelSize(R.dimen.list_thumb_width),
+                    resources.getDimensionPixelSize(R.dimen.list_thumb_height));
+        }
+        return application.mThumbImageWrapperHelper;
+    }
+
+    @NonNull
+    public static NMBDns getNMBDns(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mDns == null) {
+            application.mDns = new NMBDns();
+        }
+        return application.mDns;
+    }
+
     public static OkHttpClient getOkHttpClient(@NonNull Context context) {
         NMBApplication application = ((NMBApplication) context.getApplicationContext());
         if (application.mOkHttpClient == null) {
+            Dispatcher dispatcher = new Dispatcher();
             application.mOkHttpClient = new OkHttpClient.Builder()
+                    .dispatcher(dispatcher)
                     .connectTimeout(15, TimeUnit.SECONDS)
                     .readTimeout(15, TimeUnit.SECONDS)
                     .writeTimeout(15, TimeUnit.SECONDS)
-                    .dns(new NMBDns())
+                    .dns(getNMBDns(context))
                     .cookieJar(new CookieDBJar(getSimpleCookieStore(context)))
+                    .addInterceptor(new NMBCdnInterceptor(dispatcher))
                     .addInterceptor(new NMBInterceptor())
                     .build();
         }
         return application.mOkHttpClient;
     }
 
+    /**
+     * The client for api requests. It shares connections with {@link #getOkHttpClient(Context)},
+     * but has a http cache. Images are not in it, they are cached by {@link Conaco}.
+     */
+    public static OkHttpClient getApiOkHttpClient(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mApiOkHttpClient == null) {
+            NMBCacheInterceptor cacheInterceptor = getCacheInterceptor(context);
+            application.mApiOkHttpClient = getOkHttpClient(context).newBuilder()
+                    .cache(new Cache(new File(context.getCacheDir(), "http"), HTTP_CACHE_MAX_SIZE))
+                    .addInterceptor(cacheInterceptor)
+                    .addNetworkInterceptor(cacheInterceptor.getNetworkInterceptor())
+                    .build();
+            cacheInterceptor.setOkHttpClient(application.mApiOkHttpClient);
+        }
+        return application.mApiOkHttpClient;
+    }
+
+    /**
+     * Keeps hit, miss and revalidation counts of the api http cache.
+     */
+    public static NMBCacheInterceptor getCacheInterceptor(@NonNull Context context) {
+        NMBApplication application = ((NMBApplication) context.getApplicationContext());
+        if (application.mCacheInterceptor == null) {
+            application.mCacheInterceptor = new NMBCacheInterceptor();
+        }
+        return application.mCacheInterceptor;
+    }
+
     @Override
     public void uncaughtException(Thread thread, Throwable ex) {
         if (!handleException(ex) && mDefaultHandler != null) {
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client;
+
+import android.util.Log;
+
+import com.hippo.nimingban.client.ac.ACUrl;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.CacheControl;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Application interceptor for the api client with a {@link okhttp3.Cache}.
+ * <p>
+ * Endpoints in {@link #POLICIES} get a freshness if the server gives no cache headers,
+ * see {@link #getNetworkInterceptor()}. A stale response within the stale-while-revalidate
+ * window is returned at once, and the cache is revalidated in background.
+ * Hit, miss and revalidation are counted.
+ */
+public class NMBCacheInterceptor implements Interceptor {
+
+    private static final String TAG = NMBCacheInterceptor.class.getSimpleName();
+
+    private static final String HOST_HEROKU = "nimingban.herokuapp.com";
+
+    private static final int MINUTE = 60;
+    private static final int HOUR = 60 * MINUTE;
+    private static final int DAY = 24 * HOUR;
+
+    private static final Policy[] POLICIES = {
+            // Forum list and cdn path rarely change
+            new Policy(ACUrl.DOMAIN, "/Api/getForumList", HOUR, 7 * DAY),
+            new Policy(HOST_HEROKU, "/get_image_cdn_path", HOUR, 7 * DAY),
+            new Policy(HOST_HEROKU, "/common_posts", 10 * MINUTE, DAY),
+            // Forum pages and thread pages are only reused for a very short time,
+            // conditional revalidation still saves the body if server supports it
+            new Policy(ACUrl.DOMAIN, "/Api/showf", 5, 0),
+            new Policy(ACUrl.DOMAIN, "/Api/timeline", 5, 0),
+            new Policy(ACUrl.DOMAIN, "/Api/thread", 5, 0),
+    };
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mStaleHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mRevalidationCount = new AtomicInteger();
+
+    private final Set<String> mRevalidating = new HashSet<>();
+    private OkHttpClient mOkHttpClient;
+
+    private static Policy getPolicy(HttpUrl url) {
+        String host = url.host();
+        String path = url.encodedPath();
+        for (Policy policy : POLICIES) {
+            if (policy.host.equals(host) && path.startsWith(policy.path)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the client which has this interceptor, it is used to revalidate in background.
+     */
+    public void setOkHttpClient(OkHttpClient okHttpClient) {
+        mOkHttpClient = okHttpClient;
+    }
+
+    /**
+     * Returns the network interceptor which sets freshness of the response
+     * if server gives no cache headers.
+     */
+    public Interceptor getNetworkInterceptor() {
+        return NETWORK_INTERCEPTOR;
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Stale responses returned in stale-while-revalidate window,
+     * they are also counted in {@link #getHitCount()}.
+     */
+    public int getStaleHitCount() {
+        return mStaleHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    public int getRevalidationCount() {
+        return mRevalidationCount.get();
+    }
+
+    /**
+     * Removes cached responses of the api, which have the query parameter.
+     * Like all pages of a thread after a reply. Don't call it in UI thread.
+     */
+    public static void remove(Cache cache, String path, String name, String value) {
+        if (cache == null || value == null) {
+            return;
+        }
+        try {
+            Iterator<String> urls = cache.urls();
+            while (urls.hasNext()) {
+                HttpUrl url = HttpUrl.parse(urls.next());
+                if (url != null && ACUrl.DOMAIN.equals(url.host()) &&
+                        url.encodedPath().startsWith(path) && value.equals(url.queryParameter(name))) {
+                    urls.remove();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't remove " + path + " " + value + " from cache", e);
+        }
+    }
+
+    private void count(Response response) {
+        if (response.networkResponse() == null) {
+            if (response.cacheResponse() != null) {
+                mHitCount.incrementAndGet();
+            }
+        } else if (response.cacheResponse() != null) {
+            mRevalidationCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+    }
+
+    private static boolean isStale(Response response) {
+        for (String warning : response.headers("Warning")) {
+            // 110 Response is stale
+            if (warning.startsWith("110")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void revalidate(Request request) {
+        final OkHttpClient client = mOkHttpClient;
+        if (client == null) {
+            return;
+        }
+
+        final String key = request.url().toString();
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(key)) {
+                // It is revalidating
+                return;
+            }
+        }
+
+        // max-age=0 lets cache do conditional request
+        Request revalidateRequest = request.newBuilder()
+                .cacheControl(new CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build())
+                .build();
+        client.newCall(revalidateRequest).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                synchronized (mRevalidating) {
+                    mRevalidating.remove(key);
+                }
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                try {
+                    // Read it all to write it to cache
+                    response.body().source().skip(Long.MAX_VALUE);
+                } catch (IOException e) {
+                    // Ignore
+                } finally {
+                    response.body().close();
+                    synchronized (mRevalidating) {
+                        mRevalidating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Policy policy;
+        CacheControl cacheControl = request.cacheControl();
+
+        // Only plain get without cache control from caller
+        if (!"GET".equals(request.method()) || cacheControl.noCache() ||
+                cacheControl.maxAgeSeconds() != -1 || cacheControl.onlyIfCached() ||
+                (policy = getPolicy(request.url())) == null) {
+            Response response = chain.proceed(request);
+            count(response);
+            return response;
+        }
+
+        if (policy.staleWhileRevalidate > 0) {
+            Request cacheRequest = request.newBuilder()
+                    .cacheControl(new CacheControl.Builder()
+                            .onlyIfCached()
+                            .maxStale(policy.staleWhileRevalidate, TimeUnit.SECONDS)
+                            .build())
+                    .build();
+            Response response = chain.proceed(cacheRequest);
+            if (response.isSuccessful()) {
+                mHitCount.incrementAndGet();
+                if (isStale(response)) {
+                    Log.d(TAG, "Stale " + request.url());
+                    mStaleHitCount.incrementAndGet();
+                    revalidate(request);
+                }
+                return response;
+            }
+            // 504 for not in cache
+            response.body().close();
+        }
+
+        Response response = chain.proceed(request);
+        count(response);
+        return response;
+    }
+
+    private static final Interceptor NETWORK_INTERCEPTOR = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            Response response = chain.proceed(request);
+            Policy policy = getPolicy(request.url());
+            if (policy == null || !response.isSuccessful() ||
+                    response.header("Cache-Control") != null || response.header("Expires") != null) {
+                return response;
+            }
+            return response.newBuilder()
+                    .removeHeader("Pragma")
+                    .header("Cache-Control", "max-age=" + policy.maxAge)
+                    .build();
+        }
+    };
+
+    private static class Policy {
+        public final String host;
+        public final String path;
+        public final int maxAge;
+        public final int staleWhileRevalidate;
+
+        public Policy(String host, String path, int maxAge, int staleWhileRevalidate) {
+            this.host = host;
+            this.path = path;
+            this.maxAge = maxAge;
+            this.staleWhileRevalidate = staleWhileRevalidate;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.hippo.nimingban.client.data.ACSite;
+import com.hippo.yorozuya.Utilities;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.Call;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Reports latency and failures of picture fetches to {@link ACSite},
+ * and tries the picture on another cdn if one fails.
+ * <p>
+ * It must be the first interceptor of the client, so the request it gets
+ * is the request of the call, to find the call in the dispatcher.
+ */
+public class NMBCdnInterceptor implements Interceptor {
+
+    private static final String TAG = NMBCdnInterceptor.class.getSimpleName();
+
+    private static final int MAX_FAILOVERS = 2;
+
+    private final Dispatcher mDispatcher;
+
+    public NMBCdnInterceptor(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Chain doesn't expose the call in this OkHttp, find it by the request.
+     */
+    private boolean isCanceled(Request request) {
+        List<Call> calls = mDispatcher.runningCalls();
+        for (int i = 0, n = calls.size(); i < n; i++) {
+            Call call = calls.get(i);
+            if (call.request() == request) {
+                return call.isCanceled();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request callRequest = chain.request();
+        Request request = callRequest;
+        ACSite site = ACSite.getInstance();
+        if (!"GET".equals(request.method()) ||
+                !Utilities.contain(site.getCdnHosts(), request.url().host())) {
+            return chain.proceed(request);
+        }
+
+        Set<String> tried = new HashSet<>();
+        for (int i = 0; ; i++) {
+            String url = request.url().toString();
+            long start = SystemClock.uptimeMillis();
+            Response response = null;
+            IOException exception = null;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                // Canceled calls, like thumbnails scrolled away, are not the fault of cdn
+                if (isCanceled(callRequest)) {
+                    throw e;
+                }
+                exception = e;
+            }
+
+            if (response != null && response.isSuccessful()) {
+                site.onPictureSuccess(url, SystemClock.uptimeMillis() - start);
+                return response;
+            }
+            // 4xx may be a picture not synced to the cdn yet, try another one, but cdn is fine
+            if (response == null || response.code() >= 500) {
+                site.onPictureFailure(url);
+            }
+
+            String failoverUrl = i < MAX_FAILOVERS ? site.getFailoverPictureUrl(url, tried) : null;
+            HttpUrl httpUrl = failoverUrl != null ? HttpUrl.parse(failoverUrl) : null;
+            if (httpUrl == null) {
+                if (exception != null) {
+                    throw exception;
+                }
+                return response;
+            }
+
+            Log.d(TAG, "Fail over from " + url + " to " + failoverUrl);
+            if (response != null) {
+                response.body().close();
+            }
+            request = request.newBuilder().url(httpUrl).build();
+        }
+    }
+}
@@ -18,22 +18,33 @@ package com.hippo.nimingban.client;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.Pair;
 
 import com.alibaba.fastjson.JSON;
 import com.hippo.nimingban.NMBApplication;
 import com.hippo.nimingban.client.ac.ACEngine;
+import com.hippo.nimingban.client.ac.ACUrl;
+import com.hippo.nimingban.client.ac.data.ACPost;
 import com.hippo.nimingban.client.ac.data.ACPostStruct;
 import com.hippo.nimingban.client.ac.data.ACReplyStruct;
+import com.hippo.nimingban.client.data.Post;
+import com.hippo.nimingban.client.data.Reply;
 import com.hippo.nimingban.client.data.Site;
+import com.hippo.nimingban.util.DB;
+import com.hippo.nimingban.util.Settings;
 import com.hippo.yorozuya.PriorityThreadFactory;
 import com.hippo.yorozuya.SimpleHandler;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
@@ -78,70 +89,284 @@ public class NMBClient {
 
     public static final int METHOD_GET_CDN_PATH = 11;
 
-    private final ThreadPoolExecutor mRequestThreadPool;
+    private static final String HOST_NOTICE = "cover.acfunwiki.org";
+    private static final String HOST_HEROKU = "nimingban.herokuapp.com";
+    private static final String HOST_CONVERT = "opencc.herokuapp.com";
+    private static final String HOST_DISC = "disc";
+
+    private static final int MAX_RUNNING = 3;
+    private static final int MAX_BACKGROUND_RUNNING = 1;
+    private static final int MAX_HOST_RUNNING = 3;
+
+    private static final int MEMO_SIZE = 20;
+
+    // Milliseconds between two upload progress updates
+    private static final long PROGRESS_INTERVAL = 200;
+
+    private final NMBScheduler mScheduler;
     private final OkHttpClient mOkHttpClient;
 
+    private final Map<String, Task> mInFlight = new HashMap<>();
+    private final LruCache<String, MemoEntry> mMemo = new LruCache<>(MEMO_SIZE);
+    private long mMemoTtl;
+
     public NMBClient(Context context) {
-        int poolSize = 3;
-        BlockingQueue<Runnable> requestWorkQueue = new LinkedBlockingQueue<>();
         ThreadFactory threadFactory = new PriorityThreadFactory(TAG,
                 android.os.Process.THREAD_PRIORITY_BACKGROUND);
-        mRequestThreadPool = new ThreadPoolExecutor(poolSize, poolSize,
-                1L, TimeUnit.SECONDS, requestWorkQueue, threadFactory);
-        mOkHttpClient = NMBApplication.getOkHttpClient(context);
+        mScheduler = new NMBScheduler(MAX_RUNNING, MAX_BACKGROUND_RUNNING,
+                MAX_HOST_RUNNING, threadFactory);
+        mOkHttpClient = NMBApplication.getApiOkHttpClient(context);
+        mMemoTtl = Settings.getRequestMemoTtl();
+    }
+
+    private static int getPriority(int method) {
+        switch (method) {
+            case METHOD_NOTICE:
+            case METHOD_UPDATE:
+                return NMBScheduler.PRIORITY_BACKGROUND;
+            case METHOD_COMMON_POSTS:
+            case METHOD_GET_FORUM_LIST:
+            case METHOD_GET_CDN_PATH:
+                return NMBScheduler.PRIORITY_NORMAL;
+            default:
+                return NMBScheduler.PRIORITY_INTERACTIVE;
+        }
+    }
+
+    private static String getHost(int method) {
+        switch (method) {
+            case METHOD_NOTICE:
+                return HOST_NOTICE;
+            case METHOD_UPDATE:
+            case METHOD_COMMON_POSTS:
+            case METHOD_GET_CDN_PATH:
+                return HOST_HEROKU;
+            case METHOD_CONVERT:
+                return HOST_CONVERT;
+            case METHOD_DISC:
+                return HOST_DISC;
+            default:
+                return ACUrl.DOMAIN;
+        }
+    }
+
+    /**
+     * Set how long a parsed result is reused, 0 or negative to disable it.
+     */
+    public void setMemoTtl(long ttl) {
+        mMemoTtl = ttl;
+        if (ttl <= 0) {
+            mMemo.evictAll();
+        }
+    }
+
+    private static boolean isCoalescable(int method) {
+        switch (method) {
+            case METHOD_NOTICE:
+            case METHOD_UPDATE:
+            case METHOD_GET_FORUM_LIST:
+            case METHOD_COMMON_POSTS:
+            case METHOD_GET_CDN_PATH:
+            case METHOD_GET_POST_LIST:
+            case METHOD_GET_POST:
+            case METHOD_GET_REFERENCE:
+            case METHOD_GET_FEED:
+            case METHOD_SEARCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isMemoizable(int method) {
+        switch (method) {
+            case METHOD_GET_POST_LIST:
+            case METHOD_GET_POST:
+            case METHOD_GET_REFERENCE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reply and create post change the threads, the memo is out of date.
+     */
+    private static boolean isInvalidating(int method) {
+        return method == METHOD_REPLY || method == METHOD_CREATE_POST;
     }
 
-    public void execute(NMBRequest request) {
-        if (!request.isCancelled()) {
-            Task task = new Task(request.method, request.site, request.callback);
-            task.executeOnExecutor(mRequestThreadPool, request.args);
-            request.task = task;
-        } else {
+    private static String getKey(NMBRequest request) {
+        if (!isCoalescable(request.method)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(request.method).append(':');
+        sb.append(request.site == null ? -1 : request.site.getId());
+        sb.append(':').append(Arrays.toString(request.args));
+        return sb.toString();
+    }
+
+    /**
+     * The callbacks might modify the list in result,
+     * every callback gets its own copy.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copyResult(Object result) {
+        if (result instanceof Pair) {
+            Pair pair = (Pair) result;
+            if (pair.second instanceof List) {
+                return new Pair(pair.first, new ArrayList((List) pair.second));
+            }
+        } else if (result instanceof List) {
+            return new ArrayList((List) result);
+        }
+        return result;
+    }
+
+    private Object getMemo(String key) {
+        if (mMemoTtl <= 0) {
+            return null;
+        }
+        MemoEntry entry = mMemo.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.time > mMemoTtl) {
+            mMemo.remove(key);
+            return null;
+        }
+        return entry.result;
+    }
+
+    /**
+     * Should be called in UI thread.
+     */
+    public void execute(final NMBRequest request) {
+        if (request.isCancelled()) {
             request.callback.onCancel();
+            return;
         }
+
+        String key = getKey(request);
+        if (key != null) {
+            // Use recently parsed result
+            final Object memo = isMemoizable(request.method) && !request.ignoreMemo ? getMemo(key) : null;
+            if (memo != null) {
+                SimpleHandler.getInstance().post(new Runnable() {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public void run() {
+                        if (!request.isCancelled()) {
+                            request.callback.onSuccess(copyResult(memo));
+                        }
+                    }
+                });
+                return;
+            }
+
+            // Join the same request in flight, a refresh only joins another refresh
+            Task task = mInFlight.get(key);
+            if (task != null && (!request.ignoreMemo || task.mNoCache) &&
+                    task.addCallback(request.callback)) {
+                request.task = task;
+                return;
+            }
+        }
+
+        Task task = new Task(request.method, request.site, request.callback, key, request.ignoreMemo);
+        if (key != null) {
+            mInFlight.put(key, task);
+        }
+        task.executeOnExecutor(task.mExecutor, request.args);
+        request.task = task;
     }
 
-    public class Task extends AsyncTask<Object, Void, Object> {
+    private static class MemoEntry {
+        public final Object result;
+        public final long time;
+
+        public MemoEntry(Object result, long time) {
+            this.result = result;
+            this.time = time;
+        }
+    }
+
+    public class Task extends AsyncTask<Object, Long, Object> implements UploadRequestBody.Listener {
 
         private int mMethod;
         private Site mSite;
-        private Callback mCallback;
+        private final List<Callback> mCallbacks = new ArrayList<>(1);
         private Call mCall;
+        private final String mKey;
+        private final String mHost;
+        private final NMBScheduler.JobExecutor mExecutor;
+        // Skip the http cache too
+        private final boolean mNoCache;
 
         private boolean mStop;
 
-        public Task(int method, Site site, Callback callback) {
+        // Only touched in the thread of the call
+        private long mLastProgressTime;
+
+        public Task(int method, Site site, Callback callback, String key, boolean noCache) {
             mMethod = method;
             mSite = site;
-            mCallback = callback;
+            mCallbacks.add(callback);
+            mKey = key;
+            mHost = getHost(method);
+            mExecutor = mScheduler.newExecutor(getPriority(method), mHost);
+            mNoCache = noCache;
+        }
+
+        boolean addCallback(Callback callback) {
+            if (mStop || getStatus() == Status.FINISHED) {
+                return false;
+            }
+            mCallbacks.add(callback);
+            return true;
+        }
+
+        /**
+         * Detach the callback. The task is stopped
+         * when no callback is waiting for it.
+         */
+        public void stop(Callback callback) {
+            if (mStop || !mCallbacks.remove(callback)) {
+                return;
+            }
+
+            final Callback finalCallback = callback;
+            SimpleHandler.getInstance().post(new Runnable() {
+                @Override
+                public void run() {
+                    finalCallback.onCancel();
+                }
+            });
+
+            if (mCallbacks.isEmpty()) {
+                stop();
+            }
         }
 
-        public void stop() {
+        private void stop() {
             if (!mStop) {
                 mStop = true;
 
-                if (mCallback != null) {
-                    final Callback finalCallback = mCallback;
-                    SimpleHandler.getInstance().post(new Runnable() {
-                        @Override
-                        public void run() {
-                            finalCallback.onCancel();
-                        }
-                    });
+                if (mKey != null && mInFlight.get(mKey) == this) {
+                    mInFlight.remove(mKey);
                 }
 
-                Status status = getStatus();
-                if (status == Status.PENDING) {
-                    cancel(false);
-                } else if (status == Status.RUNNING) {
-                    if (mCall != null) {
-                        mCall.cancel();
-                    }
+                // Leave the queue if it is not started yet,
+                // doInBackground is skipped if it is not started.
+                mScheduler.remove(mExecutor.getJob());
+                cancel(false);
+                if (mCall != null) {
+                    mCall.cancel();
                 }
 
                 // Clear
                 mCall = null;
-                mCallback = null;
             }
         }
 
@@ -193,7 +418,7 @@ public class NMBClient {
         private Object getPostList(Object... params) throws Exception {
             switch (mSite.getId()) {
                 case Site.AC:
-                    Call call = ACEngine.prepareGetPostList(mOkHttpClient, (String) params[0], (Integer) params[1]);
+                    Call call = ACEngine.prepareGetPostList(mOkHttpClient, (String) params[0], (Integer) params[1], mNoCache);
                     if (!mStop) {
                         mCall = call;
                         return ACEngine.doGetPostList(call);
@@ -208,10 +433,17 @@ public class NMBClient {
         private Object getPost(Object... params) throws Exception {
             switch (mSite.getId()) {
                 case Site.AC:
-                    Call call = ACEngine.prepareGetPost(mOkHttpClient, (String) params[0], (Integer) params[1]);
+                    Call call = ACEngine.prepareGetPost(mOkHttpClient, (String) params[0], (Integer) params[1], mNoCache);
                     if (!mStop) {
                         mCall = call;
-                        return ACEngine.doGetPost(call);
+                        Pair<Post, List<Reply>> result = ACEngine.doGetPost(call);
+                        // Keep snapshot for next cold open
+                        try {
+                            DB.putACThreadPage((ACPost) result.first, (Integer) params[1]);
+                        } catch (Exception e) {
+                            Log.w(TAG, "Can't store thread snapshot", e);
+                        }
+                        return result;
                     } else {
                         throw new CancelledException();
                     }
@@ -238,11 +470,16 @@ public class NMBClient {
         private Object reply(Object... params) throws Exception {
             switch (mSite.getId()) {
                 case Site.AC:
-                    Call call = ACEngine.prepareReply(mOkHttpClient, (ACReplyStruct) params[0]);
+                    ACReplyStruct struct = (ACReplyStruct) params[0];
+                    Call call = ACEngine.prepareReply(mOkHttpClient, struct, this);
                     if (!mStop) {
                         mCall = call;
-                        return ACEngine.doReply(call);
+                        Object result = ACEngine.doReply(call);
+                        // The thread is reloaded to show the reply
+                        NMBCacheInterceptor.remove(mOkHttpClient.cache(), "/Api/thread", "id", struct.resto);
+                        return result;
                     } else {
+                        ACEngine.deleteUploadFile(call);
                         throw new CancelledException();
                     }
                 default:
@@ -299,11 +536,16 @@ public class NMBClient {
         private Object createPost(Object... params) throws Exception {
             switch (mSite.getId()) {
                 case Site.AC:
-                    Call call = ACEngine.prepareCreatePost(mOkHttpClient, (ACPostStruct) params[0]);
+                    ACPostStruct struct = (ACPostStruct) params[0];
+                    Call call = ACEngine.prepareCreatePost(mOkHttpClient, struct, this);
                     if (!mStop) {
                         mCall = call;
-                        return ACEngine.doCreatePost(call);
+                        Object result = ACEngine.doCreatePost(call);
+                        // The forum is reloaded to show the post
+                        NMBCacheInterceptor.remove(mOkHttpClient.cache(), "/Api/showf", "id", struct.fid);
+                        return result;
                     } else {
+                        ACEngine.deleteUploadFile(call);
                         throw new CancelledException();
                     }
                 default:
@@ -341,8 +583,7 @@ public class NMBClient {
             }
         }
 
-        @Override
-        protected Object doInBackground(Object... params) {
+        private Object doRequest(Object... params) {
             try {
                 switch (mMethod) {
                     case METHOD_NOTICE: {
@@ -415,24 +656,67 @@ public class NMBClient {
             }
         }
 
+        @Override
+        protected Object doInBackground(Object... params) {
+            Object result = doRequest(params);
+            if (!mStop) {
+                // Only network failure makes the host less concurrent
+                mScheduler.reportResult(mHost, !(result instanceof IOException));
+            }
+            return result;
+        }
+
+        @Override
+        public void onProgress(long sent, long total) {
+            long now = SystemClock.uptimeMillis();
+            if (sent == total || now - mLastProgressTime >= PROGRESS_INTERVAL) {
+                mLastProgressTime = now;
+                publishProgress(sent, total);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            if (mStop) {
+                return;
+            }
+            for (Callback callback : mCallbacks) {
+                if (callback instanceof ProgressCallback) {
+                    ((ProgressCallback) callback).onProgress(values[0], values[1]);
+                }
+            }
+        }
+
         @SuppressWarnings("unchecked")
         @Override
         protected void onPostExecute(Object result) {
-            if (mCallback != null) {
-                if (!(result instanceof CancelledException)) {
-                    if (result instanceof Exception) {
-                        mCallback.onFailure((Exception) result);
-                    } else {
-                        mCallback.onSuccess(result);
+            if (mKey != null && mInFlight.get(mKey) == this) {
+                mInFlight.remove(mKey);
+            }
+
+            if (!(result instanceof CancelledException)) {
+                if (result instanceof Exception) {
+                    for (Callback callback : mCallbacks) {
+                        callback.onFailure((Exception) result);
                     }
                 } else {
-                    // onCancel is called in stop
+                    if (mKey != null && isMemoizable(mMethod) && mMemoTtl > 0) {
+                        // Callbacks might modify the result, keep a copy of its own
+                        mMemo.put(mKey, new MemoEntry(copyResult(result), SystemClock.elapsedRealtime()));
+                    } else if (isInvalidating(mMethod)) {
+                        mMemo.evictAll();
+                    }
+                    for (int i = 0, n = mCallbacks.size(); i < n; i++) {
+                        mCallbacks.get(i).onSuccess(i == 0 ? result : copyResult(result));
+                    }
                 }
+            } else {
+                // onCancel is called in stop
             }
 
             // Clear
             mCall = null;
-            mCallback = null;
+            mCallbacks.clear();
         }
     }
 
@@ -444,4 +728,16 @@ public class NMBClient {
 
         void onCancel();
     }
+
+    /**
+     * A callback which is told how many bytes of the request body are sent.
+     * Only reply and create post report it.
+     */
+    public interface ProgressCallback<E> extends Callback<E> {
+
+        /**
+         * Called in main thread. It is throttled, but the last one is always reported.
+         */
+        void onProgress(long sent, long total);
+    }
 }
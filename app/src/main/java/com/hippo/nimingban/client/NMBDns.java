@@ -16,29 +16,70 @@
 
 package com.hippo.nimingban.client;
 
+import android.os.SystemClock;
+
+import com.hippo.yorozuya.PriorityThreadFactory;
+
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import okhttp3.Dns;
 
+/**
+ * A {@link Dns} with a positive and negative cache.
+ * <p>
+ * Lookups run on a small pool, so the same host is only looked up once at a time.
+ * A cached host is refreshed in background when it is about to expire.
+ * For hosts with a pinned address, the system resolver gets a short head start,
+ * the pinned address is used if it fails or is too slow.
+ */
 public class NMBDns implements Dns {
 
+    private static final String TAG = NMBDns.class.getSimpleName();
+
     private static final String DOMAIN_AC = "h.nimingban.com";
     private static final byte[] IP_AC = {(byte)60, (byte) 190, (byte) 217, (byte) 150};
 
-    private static final List<InetAddress> DNS_AC;
+    private static final long POSITIVE_TTL = 5 * 60 * 1000; // 5 min
+    private static final long NEGATIVE_TTL = 10 * 1000; // 10 s
+    private static final long REFRESH_AHEAD = 60 * 1000; // 1 min
+    // The time the system resolver has before the pinned address is used
+    private static final long PINNED_DELAY = 1000; // 1 s
+
+    private static final int MAX_THREADS = 4;
+
+    private static final Map<String, List<InetAddress>> PINNED = new HashMap<>();
 
     static {
-        List<InetAddress> dnsAC = new ArrayList<>();
         try {
-            dnsAC.add(InetAddress.getByAddress(DOMAIN_AC, IP_AC));
+            PINNED.put(DOMAIN_AC, Collections.singletonList(InetAddress.getByAddress(DOMAIN_AC, IP_AC)));
         } catch (UnknownHostException e) {
-            dnsAC = null;
+            // Ignore
         }
-        DNS_AC = dnsAC;
+    }
+
+    private final Map<String, Entry> mCache = new HashMap<>();
+    private final Map<String, FutureTask<List<InetAddress>>> mLookups = new HashMap<>();
+    private final ThreadPoolExecutor mExecutor;
+
+    public NMBDns() {
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new PriorityThreadFactory(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
@@ -46,13 +87,141 @@ public class NMBDns implements Dns {
         if (hostname == null) {
             throw new UnknownHostException("hostname == null");
         }
+
+        List<InetAddress> pinned = PINNED.get(hostname);
+        FutureTask<List<InetAddress>> task;
+        synchronized (this) {
+            Entry entry = mCache.get(hostname);
+            long now = SystemClock.elapsedRealtime();
+            if (entry != null && now < entry.expire) {
+                if (entry.error != null) {
+                    // Pinned hosts always have an address
+                    if (pinned != null) {
+                        return pinned;
+                    }
+                    throw entry.error;
+                }
+                if (entry.expire - now < REFRESH_AHEAD) {
+                    startLookupLocked(hostname);
+                }
+                return entry.addresses;
+            }
+            task = startLookupLocked(hostname);
+        }
+
         try {
-            return Arrays.asList(InetAddress.getAllByName(hostname));
-        } catch (UnknownHostException e) {
-            if (DOMAIN_AC.equals(hostname) && null != DNS_AC) {
-                return DNS_AC;
+            if (pinned == null) {
+                return task.get();
+            } else {
+                return task.get(PINNED_DELAY, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            UnknownHostException exception = new UnknownHostException(hostname + ": interrupted");
+            exception.initCause(e);
+            throw exception;
+        } catch (TimeoutException e) {
+            // The lookup goes on, and fills the cache if it works out
+            return pinned;
+        } catch (ExecutionException e) {
+            if (pinned != null) {
+                return pinned;
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw (UnknownHostException) cause;
             } else {
+                UnknownHostException exception = new UnknownHostException(hostname);
+                exception.initCause(cause);
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Looks up the hosts in background, so they are in cache
+     * for the coming connections.
+     */
+    public synchronized void prefetch(String... hostnames) {
+        long now = SystemClock.elapsedRealtime();
+        for (String hostname : hostnames) {
+            Entry entry = mCache.get(hostname);
+            if (entry == null || entry.expire - now < REFRESH_AHEAD) {
+                startLookupLocked(hostname);
+            }
+        }
+    }
+
+    /**
+     * Forgets all cached results. Call it when network changes.
+     */
+    public synchronized void clear() {
+        mCache.clear();
+    }
+
+    private FutureTask<List<InetAddress>> startLookupLocked(String hostname) {
+        FutureTask<List<InetAddress>> task = mLookups.get(hostname);
+        if (task == null) {
+            task = new FutureTask<>(new Lookup(hostname));
+            mLookups.put(hostname, task);
+            mExecutor.execute(task);
+        }
+        return task;
+    }
+
+    private synchronized void onLookupDone(String hostname, List<InetAddress> addresses,
+            UnknownHostException error) {
+        mLookups.remove(hostname);
+
+        Entry entry = new Entry();
+        long now = SystemClock.elapsedRealtime();
+        if (addresses != null) {
+            entry.addresses = addresses;
+            entry.expire = now + POSITIVE_TTL;
+        } else {
+            Entry old = mCache.get(hostname);
+            if (old != null && old.error == null && now < old.expire) {
+                // A failed refresh, keep the old one
+                return;
+            }
+            entry.error = error;
+            entry.expire = now + NEGATIVE_TTL;
+        }
+        mCache.put(hostname, entry);
+    }
+
+    private static class Entry {
+        public List<InetAddress> addresses;
+        public UnknownHostException error;
+        public long expire;
+    }
+
+    private class Lookup implements Callable<List<InetAddress>> {
+
+        private final String mHostname;
+
+        public Lookup(String hostname) {
+            mHostname = hostname;
+        }
+
+        @Override
+        public List<InetAddress> call() throws UnknownHostException {
+            List<InetAddress> addresses = null;
+            UnknownHostException error = null;
+            try {
+                addresses = Collections.unmodifiableList(
+                        new ArrayList<>(Arrays.asList(InetAddress.getAllByName(mHostname))));
+                return addresses;
+            } catch (UnknownHostException e) {
+                error = e;
                 throw e;
+            } catch (RuntimeException e) {
+                // Bad hostname, like null char in it
+                error = new UnknownHostException(mHostname);
+                error.initCause(e);
+                throw error;
+            } finally {
+                onLookupDone(mHostname, addresses, error);
             }
         }
     }
@@ -24,6 +24,7 @@ public class NMBRequest {
     Site site;
     Object[] args;
     NMBClient.Callback callback;
+    boolean ignoreMemo;
 
     NMBClient.Task task;
 
@@ -45,11 +46,19 @@ public class NMBRequest {
         this.callback = callback;
     }
 
+    /**
+     * Don't use the result memorized a moment ago,
+     * set it for refresh the user asks for.
+     */
+    public void setIgnoreMemo(boolean ignoreMemo) {
+        this.ignoreMemo = ignoreMemo;
+    }
+
     public void cancel() {
         if (!mCancel) {
             mCancel = true;
             if (task != null) {
-                task.stop();
+                task.stop(callback);
                 task = null;
             }
         }
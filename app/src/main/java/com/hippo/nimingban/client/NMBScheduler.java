@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client;
+
+import android.support.annotation.NonNull;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs jobs by priority class instead of FIFO.
+ * <p>
+ * Jobs with lower priority value go first, jobs in the same priority class
+ * keep the order they are scheduled. The total number of running jobs is limited,
+ * background jobs can only take part of it, and every host has its own limit,
+ * which drops when requests to the host fail and recovers when they succeed.
+ * A job which is removed before it starts never takes a worker.
+ */
+public class NMBScheduler {
+
+    /**
+     * The user is waiting for it.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /**
+     * Needed by ui soon, but nobody is staring at a progress bar.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * Nobody is waiting for it.
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private final Object mLock = new Object();
+
+    private final int mMaxRunning;
+    private final int mMaxBackgroundRunning;
+    private final int mMaxHostRunning;
+
+    private final Executor mExecutor;
+    private final TreeSet<Job> mPending = new TreeSet<>(new Comparator<Job>() {
+        @Override
+        public int compare(Job lhs, Job rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority < rhs.mPriority ? -1 : 1;
+            } else if (lhs.mSequence != rhs.mSequence) {
+                return lhs.mSequence < rhs.mSequence ? -1 : 1;
+            } else {
+                return 0;
+            }
+        }
+    });
+    private final Map<String, HostState> mHostStates = new HashMap<>();
+
+    private long mSequence;
+    private int mRunning;
+    private int mBackgroundRunning;
+
+    /**
+     * @param maxRunning the max number of running jobs
+     * @param maxBackgroundRunning the max number of running {@link #PRIORITY_BACKGROUND} jobs
+     * @param maxHostRunning the max number of running jobs for one host
+     */
+    public NMBScheduler(int maxRunning, int maxBackgroundRunning, int maxHostRunning,
+            ThreadFactory threadFactory) {
+        mMaxRunning = maxRunning;
+        mMaxBackgroundRunning = maxBackgroundRunning;
+        mMaxHostRunning = maxHostRunning;
+        // Running jobs are limited by the scheduler, the pool itself is not bounded
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Returns an executor which schedules runnable with the priority and the host.
+     * It is used to run {@link android.os.AsyncTask}, the job of the last runnable
+     * is stored, so it could be removed by {@link #remove(Job)}.
+     */
+    public JobExecutor newExecutor(int priority, @NonNull String host) {
+        return new JobExecutor(priority, host);
+    }
+
+    public Job schedule(@NonNull Runnable runnable, int priority, @NonNull String host) {
+        synchronized (mLock) {
+            Job job = new Job(runnable, priority, host, mSequence++);
+            mPending.add(job);
+            dispatchLocked();
+            return job;
+        }
+    }
+
+    /**
+     * Removes the job if it is not running yet.
+     *
+     * @return true if the job is removed
+     */
+    public boolean remove(Job job) {
+        if (job == null) {
+            return false;
+        }
+        synchronized (mLock) {
+            return mPending.remove(job);
+        }
+    }
+
+    /**
+     * Tells the scheduler whether the network request to the host succeeded,
+     * the concurrency for the host is adjusted.
+     */
+    public void reportResult(@NonNull String host, boolean success) {
+        synchronized (mLock) {
+            HostState state = getHostStateLocked(host);
+            if (success) {
+                // Additive increase
+                state.limit = Math.min(mMaxHostRunning, state.limit + 1);
+            } else {
+                // Multiplicative decrease
+                state.limit = Math.max(1, state.limit / 2);
+            }
+            dispatchLocked();
+        }
+    }
+
+    private HostState getHostStateLocked(String host) {
+        HostState state = mHostStates.get(host);
+        if (state == null) {
+            state = new HostState(mMaxHostRunning);
+            mHostStates.put(host, state);
+        }
+        return state;
+    }
+
+    private boolean isRunnableLocked(Job job) {
+        if (job.mPriority >= PRIORITY_BACKGROUND && mBackgroundRunning >= mMaxBackgroundRunning) {
+            return false;
+        }
+        HostState state = getHostStateLocked(job.mHost);
+        return state.running < state.limit;
+    }
+
+    private void dispatchLocked() {
+        while (mRunning < mMaxRunning) {
+            Job job = null;
+            for (Iterator<Job> iterator = mPending.iterator(); iterator.hasNext();) {
+                Job j = iterator.next();
+                if (isRunnableLocked(j)) {
+                    iterator.remove();
+                    job = j;
+                    break;
+                }
+            }
+            if (job == null) {
+                break;
+            }
+
+            mRunning++;
+            if (job.mPriority >= PRIORITY_BACKGROUND) {
+                mBackgroundRunning++;
+            }
+            getHostStateLocked(job.mHost).running++;
+            mExecutor.execute(job);
+        }
+    }
+
+    private void finish(Job job) {
+        synchronized (mLock) {
+            mRunning--;
+            if (job.mPriority >= PRIORITY_BACKGROUND) {
+                mBackgroundRunning--;
+            }
+            getHostStateLocked(job.mHost).running--;
+            dispatchLocked();
+        }
+    }
+
+    private static class HostState {
+        public int running;
+        public int limit;
+
+        public HostState(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    public class Job implements Runnable {
+
+        private final Runnable mRunnable;
+        private final int mPriority;
+        private final String mHost;
+        private final long mSequence;
+
+        private Job(Runnable runnable, int priority, String host, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mHost = host;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRunnable.run();
+            } finally {
+                finish(this);
+            }
+        }
+    }
+
+    public class JobExecutor implements Executor {
+
+        private final int mPriority;
+        private final String mHost;
+        private Job mJob;
+
+        private JobExecutor(int priority, String host) {
+            mPriority = priority;
+            mHost = host;
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mJob = schedule(command, mPriority, mHost);
+        }
+
+        public Job getJob() {
+            return mJob;
+        }
+    }
+}
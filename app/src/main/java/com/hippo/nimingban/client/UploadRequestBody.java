@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.yorozuya.io.InputStreamPipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A request body which streams from an {@link InputStreamPipe} in fixed chunks,
+ * so memory doesn't grow with the size of the content. It reports the bytes sent
+ * after each chunk is flushed to network.
+ * <p>
+ * Cancelling the call closes the socket, writing stops at the current chunk.
+ */
+public class UploadRequestBody extends RequestBody {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final MediaType mMediaType;
+    private final InputStreamPipe mPipe;
+    private final long mContentLength;
+    private final Listener mListener;
+
+    /**
+     * @param contentLength the length of the content, it must be right
+     */
+    public UploadRequestBody(@Nullable MediaType mediaType, @NonNull InputStreamPipe pipe,
+            long contentLength, @Nullable Listener listener) {
+        mMediaType = mediaType;
+        mPipe = pipe;
+        mContentLength = contentLength;
+        mListener = listener;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mMediaType;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return mContentLength;
+    }
+
+    // It might be called again if the connection is retried
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long sent = 0;
+        try {
+            mPipe.obtain();
+            InputStream is = mPipe.open();
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                sink.write(buffer, 0, n);
+                sink.flush();
+                sent += n;
+                if (mListener != null) {
+                    mListener.onProgress(sent, mContentLength);
+                }
+            }
+        } finally {
+            mPipe.close();
+            mPipe.release();
+        }
+
+        if (sent != mContentLength) {
+            throw new IOException("Content length is " + mContentLength + ", but " + sent + " bytes are sent");
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * Called in the thread of the call.
+         */
+        void onProgress(long sent, long total);
+    }
+}
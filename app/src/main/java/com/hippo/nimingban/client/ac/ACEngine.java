@@ -16,9 +16,6 @@
 
 package com.hippo.nimingban.client.ac;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -28,13 +25,14 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.hippo.io.FileInputStreamPipe;
-import com.hippo.nimingban.NMBAppConfig;
 import com.hippo.nimingban.client.CancelledException;
 import com.hippo.nimingban.client.NMBException;
 import com.hippo.nimingban.client.StringEscape;
+import com.hippo.nimingban.client.UploadRequestBody;
 import com.hippo.nimingban.client.ac.data.ACCdnPath;
 import com.hippo.nimingban.client.ac.data.ACFeed;
 import com.hippo.nimingban.client.ac.data.ACForumGroup;
+import com.hippo.nimingban.client.ac.data.ACGenerator;
 import com.hippo.nimingban.client.ac.data.ACPost;
 import com.hippo.nimingban.client.ac.data.ACPostStruct;
 import com.hippo.nimingban.client.ac.data.ACReference;
@@ -42,11 +40,9 @@ import com.hippo.nimingban.client.ac.data.ACReplyStruct;
 import com.hippo.nimingban.client.ac.data.ACSearchItem;
 import com.hippo.nimingban.client.data.ACSite;
 import com.hippo.nimingban.client.data.CommonPost;
-import com.hippo.nimingban.client.data.DumpSite;
 import com.hippo.nimingban.client.data.Post;
 import com.hippo.nimingban.client.data.Reply;
-import com.hippo.nimingban.util.BitmapUtils;
-import com.hippo.yorozuya.IOUtils;
+import com.hippo.nimingban.util.Settings;
 import com.hippo.yorozuya.StringUtils;
 import com.hippo.yorozuya.io.InputStreamPipe;
 
@@ -55,17 +51,13 @@ import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 
+import okhttp3.CacheControl;
 import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.MediaType;
@@ -74,6 +66,8 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 public final class ACEngine {
     private ACEngine() {}
@@ -85,6 +79,9 @@ public final class ACEngine {
 
     private static final String UNKNOWN = "Unknown";
 
+    // Cached response is still used if server says it is not modified
+    private static final CacheControl NO_CACHE = new CacheControl.Builder().noCache().build();
+
     private static void throwException(Call call, String body, Exception e) throws Exception {
         if (call.isCanceled()) {
             throw new CancelledException();
@@ -122,6 +119,29 @@ public final class ACEngine {
         }
     }
 
+    /**
+     * Whether the body starts with {@code c}, leading whitespace is ignored.
+     * Nothing is consumed, the peeked bytes stay in the buffer of the source.
+     */
+    private static boolean startsWith(BufferedSource source, char c) throws IOException {
+        for (long i = 0; source.request(i + 1); i++) {
+            byte b = source.buffer().getByte(i);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b == c;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the body should be decoded from the stream by {@link ACJsonDecoder}.
+     * Error bodies are not json of expected type, they are read as string to
+     * let {@link #throwException(Call, String, Exception)} get the message.
+     */
+    private static boolean shouldStream(ResponseBody responseBody, char c) throws IOException {
+        return Settings.getStreamJson() && startsWith(responseBody.source(), c);
+    }
+
     public static Call prepareGetCookie(OkHttpClient okHttpClient) {
         String url = ACUrl.API_GET_COOKIE;
         Log.d(TAG, url);
@@ -213,55 +233,80 @@ public final class ACEngine {
         }
     }
 
-    public static Call prepareGetPostList(OkHttpClient okHttpClient, String id, int page) {
+    /**
+     * @param noCache true to validate the cached response with server, for refresh the user asks for
+     */
+    public static Call prepareGetPostList(OkHttpClient okHttpClient, String id, int page, boolean noCache) {
         String url = ACUrl.getPostListUrl(id, page);
         Log.d(TAG, url);
-        Request request = new Request.Builder().url(url).build();
-        return okHttpClient.newCall(request);
+        Request.Builder builder = new Request.Builder().url(url);
+        if (noCache) {
+            builder.cacheControl(NO_CACHE);
+        }
+        return okHttpClient.newCall(builder.build());
     }
 
     public static List<Post> doGetPostList(Call call) throws Exception {
         String body = null;
         try {
             Response response = call.execute();
-            body = response.body().string();
-            List<ACPost> acPosts = JSON.parseArray(body, ACPost.class);
+            ResponseBody responseBody = response.body();
+            List<ACPost> acPosts;
+            if (shouldStream(responseBody, '[')) {
+                acPosts = ACJsonDecoder.decodePostList(responseBody.byteStream());
+            } else {
+                body = responseBody.string();
+                acPosts = JSON.parseArray(body, ACPost.class);
+            }
             if (acPosts == null) {
                 throw new NMBException(ACSite.getInstance(), "Can't parse json when getPostList");
             }
 
-            List<Post> result = new ArrayList<>(acPosts.size());
+            List<ACPost> posts = new ArrayList<>(acPosts.size());
             for (ACPost acPost : acPosts) {
                 if (acPost != null) {
-                    acPost.generateSelfAndReplies(ACSite.getInstance());
-                    result.add(acPost);
+                    posts.add(acPost);
                 }
             }
+            ACGenerator.generate(posts, ACSite.getInstance(), Settings.getParallelGenerate());
 
-            return result;
+            return new ArrayList<Post>(posts);
         } catch (Exception e) {
             throwException(call, body, e);
             throw e;
         }
     }
 
-    public static Call prepareGetPost(OkHttpClient okHttpClient, String id, int page) {
+    /**
+     * @param noCache true to validate the cached response with server, for refresh the user asks for
+     */
+    public static Call prepareGetPost(OkHttpClient okHttpClient, String id, int page, boolean noCache) {
         String url = ACUrl.getPostUrl(id, page);
         Log.d(TAG, url);
-        Request request = new Request.Builder().url(url).build();
-        return okHttpClient.newCall(request);
+        Request.Builder builder = new Request.Builder().url(url);
+        if (noCache) {
+            builder.cacheControl(NO_CACHE);
+        }
+        return okHttpClient.newCall(builder.build());
     }
 
     public static Pair<Post, List<Reply>> doGetPost(Call call) throws Exception {
         String body = null;
         try {
             Response response = call.execute();
-            body = response.body().string();
-            ACPost acPost = JSON.parseObject(body, ACPost.class);
+            ResponseBody responseBody = response.body();
+            ACPost acPost;
+            if (shouldStream(responseBody, '{')) {
+                acPost = ACJsonDecoder.decodePost(responseBody.byteStream());
+            } else {
+                body = responseBody.string();
+                acPost = JSON.parseObject(body, ACPost.class);
+            }
             if (acPost == null) {
                 throw new NMBException(ACSite.getInstance(), "Can't parse json when getPost");
             }
-            acPost.generateSelfAndReplies(ACSite.getInstance());
+            ACGenerator.generate(Collections.singletonList(acPost), ACSite.getInstance(),
+                    Settings.getParallelGenerate());
             return new Pair<Post, List<Reply>>(acPost, new ArrayList<Reply>(acPost.replys));
         } catch (Exception e) {
             throwException(call, body, e);
@@ -332,7 +377,69 @@ public final class ACEngine {
         }
     }
 
-    public static Call prepareReply(OkHttpClient okHttpClient, ACReplyStruct struct) throws Exception {
+    /**
+     * Adds the image part, the image is streamed when the call is executed.
+     *
+     * @return the compressed image file to delete after the call, or null
+     */
+    private static File addImagePart(MultipartBody.Builder builder, InputStreamPipe image,
+            String imageType, ACImageCompressor.Task compression,
+            UploadRequestBody.Listener listener) throws Exception {
+        // Compression may be started when the image is attached
+        File file = compression != null ? compression.get() :
+                ACImageCompressor.compress(image, imageType);
+
+        final String type;
+        final InputStreamPipe imagePipe;
+        final long length;
+        if (file == null) {
+            // Origin image
+            type = imageType;
+            imagePipe = image;
+            try {
+                image.obtain();
+                length = ACImageCompressor.getSize(image);
+            } finally {
+                image.release();
+            }
+        } else {
+            // Compressed image
+            // gif or jpeg
+            type = "image/gif".equals(imageType) ? "image/gif" : "image/jpeg";
+            imagePipe = new FileInputStreamPipe(file);
+            length = file.length();
+        }
+
+        String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(type);
+        if (TextUtils.isEmpty(extension)) {
+            extension = "jpg";
+        }
+        final String filename = "a." + extension;
+
+        MediaType mediaType = MediaType.parse(type);
+        if (mediaType == null) {
+            mediaType = MEDIA_TYPE_IMAGE_ALL;
+        }
+
+        builder.addPart(
+                Headers.of("Content-Disposition", "form-data; name=\"image\"; filename=\"" + filename + "\""),
+                new UploadRequestBody(mediaType, imagePipe, length, listener));
+        return file;
+    }
+
+    /**
+     * Deletes the compressed image of a reply or create post call.
+     * It is done by doReply and doCreatePost, call it if the call is not executed.
+     */
+    public static void deleteUploadFile(Call call) {
+        Object tag = call.request().tag();
+        if (tag instanceof File) {
+            ((File) tag).delete();
+        }
+    }
+
+    public static Call prepareReply(OkHttpClient okHttpClient, ACReplyStruct struct,
+            UploadRequestBody.Listener listener) throws Exception {
         MultipartBody.Builder builder = new MultipartBody.Builder();
         builder.setType(MultipartBody.FORM);
         builder.addPart(
@@ -356,45 +463,10 @@ public final class ACEngine {
                     RequestBody.create(null, "true"));
         }
 
+        File uploadFile = null;
         if (struct.image != null) {
-            final byte[] bytes;
-            File file = compressBitmap(struct.image, struct.imageType);
-
-            final String imageType;
-            final InputStreamPipe imagePipe;
-            if (file == null) {
-                // Origin image
-                imageType = struct.imageType;
-                imagePipe = struct.image;
-            } else {
-                // Compressed image
-                // gif or jpeg
-                imageType = "image/gif".equals(struct.imageType) ? "image/gif" : "image/jpeg";
-                imagePipe = new FileInputStreamPipe(file);
-            }
-
-            String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(imageType);
-            if (TextUtils.isEmpty(extension)) {
-                extension = "jpg";
-            }
-            final String filename = "a." + extension;
-
-            MediaType mediaType = MediaType.parse(imageType);
-            if (mediaType == null) {
-                mediaType = MEDIA_TYPE_IMAGE_ALL;
-            }
-
-            try {
-                imagePipe.obtain();
-                bytes = IOUtils.getAllByte(imagePipe.open());
-            } finally {
-                imagePipe.close();
-                imagePipe.release();
-            }
-
-            builder.addPart(
-                    Headers.of("Content-Disposition", "form-data; name=\"image\"; filename=\"" + filename + "\""),
-                    RequestBody.create(mediaType, bytes));
+            uploadFile = addImagePart(builder, struct.image, struct.imageType,
+                    struct.imageCompression, listener);
         }
 
         String url = ACUrl.API_REPLY;
@@ -402,6 +474,7 @@ public final class ACEngine {
         Request request = new Request.Builder()
                 .url(url)
                 .post(builder.build())
+                .tag(uploadFile)
                 .build();
         return okHttpClient.newCall(request);
     }
@@ -429,6 +502,8 @@ public final class ACEngine {
         } catch (Exception e) {
             throwException(call, body, e);
             throw e;
+        } finally {
+            deleteUploadFile(call);
         }
     }
 
@@ -443,9 +518,14 @@ public final class ACEngine {
         String body = null;
         try {
             Response response = call.execute();
-            body = response.body().string();
-
-            List<ACFeed> acFeeds = JSON.parseArray(body, ACFeed.class);
+            ResponseBody responseBody = response.body();
+            List<ACFeed> acFeeds;
+            if (shouldStream(responseBody, '[')) {
+                acFeeds = ACJsonDecoder.decodeFeedList(responseBody.byteStream());
+            } else {
+                body = responseBody.string();
+                acFeeds = JSON.parseArray(body, ACFeed.class);
+            }
 
             if (acFeeds == null) {
                 throw new NMBException(ACSite.getInstance(), "Can't parse json when getPostList");
@@ -514,7 +594,8 @@ public final class ACEngine {
         }
     }
 
-    public static Call prepareCreatePost(OkHttpClient okHttpClient, ACPostStruct struct) throws Exception {
+    public static Call prepareCreatePost(OkHttpClient okHttpClient, ACPostStruct struct,
+            UploadRequestBody.Listener listener) throws Exception {
         MultipartBody.Builder builder = new MultipartBody.Builder();
         builder.setType(MultipartBody.FORM);
         builder.addPart(
@@ -538,45 +619,10 @@ public final class ACEngine {
                     RequestBody.create(null, "true"));
         }
 
+        File uploadFile = null;
         if (struct.image != null) {
-            final byte[] bytes;
-            File file = compressBitmap(struct.image, struct.imageType);
-
-            final String imageType;
-            final InputStreamPipe imagePipe;
-            if (file == null) {
-                // Origin image
-                imageType = struct.imageType;
-                imagePipe = struct.image;
-            } else {
-                // Compressed image
-                // gif or jpeg
-                imageType = "image/gif".equals(struct.imageType) ? "image/gif" : "image/jpeg";
-                imagePipe = new FileInputStreamPipe(file);
-            }
-
-            String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(imageType);
-            if (TextUtils.isEmpty(extension)) {
-                extension = "jpg";
-            }
-            final String filename = "a." + extension;
-
-            MediaType mediaType = MediaType.parse(imageType);
-            if (mediaType == null) {
-                mediaType = MEDIA_TYPE_IMAGE_ALL;
-            }
-
-            try {
-                imagePipe.obtain();
-                bytes = IOUtils.getAllByte(imagePipe.open());
-            } finally {
-                imagePipe.close();
-                imagePipe.release();
-            }
-
-            builder.addPart(
-                    Headers.of("Content-Disposition", "form-data; name=\"image\"; filename=\"" + filename + "\""),
-                    RequestBody.create(mediaType, bytes));
+            uploadFile = addImagePart(builder, struct.image, struct.imageType,
+                    struct.imageCompression, listener);
         }
 
         String url = ACUrl.API_CREATE_POST;
@@ -584,6 +630,7 @@ public final class ACEngine {
         Request request = new Request.Builder()
                 .url(url)
                 .post(builder.build())
+                .tag(uploadFile)
                 .build();
         return okHttpClient.newCall(request);
     }
@@ -611,143 +658,8 @@ public final class ACEngine {
         } catch (Exception e) {
             throwException(call, body, e);
             throw e;
-        }
-    }
-
-    private static final long MAX_IMAGE_SIZE = 2000 * 1024;
-
-    private static int getBitmapWidth(File file) {
-        InputStream is = null;
-        try {
-            is = new FileInputStream(file);
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(is, null, options);
-            return options.outWidth;
-        } catch (FileNotFoundException e) {
-            return 0;
         } finally {
-            IOUtils.closeQuietly(is);
-        }
-    }
-
-    private static boolean compressGifsicle(File input, File output) throws IOException {
-        final String gifsicleFilename;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-            gifsicleFilename = "libgifsicle_executable.so";
-        } else {
-            gifsicleFilename = "libgifsicle_executable_legacy.so";
-        }
-
-        final File gifsicle = new File(NMBAppConfig.getNativeLibDir(), gifsicleFilename);
-        if (!gifsicle.canExecute()) {
-            return false;
-        }
-
-        float scale = (float) Math.sqrt((float) MAX_IMAGE_SIZE / (float) input.length());
-        int width = (int) (getBitmapWidth(input) * scale);
-        if (width <= 0) {
-            return false;
-        }
-
-        final int offset = width / 5;
-        for (int i = 0; i < 5 && width > 0; i++, width -= offset) {
-            String cmd = String.format(Locale.US, "%s --resize-width %d --output %s %s",
-                    gifsicle.getPath(), width, output.getPath(), input.getPath());
-            String[] envp = { "LD_LIBRARY_PATH=" + NMBAppConfig.getNativeLibDir() };
-            Process process = Runtime.getRuntime().exec(cmd, envp);
-            try {
-                if (process.waitFor() != 0) {
-                    return false;
-                }
-                if (output.length() < MAX_IMAGE_SIZE) {
-                    return true;
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                return false;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * @return null for not changed
-     */
-    public static File compressBitmap(InputStreamPipe isp, String imageType) throws Exception {
-        OutputStream os = null;
-        try {
-            isp.obtain();
-
-            File temp = NMBAppConfig.createTempFile();
-            if (temp == null) {
-                throw new NMBException(DumpSite.getInstance(), "Can't create temp file");
-            }
-
-            os = new FileOutputStream(temp);
-            IOUtils.copy(isp.open(), os);
-            isp.close();
-            os.close();
-
-            long size = temp.length();
-            if (size < MAX_IMAGE_SIZE) {
-                temp.delete();
-                return null;
-            }
-
-            if ("image/gif".equals(imageType)) {
-                File output = NMBAppConfig.createTempFile();
-                if (output == null) {
-                    throw new NMBException(DumpSite.getInstance(), "Can't create temp file");
-                }
-
-                if (compressGifsicle(temp, output)) {
-                    return output;
-                } else {
-                    throw new NMBException(DumpSite.getInstance(), "Can't compress gif");
-                }
-            } else {
-                int[] sampleScaleArray = new int[1];
-                BitmapUtils.decodeStream(new FileInputStreamPipe(temp), -1, -1, -1, true, true, sampleScaleArray);
-                int sampleScale = sampleScaleArray[0];
-                if (sampleScale < 1) {
-                    throw new NMBException(DumpSite.getInstance(), "Can't get bitmap size");
-                }
-
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                int i = (int) (Math.log(sampleScale) / Math.log(2));
-                while (true) {
-                    options.inSampleSize = (int) Math.pow(2, i);
-                    Bitmap bitmap = null;
-                    try {
-                        bitmap = BitmapFactory.decodeStream(isp.open(), null, options);
-                    } catch (OutOfMemoryError e) {
-                        // Ignore
-                    }
-                    if (bitmap == null) {
-                        throw new NMBException(ACSite.getInstance(), "Can't decode bitmap");
-                    }
-
-                    isp.close();
-
-                    os = new FileOutputStream(temp);
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, 80, os);
-                    os.close();
-
-                    bitmap.recycle();
-
-                    size = temp.length();
-                    if (size < MAX_IMAGE_SIZE) {
-                        return temp;
-                    }
-
-                    i++;
-                }
-            }
-        } finally {
-            isp.close();
-            isp.release();
-            IOUtils.closeQuietly(os);
+            deleteUploadFile(call);
         }
     }
 
@@ -762,7 +674,20 @@ public final class ACEngine {
         String body = null;
         try {
             Response response = call.execute();
-            body = response.body().string();
+            ResponseBody responseBody = response.body();
+
+            if (shouldStream(responseBody, '{')) {
+                List<ACSearchItem> result = ACJsonDecoder.decodeSearch(responseBody.byteStream());
+                if (result == null) {
+                    throw new NMBException(ACSite.getInstance(), "Can't parse json when search");
+                }
+                for (ACSearchItem item : result) {
+                    item.generate(ACSite.getInstance());
+                }
+                return result;
+            }
+
+            body = responseBody.string();
 
             JSONArray ja = JSON.parseObject(body).getJSONObject("hits").getJSONArray("hits");
             List<ACSearchItem> result = new ArrayList<>();
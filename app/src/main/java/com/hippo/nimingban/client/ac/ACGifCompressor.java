@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac;
+
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.nimingban.NMBAppConfig;
+import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.PriorityThreadFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resizes gifs with gifsicle on a small pool of workers.
+ * <p>
+ * Outputs are kept in {@link NMBAppConfig#getGifCacheDir()}, named by
+ * the MD5 of the input and the width, so resending or attaching the same gif
+ * again doesn't run gifsicle. The same gif compressed at the same time
+ * shares one job.
+ */
+public final class ACGifCompressor {
+    private ACGifCompressor() {}
+
+    private static final String TAG = ACGifCompressor.class.getSimpleName();
+
+    private static final int MAX_THREADS = 2;
+    private static final int MAX_TRIES = 5;
+    private static final long CACHE_MAX_SIZE = 20 * 1024 * 1024;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    // Hash -> running job
+    private static final Map<String, FutureTask<File>> sJobs = new HashMap<>();
+
+    // Guarded by ACGifCompressor.class
+    private static int sRunCount;
+    private static int sHitCount;
+    private static long sTimeSpent;
+    private static long sBytesSaved;
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new PriorityThreadFactory(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND));
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Resizes the gif to be smaller than max size. It blocks until it is done.
+     *
+     * @return the compressed gif in cache, don't modify or delete it,
+     * or null if it can't be compressed
+     */
+    @Nullable
+    public static File compress(File input, long maxSize) throws Exception {
+        String hash = getHash(input);
+        if (hash == null) {
+            return null;
+        }
+
+        FutureTask<File> job;
+        boolean owner = false;
+        synchronized (sJobs) {
+            job = sJobs.get(hash);
+            if (job == null) {
+                job = new FutureTask<>(new Job(input, hash, maxSize));
+                sJobs.put(hash, job);
+                owner = true;
+            }
+        }
+        if (owner) {
+            getExecutor().execute(job);
+        }
+
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else {
+                throw new IllegalStateException(cause);
+            }
+        } finally {
+            if (owner) {
+                synchronized (sJobs) {
+                    sJobs.remove(hash);
+                }
+            }
+        }
+    }
+
+    private static String bytesToHexString(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                builder.append('0');
+            }
+            builder.append(hex);
+        }
+        return builder.toString();
+    }
+
+    @Nullable
+    private static String getHash(File file) throws IOException {
+        InputStream is = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+            return bytesToHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static int getBitmapWidth(File file) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(is, null, options);
+            return options.outWidth;
+        } catch (FileNotFoundException e) {
+            return 0;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    @Nullable
+    private static File getGifsicle() {
+        final String gifsicleFilename;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            gifsicleFilename = "libgifsicle_executable.so";
+        } else {
+            gifsicleFilename = "libgifsicle_executable_legacy.so";
+        }
+
+        final File gifsicle = new File(NMBAppConfig.getNativeLibDir(), gifsicleFilename);
+        return gifsicle.canExecute() ? gifsicle : null;
+    }
+
+    private static boolean runGifsicle(File gifsicle, File input, File output, int width)
+            throws IOException, InterruptedException {
+        String cmd = String.format(Locale.US, "%s --resize-width %d --output %s %s",
+                gifsicle.getPath(), width, output.getPath(), input.getPath());
+        String[] envp = { "LD_LIBRARY_PATH=" + NMBAppConfig.getNativeLibDir() };
+        Process process = Runtime.getRuntime().exec(cmd, envp);
+        return process.waitFor() == 0;
+    }
+
+    /**
+     * Deletes the least recently used outputs if the cache is too large.
+     */
+    private static void trimCache(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= CACHE_MAX_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && size > CACHE_MAX_SIZE; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static synchronized void onCompressed(boolean hit, long timeSpent, long bytesSaved) {
+        if (hit) {
+            sHitCount++;
+        } else {
+            sRunCount++;
+        }
+        sTimeSpent += timeSpent;
+        sBytesSaved += bytesSaved;
+        Log.d(TAG, (hit ? "Hit cache, " : "Compressed in " + timeSpent + " ms, ") +
+                bytesSaved + " bytes saved; " + getStats());
+    }
+
+    /**
+     * Returns the number of gifs compressed by gifsicle.
+     */
+    public static synchronized int getRunCount() {
+        return sRunCount;
+    }
+
+    /**
+     * Returns the number of gifs got from cache.
+     */
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    /**
+     * Returns the milliseconds spent in gifsicle.
+     */
+    public static synchronized long getTimeSpent() {
+        return sTimeSpent;
+    }
+
+    /**
+     * Returns the bytes the outputs are smaller than the inputs.
+     */
+    public static synchronized long getBytesSaved() {
+        return sBytesSaved;
+    }
+
+    public static synchronized String getStats() {
+        return "run " + sRunCount + ", hit " + sHitCount + ", " + sTimeSpent + " ms spent, " +
+                sBytesSaved + " bytes saved";
+    }
+
+    private static class Job implements Callable<File> {
+
+        private final File mInput;
+        private final String mHash;
+        private final long mMaxSize;
+
+        public Job(File input, String hash, long maxSize) {
+            mInput = input;
+            mHash = hash;
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        public File call() throws Exception {
+            File dir = NMBAppConfig.getGifCacheDir();
+            if (dir == null) {
+                return null;
+            }
+
+            long inputSize = mInput.length();
+            float scale = (float) Math.sqrt((float) mMaxSize / (float) inputSize);
+            int width = (int) (getBitmapWidth(mInput) * scale);
+            if (width <= 0) {
+                return null;
+            }
+
+            long start = SystemClock.uptimeMillis();
+            boolean ran = false;
+            File gifsicle = null;
+            // Same widths for the same gif, so outputs of last time are found
+            final int offset = width / MAX_TRIES;
+            for (int i = 0; i < MAX_TRIES && width > 0; i++, width -= offset) {
+                File output = new File(dir, mHash + "_" + width + ".gif");
+                if (!output.isFile()) {
+                    if (gifsicle == null) {
+                        gifsicle = getGifsicle();
+                        if (gifsicle == null) {
+                            return null;
+                        }
+                    }
+                    ran = true;
+                    // Write to a temp file first, not to leave a broken output in cache
+                    File temp = new File(dir, mHash + "_" + width + ".tmp");
+                    try {
+                        if (!runGifsicle(gifsicle, mInput, temp, width) || !temp.renameTo(output)) {
+                            return null;
+                        }
+                    } finally {
+                        temp.delete();
+                    }
+                } else {
+                    // Mark it recently used
+                    output.setLastModified(System.currentTimeMillis());
+                }
+
+                long outputSize = output.length();
+                if (outputSize < mMaxSize) {
+                    onCompressed(!ran, ran ? SystemClock.uptimeMillis() - start : 0,
+                            inputSize - outputSize);
+                    if (ran) {
+                        trimCache(dir);
+                    }
+                    return output;
+                }
+            }
+            if (ran) {
+                trimCache(dir);
+            }
+            return null;
+        }
+    }
+}
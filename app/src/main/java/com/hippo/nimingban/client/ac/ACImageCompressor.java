@@ -0,0 +1,343 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.nimingban.NMBAppConfig;
+import com.hippo.nimingban.client.NMBException;
+import com.hippo.nimingban.client.data.DumpSite;
+import com.hippo.nimingban.util.BitmapUtils;
+import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.PriorityThreadFactory;
+import com.hippo.yorozuya.io.InputStreamPipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses images to upload, so they are smaller than {@link #MAX_IMAGE_SIZE}.
+ * <p>
+ * {@link #start(InputStreamPipe, String)} compresses in background
+ * as soon as an image is attached, the request only waits for the result.
+ * <p>
+ * Gifs are resized by {@link ACGifCompressor}. Still images are decoded once.
+ * The first JPEG encode is sized by the bytes per pixel of the origin file,
+ * the next ones by the bytes per pixel just measured, so it takes a few encodes at most.
+ */
+public final class ACImageCompressor {
+    private ACImageCompressor() {}
+
+    private static final String TAG = ACImageCompressor.class.getSimpleName();
+
+    public static final long MAX_IMAGE_SIZE = 2000 * 1024;
+
+    private static final int JPEG_QUALITY = 80;
+    // Aim a bit lower than the limit, bytes per pixel is not exact
+    private static final float TARGET_RATIO = 0.9f;
+    private static final int MAX_ENCODES = 5;
+    private static final int MAX_DECODES = 4;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new PriorityThreadFactory(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND));
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Starts compressing the image in background.
+     */
+    @NonNull
+    public static Task start(@NonNull InputStreamPipe isp, String imageType) {
+        Task task = new Task(isp, imageType);
+        getExecutor().execute(task.mFuture);
+        return task;
+    }
+
+    /**
+     * A compression started by {@link #start(InputStreamPipe, String)}.
+     */
+    public static final class Task implements Callable<File> {
+
+        private final InputStreamPipe mIsp;
+        private final String mImageType;
+        private final FutureTask<File> mFuture;
+
+        // Guarded by this
+        private boolean mCanceled;
+        private File mResult;
+
+        private Task(InputStreamPipe isp, String imageType) {
+            mIsp = isp;
+            mImageType = imageType;
+            mFuture = new FutureTask<>(this);
+        }
+
+        @Override
+        public File call() throws Exception {
+            synchronized (this) {
+                if (mCanceled) {
+                    return null;
+                }
+            }
+            File file = compress(mIsp, mImageType);
+            synchronized (this) {
+                if (mCanceled) {
+                    if (file != null) {
+                        file.delete();
+                    }
+                    return null;
+                }
+                mResult = file;
+                return file;
+            }
+        }
+
+        /**
+         * Waits for the result.
+         *
+         * @return null for not changed
+         */
+        public File get() throws Exception {
+            try {
+                return mFuture.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+
+        /**
+         * The image is not needed any more, deletes the result.
+         */
+        public synchronized void cancel() {
+            mCanceled = true;
+            mFuture.cancel(false);
+            if (mResult != null) {
+                mResult.delete();
+                mResult = null;
+            }
+        }
+    }
+
+    static long getSize(InputStreamPipe isp) throws IOException {
+        try {
+            InputStream is = isp.open();
+            byte[] buffer = new byte[8192];
+            long size = 0;
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                size += n;
+            }
+            return size;
+        } finally {
+            isp.close();
+        }
+    }
+
+    @Nullable
+    private static Bitmap decodeBitmap(InputStreamPipe isp) throws Exception {
+        int[] sampleSizeArray = new int[1];
+        BitmapUtils.decodeStream(isp, -1, -1, -1, true, true, sampleSizeArray);
+        int sampleSize = sampleSizeArray[0];
+        if (sampleSize < 1) {
+            throw new NMBException(DumpSite.getInstance(), "Can't get bitmap size");
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        for (int i = 0; i < MAX_DECODES; i++, sampleSize *= 2) {
+            options.inSampleSize = sampleSize;
+            try {
+                return BitmapFactory.decodeStream(isp.open(), null, options);
+            } catch (OutOfMemoryError e) {
+                // Try a larger sample size
+            } finally {
+                isp.close();
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Bitmap scaleBitmap(Bitmap bitmap, float scale) {
+        int width = Math.max(1, (int) (bitmap.getWidth() * scale));
+        int height = Math.max(1, (int) (bitmap.getHeight() * scale));
+        try {
+            return Bitmap.createScaledBitmap(bitmap, width, height, true);
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+    }
+
+    private static File compressStill(InputStreamPipe isp, String imageType, long size) throws Exception {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try {
+            BitmapFactory.decodeStream(isp.open(), null, bounds);
+        } finally {
+            isp.close();
+        }
+
+        Bitmap bitmap = decodeBitmap(isp);
+        if (bitmap == null) {
+            throw new NMBException(DumpSite.getInstance(), "Can't decode bitmap");
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) MAX_IMAGE_SIZE);
+        try {
+            // Re-encoded JPEG is seldom larger than the origin one
+            float scale = 1.0f;
+            if ("image/jpeg".equals(imageType) && bounds.outWidth > 0) {
+                float originBytesPerPixel = (float) size / ((float) bounds.outWidth * bounds.outHeight);
+                float pixels = (float) bitmap.getWidth() * bitmap.getHeight();
+                scale = Math.min(1.0f, (float) Math.sqrt(
+                        MAX_IMAGE_SIZE * TARGET_RATIO / originBytesPerPixel / pixels));
+            }
+
+            for (int i = 0; i < MAX_ENCODES; i++) {
+                Bitmap scaled = scale < 1.0f ? scaleBitmap(bitmap, scale) : bitmap;
+                if (scaled == null) {
+                    throw new NMBException(DumpSite.getInstance(), "Can't scale bitmap");
+                }
+
+                baos.reset();
+                scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, baos);
+                int encoded = baos.size();
+                float pixels = (float) scaled.getWidth() * scaled.getHeight();
+                if (scaled != bitmap) {
+                    scaled.recycle();
+                }
+                Log.d(TAG, "Encode " + (int) pixels + " pixels to " + encoded + " bytes");
+
+                if (encoded < MAX_IMAGE_SIZE) {
+                    File output = NMBAppConfig.createTempFile();
+                    if (output == null) {
+                        throw new NMBException(DumpSite.getInstance(), "Can't create temp file");
+                    }
+                    OutputStream os = null;
+                    try {
+                        os = new FileOutputStream(output);
+                        baos.writeTo(os);
+                    } finally {
+                        IOUtils.closeQuietly(os);
+                    }
+                    return output;
+                }
+
+                // Use the bytes per pixel just measured, go a bit further each time
+                float bytesPerPixel = encoded / pixels;
+                float target = MAX_IMAGE_SIZE * (TARGET_RATIO - 0.1f * i) / bytesPerPixel;
+                scale *= (float) Math.sqrt(target / pixels);
+            }
+            throw new NMBException(DumpSite.getInstance(), "Can't compress image");
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Compresses in current thread.
+     *
+     * @return null for not changed
+     */
+    public static File compress(InputStreamPipe isp, String imageType) throws Exception {
+        OutputStream os = null;
+        try {
+            isp.obtain();
+
+            if ("image/gif".equals(imageType)) {
+                File temp = NMBAppConfig.createTempFile();
+                if (temp == null) {
+                    throw new NMBException(DumpSite.getInstance(), "Can't create temp file");
+                }
+
+                os = new FileOutputStream(temp);
+                IOUtils.copy(isp.open(), os);
+                isp.close();
+                os.close();
+
+                if (temp.length() < MAX_IMAGE_SIZE) {
+                    temp.delete();
+                    return null;
+                }
+
+                File compressed;
+                try {
+                    compressed = ACGifCompressor.compress(temp, MAX_IMAGE_SIZE);
+                } finally {
+                    temp.delete();
+                }
+                if (compressed == null) {
+                    throw new NMBException(DumpSite.getInstance(), "Can't compress gif");
+                }
+
+                // The one in cache is kept for next time, upload a copy
+                File output = NMBAppConfig.createTempFile();
+                if (output == null) {
+                    throw new NMBException(DumpSite.getInstance(), "Can't create temp file");
+                }
+                InputStream is = null;
+                try {
+                    is = new FileInputStream(compressed);
+                    os = new FileOutputStream(output);
+                    IOUtils.copy(is, os);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+                return output;
+            } else {
+                long size = getSize(isp);
+                if (size < MAX_IMAGE_SIZE) {
+                    return null;
+                }
+                return compressStill(isp, imageType, size);
+            }
+        } finally {
+            isp.close();
+            isp.release();
+            IOUtils.closeQuietly(os);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.hippo.nimingban.client.ac.data.ACFeed;
+import com.hippo.nimingban.client.ac.data.ACPost;
+import com.hippo.nimingban.client.ac.data.ACReply;
+import com.hippo.nimingban.client.ac.data.ACSearchItem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes AC json pages token by token, straight from the response stream.
+ * It never holds the whole body as a {@code String}, so only the object graph
+ * stays in memory.
+ */
+public final class ACJsonDecoder {
+    private ACJsonDecoder() {}
+
+    private static JsonReader newReader(InputStream is) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(is, "utf-8"));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    /**
+     * Read value as string, number and boolean are converted.
+     * Return {@code defValue} for null, skip object and array.
+     */
+    private static String nextString(JsonReader reader, String defValue) throws IOException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return defValue;
+            default:
+                reader.skipValue();
+                return defValue;
+        }
+    }
+
+    private static ACReply readReply(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        ACReply reply = new ACReply();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "id":
+                    reply.id = nextString(reader, reply.id);
+                    break;
+                case "img":
+                    reply.img = nextString(reader, reply.img);
+                    break;
+                case "ext":
+                    reply.ext = nextString(reader, reply.ext);
+                    break;
+                case "now":
+                    reply.now = nextString(reader, reply.now);
+                    break;
+                case "userid":
+                    reply.userid = nextString(reader, reply.userid);
+                    break;
+                case "name":
+                    reply.name = nextString(reader, reply.name);
+                    break;
+                case "email":
+                    reply.email = nextString(reader, reply.email);
+                    break;
+                case "title":
+                    reply.title = nextString(reader, reply.title);
+                    break;
+                case "content":
+                    reply.content = nextString(reader, reply.content);
+                    break;
+                case "sage":
+                    reply.sage = nextString(reader, reply.sage);
+                    break;
+                case "admin":
+                    reply.admin = nextString(reader, reply.admin);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return reply;
+    }
+
+    private static List<ACReply> readReplyList(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+
+        List<ACReply> list = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ACReply reply = readReply(reader);
+            if (reply != null) {
+                list.add(reply);
+            }
+        }
+        reader.endArray();
+        return list;
+    }
+
+    private static ACPost readPost(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        ACPost post = new ACPost();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "id":
+                    post.id = nextString(reader, post.id);
+                    break;
+                case "img":
+                    post.img = nextString(reader, post.img);
+                    break;
+                case "ext":
+                    post.ext = nextString(reader, post.ext);
+                    break;
+                case "now":
+                    post.now = nextString(reader, post.now);
+                    break;
+                case "userid":
+                    post.userid = nextString(reader, post.userid);
+                    break;
+                case "name":
+                    post.name = nextString(reader, post.name);
+                    break;
+                case "email":
+                    post.email = nextString(reader, post.email);
+                    break;
+                case "title":
+                    post.title = nextString(reader, post.title);
+                    break;
+                case "content":
+                    post.content = nextString(reader, post.content);
+                    break;
+                case "sage":
+                    post.sage = nextString(reader, post.sage);
+                    break;
+                case "admin":
+                    post.admin = nextString(reader, post.admin);
+                    break;
+                case "replyCount":
+                    post.replyCount = nextString(reader, post.replyCount);
+                    break;
+                case "replys":
+                    post.replys = readReplyList(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return post;
+    }
+
+    private static ACFeed readFeed(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        ACFeed feed = new ACFeed();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "id":
+                    feed.id = nextString(reader, feed.id);
+                    break;
+                case "fid":
+                    feed.fid = nextString(reader, feed.fid);
+                    break;
+                case "category":
+                    feed.category = nextString(reader, feed.category);
+                    break;
+                case "img":
+                    feed.img = nextString(reader, feed.img);
+                    break;
+                case "ext":
+                    feed.ext = nextString(reader, feed.ext);
+                    break;
+                case "now":
+                    feed.now = nextString(reader, feed.now);
+                    break;
+                case "userid":
+                    feed.userid = nextString(reader, feed.userid);
+                    break;
+                case "name":
+                    feed.name = nextString(reader, feed.name);
+                    break;
+                case "email":
+                    feed.email = nextString(reader, feed.email);
+                    break;
+                case "title":
+                    feed.title = nextString(reader, feed.title);
+                    break;
+                case "content":
+                    feed.content = nextString(reader, feed.content);
+                    break;
+                case "status":
+                    feed.status = nextString(reader, feed.status);
+                    break;
+                case "admin":
+                    feed.admin = nextString(reader, feed.admin);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return feed;
+    }
+
+    private static ACSearchItem readSearchSource(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        ACSearchItem item = new ACSearchItem();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "content":
+                    item.content = nextString(reader, item.content);
+                    break;
+                case "title":
+                    item.title = nextString(reader, item.title);
+                    break;
+                case "sage":
+                    item.sage = nextString(reader, item.sage);
+                    break;
+                case "email":
+                    item.email = nextString(reader, item.email);
+                    break;
+                case "now":
+                    item.now = nextString(reader, item.now);
+                    break;
+                case "userid":
+                    item.userid = nextString(reader, item.userid);
+                    break;
+                case "img":
+                    item.img = nextString(reader, item.img);
+                    break;
+                case "resto":
+                    item.resto = nextString(reader, item.resto);
+                    break;
+                case "ext":
+                    item.ext = nextString(reader, item.ext);
+                    break;
+                case "id":
+                    item.id = nextString(reader, item.id);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return item;
+    }
+
+    private static ACSearchItem readSearchHit(JsonReader reader) throws IOException {
+        String id = null;
+        ACSearchItem item = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "_id":
+                    id = nextString(reader, null);
+                    break;
+                case "_source":
+                    item = readSearchSource(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (item != null) {
+            item.id = id;
+        }
+        return item;
+    }
+
+    private static List<ACSearchItem> readSearchHits(JsonReader reader) throws IOException {
+        List<ACSearchItem> list = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("hits".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                list = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ACSearchItem item = readSearchHit(reader);
+                    if (item != null) {
+                        list.add(item);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return list;
+    }
+
+    /**
+     * Decode a forum page, a json array of {@link ACPost}.
+     * The stream is closed.
+     */
+    public static List<ACPost> decodePostList(InputStream is) throws IOException {
+        JsonReader reader = newReader(is);
+        try {
+            List<ACPost> list = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                ACPost post = readPost(reader);
+                if (post != null) {
+                    list.add(post);
+                }
+            }
+            reader.endArray();
+            return list;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decode a thread page, a json object of {@link ACPost} with replies.
+     * The stream is closed.
+     */
+    public static ACPost decodePost(InputStream is) throws IOException {
+        JsonReader reader = newReader(is);
+        try {
+            return readPost(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decode a feed page, a json array of {@link ACFeed}.
+     * The stream is closed.
+     */
+    public static List<ACFeed> decodeFeedList(InputStream is) throws IOException {
+        JsonReader reader = newReader(is);
+        try {
+            List<ACFeed> list = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                ACFeed feed = readFeed(reader);
+                if (feed != null) {
+                    list.add(feed);
+                }
+            }
+            reader.endArray();
+            return list;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decode search result, {@code hits.hits[]} with {@code _id} and {@code _source}.
+     * The stream is closed.
+     *
+     * @return null if no hits found
+     */
+    public static List<ACSearchItem> decodeSearch(InputStream is) throws IOException {
+        JsonReader reader = newReader(is);
+        try {
+            List<ACSearchItem> list = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("hits".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    list = readSearchHits(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return list;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -75,7 +75,7 @@ public class ACFeed extends Post {
             spannable.setSpan(new ForegroundColorSpan(Color.RED), 0, userid.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             mUser = spannable;
         } else {
-            mUser = ACItemUtils.handleUser(Html.fromHtml(userid), getNMBPostId(), getNMBId());
+            mUser = ACItemUtils.handleUser(Html.fromSimpleHtml(userid, null, null), getNMBPostId(), getNMBId());
         }
 
         mContent = ACItemUtils.generateContent(content, "", title, name, email);
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.client.ac.data;
+
+import com.hippo.nimingban.client.data.Site;
+import com.hippo.yorozuya.PriorityThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls {@code generate(Site)} for posts and their replies of a page.
+ * <p>
+ * In parallel mode, items are split into chunks. The chunks are forked
+ * to a small bounded pool, and the caller thread joins by running the chunks
+ * which no worker has taken yet, so it never idles while waiting.
+ * Picture urls are got after the join, the chunks would wait for each other on
+ * the synchronized {@link com.hippo.nimingban.client.data.ACSite#getPictureUrl(String)}.
+ */
+public final class ACGenerator {
+    private ACGenerator() {}
+
+    private static final int CHUNK_SIZE = 8;
+    private static final int MAX_THREADS = 4;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /**
+     * {@code generate(Site)} in two parts.
+     */
+    interface Item {
+
+        /**
+         * Generates all but picture urls. It could be called in any thread.
+         */
+        void generateText(Site site);
+
+        void generatePictureUrls();
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+            sExecutor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new PriorityThreadFactory(ACGenerator.class.getSimpleName(),
+                            android.os.Process.THREAD_PRIORITY_BACKGROUND));
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    private static List<Item> flatten(List<ACPost> posts) {
+        List<Item> items = new ArrayList<>();
+        for (ACPost post : posts) {
+            items.add(post);
+            if (post.replys == null) {
+                // Can't get replise
+                post.replys = new ArrayList<>(0);
+            } else {
+                for (ACReply reply : post.replys) {
+                    reply.mPostId = post.id;
+                    items.add(reply);
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Same as calling {@link ACPost#generateSelfAndReplies(Site)} for each post.
+     *
+     * @param parallel true to generate on several threads
+     */
+    public static void generate(List<ACPost> posts, Site site, boolean parallel) {
+        List<Item> items = flatten(posts);
+        int size = items.size();
+
+        if (!parallel || size <= CHUNK_SIZE || Runtime.getRuntime().availableProcessors() < 2) {
+            for (int i = 0; i < size; i++) {
+                Item item = items.get(i);
+                item.generateText(site);
+                item.generatePictureUrls();
+            }
+            return;
+        }
+
+        // Fork
+        ThreadPoolExecutor executor = getExecutor();
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (int start = CHUNK_SIZE; start < size; start += CHUNK_SIZE) {
+            FutureTask<Void> task = new FutureTask<>(
+                    new Chunk(items, start, Math.min(start + CHUNK_SIZE, size), site));
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        // The first chunk is for this thread
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            items.get(i).generateText(site);
+        }
+
+        // Join, run the chunks which are still in queue
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            FutureTask<Void> task = tasks.get(i);
+            if (executor.remove(task)) {
+                task.run();
+            }
+        }
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+
+        for (int i = 0; i < size; i++) {
+            items.get(i).generatePictureUrls();
+        }
+    }
+
+    private static class Chunk implements Callable<Void> {
+
+        private final List<Item> mItems;
+        private final int mStart;
+        private final int mEnd;
+        private final Site mSite;
+
+        public Chunk(List<Item> items, int start, int end, Site site) {
+            mItems = items;
+            mStart = start;
+            mEnd = end;
+            mSite = site;
+        }
+
+        @Override
+        public Void call() {
+            for (int i = mStart; i < mEnd; i++) {
+                mItems.get(i).generateText(mSite);
+            }
+            return null;
+        }
+    }
+}
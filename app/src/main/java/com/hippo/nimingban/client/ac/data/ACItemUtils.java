@@ -23,6 +23,7 @@ import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.style.URLSpan;
+import android.util.LruCache;
 
 import com.hippo.nimingban.client.ReferenceSpan;
 import com.hippo.nimingban.client.ac.ACUrl;
@@ -61,6 +62,9 @@ public final class ACItemUtils {
 
     private static final ACHtmlTagHandler AC_HTML_TAG_HANDLER = new ACHtmlTagHandler();
 
+    private static final int CONTENT_CACHE_SIZE = 200;
+    private static final LruCache<String, ContentEntry> CONTENT_CACHE = new LruCache<>(CONTENT_CACHE_SIZE);
+
     public static CharSequence handleReference(CharSequence content) {
         Matcher m = REFERENCE_PATTERN.matcher(content);
 
@@ -147,7 +151,7 @@ public final class ACItemUtils {
 
     public static CharSequence generateContent(String content) {
         CharSequence charSequence;
-        charSequence = Html.fromHtml(content, null, AC_HTML_TAG_HANDLER);
+        charSequence = Html.fromSimpleHtml(content, null, AC_HTML_TAG_HANDLER);
         charSequence = handleReference(charSequence);
         charSequence = handleTextUrl(charSequence);
         charSequence = handleAcUrl(charSequence);
@@ -156,6 +160,37 @@ public final class ACItemUtils {
     }
 
     public static CharSequence generateContent(String content, String sage, String title, String name, String email) {
+        return generateContent(buildContentHtml(content, sage, title, name, email));
+    }
+
+    /**
+     * Like {@link #generateContent(String, String, String, String, String)},
+     * but the result is cached by id. It is generated again only if the html changes.
+     */
+    public static CharSequence getContent(String id, String content, String sage, String title, String name, String email) {
+        String html = buildContentHtml(content, sage, title, name, email);
+        if (id == null) {
+            return generateContent(html);
+        }
+
+        ContentEntry entry = CONTENT_CACHE.get(id);
+        if (entry != null && entry.html.equals(html)) {
+            return entry.content;
+        }
+
+        CharSequence result = generateContent(html);
+        CONTENT_CACHE.put(id, new ContentEntry(html, result));
+        return result;
+    }
+
+    /**
+     * Drop all cached content, call it when the way to generate content changes.
+     */
+    public static void clearContentCache() {
+        CONTENT_CACHE.evictAll();
+    }
+
+    private static String buildContentHtml(String content, String sage, String title, String name, String email) {
         StringBuilder sb = new StringBuilder(44 + 11 + StringUtils.length(title) +
                 11 + StringUtils.length(name) + 11 + StringUtils.length(email) +
                 StringUtils.length(content));
@@ -173,7 +208,7 @@ public final class ACItemUtils {
         }
         sb.append(content);
 
-        return generateContent(sb.toString());
+        return sb.toString();
     }
 
     private static char getReadableChar(byte b) {
@@ -312,4 +347,14 @@ public final class ACItemUtils {
             mHref = href;
         }
     }
+
+    private static class ContentEntry {
+        public final String html;
+        public final CharSequence content;
+
+        public ContentEntry(String html, CharSequence content) {
+            this.html = html;
+            this.content = content;
+        }
+    }
 }
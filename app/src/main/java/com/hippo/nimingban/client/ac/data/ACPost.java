@@ -39,20 +39,22 @@ import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
-public class ACPost extends Post {
+public class ACPost extends Post implements ACGenerator.Item {
 
     public static final Reply[] EMPTY_REPLY_ARRAY = new Reply[0];
 
     /**
      * Parse the time string from website
      */
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-ddHH:mm:ss", Locale.getDefault());
-    private static final Object sDateFormatLock = new Object();
-
-    static {
-        // The website use GMT+08:00
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT+08:00"));
-    }
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-ddHH:mm:ss", Locale.getDefault());
+            // The website use GMT+08:00
+            format.setTimeZone(TimeZone.getTimeZone("GMT+08:00"));
+            return format;
+        }
+    };
 
     public String id = "";
     public String img = "";
@@ -113,10 +115,8 @@ public class ACPost extends Post {
 
     public static long parseTime(String time) {
         try {
-            synchronized (sDateFormatLock) {
-                Date date = DATE_FORMAT.parse(removeDayOfWeek(time));
-                return date.getTime();
-            }
+            Date date = DATE_FORMAT.get().parse(removeDayOfWeek(time));
+            return date.getTime();
         } catch (ParseException e) {
             return 0;
         }
@@ -124,6 +124,12 @@ public class ACPost extends Post {
 
     @Override
     public void generate(Site site) {
+        generateText(site);
+        generatePictureUrls();
+    }
+
+    @Override
+    public void generateText(Site site) {
         mSite = site;
 
         mTime = parseTime(now);
@@ -133,13 +139,11 @@ public class ACPost extends Post {
             spannable.setSpan(new ForegroundColorSpan(Color.RED), 0, userid.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             mUser = spannable;
         } else {
-            mUser = ACItemUtils.handleUser(Html.fromHtml(userid), getNMBPostId(), getNMBId());
+            mUser = ACItemUtils.handleUser(Html.fromSimpleHtml(userid, null, null), getNMBPostId(), getNMBId());
         }
 
         mReplyCount = NumberUtils.parseIntSafely(replyCount, -1);
 
-        mContent = ACItemUtils.generateContent(content, sage, title, name, email);
-
         if (!TextUtils.isEmpty(img)) {
             String ext2 = ext;
             if (".jpe".equals(ext2)) {
@@ -148,9 +152,6 @@ public class ACPost extends Post {
             String key = img + ext2;
             mThumbKey = "thumb/" + key;
             mImageKey = "image/" + key;
-            ACSite acSite = ACSite.getInstance();
-            mThumbUrl = acSite.getPictureUrl(mThumbKey);
-            mImageUrl = acSite.getPictureUrl(mImageKey);
         }
 
         List<ACReply> replyList = replys;
@@ -166,6 +167,15 @@ public class ACPost extends Post {
         }
     }
 
+    @Override
+    public void generatePictureUrls() {
+        if (mThumbKey != null) {
+            ACSite acSite = ACSite.getInstance();
+            mThumbUrl = acSite.getPictureUrl(mThumbKey);
+            mImageUrl = acSite.getPictureUrl(mImageKey);
+        }
+    }
+
     public void generateSelfAndReplies(Site site) {
         generate(site);
 
@@ -208,6 +218,10 @@ public class ACPost extends Post {
 
     @Override
     public CharSequence getNMBDisplayContent() {
+        // Generate it when it is shown
+        if (mContent == null) {
+            mContent = ACItemUtils.getContent(id, content, sage, title, name, email);
+        }
         return mContent;
     }
 
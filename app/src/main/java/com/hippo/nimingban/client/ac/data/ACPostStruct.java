@@ -16,6 +16,7 @@
 
 package com.hippo.nimingban.client.ac.data;
 
+import com.hippo.nimingban.client.ac.ACImageCompressor;
 import com.hippo.yorozuya.io.InputStreamPipe;
 
 public class ACPostStruct {
@@ -27,5 +28,7 @@ public class ACPostStruct {
     public String fid;
     public InputStreamPipe image;
     public String imageType;
+    // Compression of image started in advance, null to compress when sending
+    public ACImageCompressor.Task imageCompression;
     public boolean water;
 }
@@ -71,7 +71,7 @@ public class ACReference extends Reply {
             spannable.setSpan(new ForegroundColorSpan(Color.RED), 0, userId.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             mUser = spannable;
         } else {
-            mUser = ACItemUtils.handleUser(Html.fromHtml(userId), getNMBPostId(), getNMBId());
+            mUser = ACItemUtils.handleUser(Html.fromSimpleHtml(userId, null, null), getNMBPostId(), getNMBId());
         }
 
         mContent = ACItemUtils.generateContent(content, "", title, "", email);
@@ -29,7 +29,7 @@ import com.hippo.nimingban.client.data.Reply;
 import com.hippo.nimingban.client.data.Site;
 import com.hippo.text.Html;
 
-public class ACReply extends Reply {
+public class ACReply extends Reply implements ACGenerator.Item {
 
     public String id = "";
     public String img = "";
@@ -63,6 +63,12 @@ public class ACReply extends Reply {
 
     @Override
     public void generate(Site site) {
+        generateText(site);
+        generatePictureUrls();
+    }
+
+    @Override
+    public void generateText(Site site) {
         mSite = site;
 
         mTime = ACPost.parseTime(now);
@@ -72,11 +78,9 @@ public class ACReply extends Reply {
             spannable.setSpan(new ForegroundColorSpan(Color.RED), 0, userid.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             mUser = spannable;
         } else {
-            mUser = ACItemUtils.handleUser(Html.fromHtml(userid), getNMBPostId(), getNMBId());
+            mUser = ACItemUtils.handleUser(Html.fromSimpleHtml(userid, null, null), getNMBPostId(), getNMBId());
         }
 
-        mContent = ACItemUtils.generateContent(content, sage, title, name, email);
-
         if (!TextUtils.isEmpty(img)) {
             String ext2 = ext;
             if (".jpe".equals(ext2)) {
@@ -85,6 +89,12 @@ public class ACReply extends Reply {
             String key = img + ext2;
             mThumbKey = "thumb/" + key;
             mImageKey = "image/" + key;
+        }
+    }
+
+    @Override
+    public void generatePictureUrls() {
+        if (mThumbKey != null) {
             ACSite acSite = ACSite.getInstance();
             mThumbUrl = acSite.getPictureUrl(mThumbKey);
             mImageUrl = acSite.getPictureUrl(mImageKey);
@@ -118,6 +128,10 @@ public class ACReply extends Reply {
 
     @Override
     public CharSequence getNMBDisplayContent() {
+        // Generate it when it is shown
+        if (mContent == null) {
+            mContent = ACItemUtils.getContent(id, content, sage, title, name, email);
+        }
         return mContent;
     }
 
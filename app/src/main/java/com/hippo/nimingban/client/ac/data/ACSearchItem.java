@@ -53,7 +53,7 @@ public class ACSearchItem extends Reply {
 
         mTime = ACPost.parseTime(now);
 
-        mUser = ACItemUtils.handleUser(Html.fromHtml(userid), getNMBPostId(), getNMBId());
+        mUser = ACItemUtils.handleUser(Html.fromSimpleHtml(userid, null, null), getNMBPostId(), getNMBId());
 
         mContent = ACItemUtils.generateContent(content, sage, title, "", email);
 
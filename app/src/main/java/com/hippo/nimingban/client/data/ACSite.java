@@ -17,7 +17,9 @@
 package com.hippo.nimingban.client.data;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.hippo.nimingban.NMBApplication;
 import com.hippo.nimingban.client.ac.ACUrl;
@@ -31,7 +33,10 @@ import java.net.HttpCookie;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import okhttp3.HttpUrl;
 
@@ -41,10 +46,21 @@ public class ACSite extends Site {
 
     private static final String DEFAULT_PICTURE_PREFIX = ACUrl.HOST + "/Public/Upload/";
 
+    // Weight of the newest sample in moving averages
+    private static final float CDN_HEALTH_ALPHA = 0.2f;
+    // A slow cdn keeps at least this part of its rate, so it could be measured again
+    private static final float CDN_MIN_SPEED_FACTOR = 0.05f;
+    // A cdn is skipped for a while after failing in a row
+    private static final int CDN_MAX_FAILURES = 2;
+    private static final long CDN_BACKOFF = 30 * 1000;
+    private static final long CDN_MAX_BACKOFF = 10 * 60 * 1000;
+
     private URL mSiteUrl;
 
     private List<ACCdnPath> mCdnPathList;
     private float mRateSum;
+    // Cdn url -> health, kept when cdn path list is updated
+    private final Map<String, CdnHealth> mCdnHealthMap = new HashMap<>();
 
     private boolean mCdnHostsDirty;
     private String[] mCdnHosts;
@@ -141,14 +157,78 @@ public class ACSite extends Site {
         mCdnHostsDirty = true;
     }
 
-    private ACCdnPath getCdnPath() {
-        final float r = MathUtils.random(mRateSum);
-        float sum = 0.0f;
+    private CdnHealth getCdnHealth(String url) {
+        CdnHealth health = mCdnHealthMap.get(url);
+        if (health == null) {
+            health = new CdnHealth();
+            mCdnHealthMap.put(url, health);
+        }
+        return health;
+    }
+
+    /**
+     * The server rate is the prior, it is scaled down by error rate,
+     * and by latency compared to the fastest cdn.
+     */
+    private float getCdnWeight(ACCdnPath cdnPath, float bestLatency, long now, boolean skipBackoff) {
+        CdnHealth health = mCdnHealthMap.get(cdnPath.url);
+        if (health == null) {
+            return cdnPath.rate;
+        }
+        if (skipBackoff && now < health.retryTime) {
+            return 0.0f;
+        }
+        float weight = cdnPath.rate * (1.0f - health.errorRate) * (1.0f - health.errorRate);
+        if (health.latency > 0.0f && bestLatency > 0.0f) {
+            weight *= Math.max(CDN_MIN_SPEED_FACTOR, bestLatency / health.latency);
+        }
+        return weight;
+    }
+
+    /**
+     * Picks a cdn by weighted random, the cdns in excluded are not picked.
+     */
+    @Nullable
+    private ACCdnPath getCdnPath(@Nullable Set<String> excluded) {
         List<ACCdnPath> list = mCdnPathList;
+        int size = list.size();
+        long now = SystemClock.uptimeMillis();
+
+        float bestLatency = Float.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            CdnHealth health = mCdnHealthMap.get(list.get(i).url);
+            if (health != null && health.latency > 0.0f) {
+                bestLatency = Math.min(bestLatency, health.latency);
+            }
+        }
+
+        float[] weights = new float[size];
+        float weightSum = 0.0f;
+        // Skip backing off cdns, unless all of them are backing off
+        for (int pass = 0; pass < 2 && weightSum <= 0.0f; pass++) {
+            for (int i = 0; i < size; i++) {
+                ACCdnPath cdnPath = list.get(i);
+                if (excluded != null && excluded.contains(cdnPath.url)) {
+                    weights[i] = 0.0f;
+                } else {
+                    weights[i] = getCdnWeight(cdnPath, bestLatency, now, pass == 0);
+                }
+                weightSum += weights[i];
+            }
+        }
+        if (weightSum <= 0.0f) {
+            return null;
+        }
+
+        final float r = MathUtils.random(weightSum);
+        float sum = 0.0f;
         ACCdnPath cdnPath = null;
-        for (int i = 0, size = list.size(); i < size; i++) {
+        for (int i = 0; i < size; i++) {
+            if (weights[i] <= 0.0f) {
+                continue;
+            }
             cdnPath = list.get(i);
-            sum += cdnPath.rate;
+            sum += weights[i];
             if (r <= sum) {
                 return cdnPath;
             }
@@ -156,8 +236,21 @@ public class ACSite extends Site {
         return cdnPath;
     }
 
+    @Nullable
+    private ACCdnPath findCdnPath(String url) {
+        if (mCdnPathList == null || url == null) {
+            return null;
+        }
+        for (ACCdnPath cdnPath : mCdnPathList) {
+            if (url.startsWith(cdnPath.url)) {
+                return cdnPath;
+            }
+        }
+        return null;
+    }
+
     @NonNull
-    public String[] getCdnHosts() {
+    public synchronized String[] getCdnHosts() {
         if (mCdnHostsDirty || mCdnHosts == null) {
             if (mCdnPathList == null) {
                 mCdnHosts = new String[0];
@@ -171,6 +264,7 @@ public class ACSite extends Site {
                 }
                 mCdnHosts = hosts.toArray(new String[hosts.size()]);
             }
+            mCdnHostsDirty = false;
         }
         return mCdnHosts;
     }
@@ -179,7 +273,7 @@ public class ACSite extends Site {
         String url;
         ACCdnPath cdnPath;
 
-        if (mCdnPathList != null && (cdnPath = getCdnPath()) != null) {
+        if (mCdnPathList != null && (cdnPath = getCdnPath(null)) != null) {
             url = cdnPath.url + key;
         } else {
             url = DEFAULT_PICTURE_PREFIX + key;
@@ -187,4 +281,77 @@ public class ACSite extends Site {
 
         return url;
     }
+
+    public synchronized void clearCdnHealth() {
+        mCdnHealthMap.clear();
+    }
+
+    /**
+     * Returns the url of the same picture on another cdn, or null if the url is not
+     * on a cdn or all cdns are tried. The cdn of the url is added to tried.
+     */
+    @Nullable
+    public synchronized String getFailoverPictureUrl(String url, @NonNull Set<String> tried) {
+        ACCdnPath from = findCdnPath(url);
+        if (from == null) {
+            return null;
+        }
+        tried.add(from.url);
+
+        ACCdnPath to = getCdnPath(tried);
+        if (to == null) {
+            return null;
+        }
+        return to.url + url.substring(from.url.length());
+    }
+
+    /**
+     * Records a successful picture fetch.
+     *
+     * @param latency milliseconds to get the response headers
+     */
+    public synchronized void onPictureSuccess(String url, long latency) {
+        ACCdnPath cdnPath = findCdnPath(url);
+        if (cdnPath == null) {
+            return;
+        }
+        CdnHealth health = getCdnHealth(cdnPath.url);
+        if (health.latency <= 0.0f) {
+            health.latency = latency;
+        } else {
+            health.latency += CDN_HEALTH_ALPHA * (latency - health.latency);
+        }
+        health.errorRate -= CDN_HEALTH_ALPHA * health.errorRate;
+        health.failures = 0;
+        health.retryTime = 0;
+    }
+
+    /**
+     * Records a failed picture fetch, the cdn is skipped for a while
+     * if it fails in a row.
+     */
+    public synchronized void onPictureFailure(String url) {
+        ACCdnPath cdnPath = findCdnPath(url);
+        if (cdnPath == null) {
+            return;
+        }
+        CdnHealth health = getCdnHealth(cdnPath.url);
+        health.errorRate += CDN_HEALTH_ALPHA * (1.0f - health.errorRate);
+        health.failures++;
+        if (health.failures >= CDN_MAX_FAILURES) {
+            int shift = Math.min(health.failures - CDN_MAX_FAILURES, 8);
+            long backoff = Math.min(CDN_MAX_BACKOFF, CDN_BACKOFF << shift);
+            health.retryTime = SystemClock.uptimeMillis() + backoff;
+        }
+    }
+
+    private static class CdnHealth {
+        // Milliseconds, not positive for unknown
+        float latency;
+        float errorRate;
+        // Failures in a row
+        int failures;
+        // The cdn is skipped before it
+        long retryTime;
+    }
 }
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.service;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.IBinder;
+import android.support.annotation.Nullable;
+import android.support.v7.app.NotificationCompat;
+import android.util.Log;
+
+import com.hippo.network.DownloadClient;
+import com.hippo.network.DownloadRequest;
+import com.hippo.nimingban.NMBApplication;
+import com.hippo.nimingban.R;
+import com.hippo.nimingban.client.NMBScheduler;
+import com.hippo.nimingban.dao.DownloadRaw;
+import com.hippo.nimingban.util.DB;
+import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.FileUtils;
+import com.hippo.yorozuya.PriorityThreadFactory;
+import com.hippo.yorozuya.SimpleHandler;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Downloads files in a queue.
+ * <p>
+ * The queue is stored in database. Downloads left by a dead process are started
+ * again with the service, they resume from the partial files {@link DownloadClient} keeps.
+ * Running downloads are limited in total and for each host by a {@link NMBScheduler}.
+ * Progress is shown in a notification, updated once a second at most.
+ */
+public class DownloadService extends Service {
+
+    private static final String TAG = DownloadService.class.getSimpleName();
+
+    public static final String ACTION_START = "com.hippo.nimingban.service.DownloadService.ACTION_START";
+    public static final String ACTION_CANCEL = "com.hippo.nimingban.service.DownloadService.ACTION_CANCEL";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_DIR = "dir";
+    private static final String KEY_FILENAME = "filename";
+
+    public static final int NOTIFICATION_ID = 2;
+
+    private static final int MAX_RUNNING = 3;
+    private static final int MAX_HOST_RUNNING = 2;
+    // Connections for one download
+    private static final int MAX_CONNECTIONS = 2;
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_DELAY = 5000;
+    private static final long NOTIFY_INTERVAL = 1000;
+
+    private NMBScheduler mScheduler;
+    private NotificationManager mNotifyManager;
+    private NotificationCompat.Builder mDownloadingBuilder;
+
+    // Database id -> item, only touched in main thread
+    private final Map<Long, Item> mItems = new LinkedHashMap<>();
+    private int mFinished;
+    private int mFailed;
+    private boolean mNotifyPosted;
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNotifyPosted = false;
+            updateNotification();
+        }
+    };
+
+    /**
+     * Adds the url to the queue. The file is saved in the dir,
+     * the extension is appended to the filename.
+     */
+    public static void download(Context context, String url, UniFile dir, String filename) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.setAction(ACTION_START);
+        intent.putExtra(KEY_URL, url);
+        intent.putExtra(KEY_DIR, dir.getUri().toString());
+        intent.putExtra(KEY_FILENAME, filename);
+        context.startService(intent);
+    }
+
+    /**
+     * Starts the service if there are downloads left by last process.
+     */
+    public static void resume(Context context) {
+        if (DB.hasDownloads()) {
+            context.startService(new Intent(context, DownloadService.class));
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mScheduler = new NMBScheduler(MAX_RUNNING, MAX_RUNNING, MAX_HOST_RUNNING,
+                new PriorityThreadFactory(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        mNotifyManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = intent != null ? intent.getAction() : null;
+        if (ACTION_START.equals(action)) {
+            DB.addDownload(intent.getStringExtra(KEY_URL), intent.getStringExtra(KEY_DIR),
+                    intent.getStringExtra(KEY_FILENAME));
+        } else if (ACTION_CANCEL.equals(action)) {
+            cancelAll();
+        }
+
+        // Null intent is from restart, downloads are in database
+        if (!ACTION_CANCEL.equals(action)) {
+            for (DownloadRaw raw : DB.getDownloads()) {
+                if (!mItems.containsKey(raw.getId())) {
+                    Item item = new Item(raw);
+                    mItems.put(raw.getId(), item);
+                    schedule(item);
+                }
+            }
+        }
+
+        if (mItems.isEmpty()) {
+            onAllDone();
+            return START_NOT_STICKY;
+        }
+
+        if (mDownloadingBuilder == null) {
+            startForeground(NOTIFICATION_ID, getDownloadingBuilder().build());
+        }
+        updateNotification();
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        SimpleHandler.getInstance().removeCallbacks(mNotifyRunnable);
+        for (Item item : mItems.values()) {
+            SimpleHandler.getInstance().removeCallbacks(item.mRetryRunnable);
+            item.stop();
+        }
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        throw new IllegalStateException("No bindService");
+    }
+
+    private static String getHost(String url) {
+        String host = Uri.parse(url).getHost();
+        return host != null ? host : "";
+    }
+
+    private void schedule(Item item) {
+        DownloadRequest request = new DownloadRequest();
+        request.setOkHttpClient(NMBApplication.getOkHttpClient(this));
+        request.setUrl(item.mRaw.getUrl());
+        request.setFilename(item.mRaw.getFilename());
+        request.setMaxConnections(MAX_CONNECTIONS);
+        request.setListener(item.mListener);
+        item.mRequest = request;
+        item.mJob = mScheduler.schedule(item, NMBScheduler.PRIORITY_NORMAL, item.mHost);
+    }
+
+    private void cancelAll() {
+        for (Item item : mItems.values()) {
+            DB.removeDownload(item.mRaw);
+            // Pending ones still run to delete partial files
+            item.mCancelled = true;
+            if (item.mJob == null) {
+                // Waiting to retry
+                SimpleHandler.getInstance().removeCallbacks(item.mRetryRunnable);
+                schedule(item);
+            } else {
+                item.mRequest.cancel();
+            }
+        }
+    }
+
+    private void onItemDone(Item item, boolean ok, Exception e) {
+        item.mJob = null;
+        item.mRequest = null;
+
+        if (item.mCancelled) {
+            mItems.remove(item.mRaw.getId());
+        } else if (ok) {
+            mScheduler.reportResult(item.mHost, true);
+            DB.removeDownload(item.mRaw);
+            mItems.remove(item.mRaw.getId());
+            mFinished++;
+        } else if (e instanceof IOException && item.mRetries < MAX_RETRIES) {
+            // Network failure, try it later
+            mScheduler.reportResult(item.mHost, false);
+            item.mRetries++;
+            SimpleHandler.getInstance().postDelayed(item.mRetryRunnable, RETRY_DELAY * item.mRetries);
+        } else {
+            Log.d(TAG, "Can't download " + item.mRaw.getUrl(), e);
+            if (e instanceof IOException) {
+                // Keep it in database, it is resumed next time
+                mScheduler.reportResult(item.mHost, false);
+            } else {
+                DB.removeDownload(item.mRaw);
+            }
+            mItems.remove(item.mRaw.getId());
+            mFailed++;
+        }
+
+        if (mItems.isEmpty()) {
+            onAllDone();
+        } else {
+            updateNotification();
+        }
+    }
+
+    private void onAllDone() {
+        SimpleHandler.getInstance().removeCallbacks(mNotifyRunnable);
+        mNotifyPosted = false;
+        mDownloadingBuilder = null;
+        stopForeground(true);
+
+        if (mFinished > 0 || mFailed > 0) {
+            NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                    .setContentTitle(getString(R.string.download_finished, mFinished, mFailed))
+                    .setSmallIcon(android.R.drawable.stat_sys_download_done)
+                    .setAutoCancel(true);
+            mNotifyManager.notify(NOTIFICATION_ID, builder.build());
+        }
+
+        stopSelf();
+    }
+
+    private NotificationCompat.Builder getDownloadingBuilder() {
+        if (mDownloadingBuilder == null) {
+            Intent intent = new Intent(this, DownloadService.class);
+            intent.setAction(ACTION_CANCEL);
+            PendingIntent cancelIntent = PendingIntent.getService(this, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+
+            mDownloadingBuilder = new NotificationCompat.Builder(this);
+            mDownloadingBuilder.setSmallIcon(android.R.drawable.stat_sys_download)
+                    .setOngoing(true)
+                    .setAutoCancel(false)
+                    .setProgress(0, 0, true)
+                    .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                            getString(android.R.string.cancel), cancelIntent);
+        }
+        return mDownloadingBuilder;
+    }
+
+    /**
+     * Sums the progress of all downloads, it is called by the timer,
+     * not by the listener of every chunk.
+     */
+    private void updateNotification() {
+        if (mItems.isEmpty()) {
+            return;
+        }
+
+        long receivedSize = 0;
+        long totalSize = 0;
+        boolean indeterminate = false;
+        for (Item item : mItems.values()) {
+            long total = item.mTotalSize;
+            if (total < 0) {
+                indeterminate = true;
+            } else {
+                receivedSize += item.mReceivedSize;
+                totalSize += total;
+            }
+        }
+
+        NotificationCompat.Builder builder = getDownloadingBuilder();
+        builder.setContentTitle(getString(R.string.downloading_files, mItems.size()))
+                .setContentText(FileUtils.humanReadableByteCount(receivedSize, false) + " / " +
+                        FileUtils.humanReadableByteCount(totalSize, false));
+        if (indeterminate || totalSize <= 0) {
+            builder.setProgress(0, 0, true);
+        } else {
+            builder.setProgress(100, (int) (receivedSize * 100 / totalSize), false);
+        }
+        mNotifyManager.notify(NOTIFICATION_ID, builder.build());
+
+        if (!mNotifyPosted) {
+            mNotifyPosted = SimpleHandler.getInstance().postDelayed(mNotifyRunnable, NOTIFY_INTERVAL);
+        }
+    }
+
+    private class Item implements Runnable {
+
+        private final DownloadRaw mRaw;
+        private final String mHost;
+        private final Listener mListener = new Listener();
+
+        // Main thread only
+        private NMBScheduler.Job mJob;
+        private DownloadRequest mRequest;
+        private int mRetries;
+
+        private volatile boolean mCancelled;
+        // Written by the download thread, read by the timer
+        private volatile long mReceivedSize;
+        private volatile long mTotalSize = -1;
+
+        private final Runnable mRetryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                schedule(Item.this);
+            }
+        };
+
+        public Item(DownloadRaw raw) {
+            mRaw = raw;
+            mHost = getHost(raw.getUrl());
+        }
+
+        public void stop() {
+            if (mJob != null && !mScheduler.remove(mJob) && mRequest != null) {
+                // Running
+                mRequest.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            final DownloadRequest request = mRequest;
+            boolean ok = false;
+            Exception exception = null;
+
+            UniFile dir = UniFile.fromUri(DownloadService.this, Uri.parse(mRaw.getDir()));
+            if (dir == null || !dir.ensureDir()) {
+                exception = new IllegalStateException("Can't find dir " + mRaw.getDir());
+            } else {
+                request.setDir(dir);
+                if (mCancelled) {
+                    DownloadClient.deleteTempFiles(request);
+                } else {
+                    ok = DownloadClient.execute(request);
+                    exception = mListener.mException;
+                    if (!ok && mCancelled) {
+                        DownloadClient.deleteTempFiles(request);
+                    }
+                }
+            }
+
+            final boolean finalOk = ok;
+            final Exception finalException = exception;
+            SimpleHandler.getInstance().post(new Runnable() {
+                @Override
+                public void run() {
+                    onItemDone(Item.this, finalOk, finalException);
+                }
+            });
+        }
+
+        private class Listener extends DownloadClient.SimpleDownloadListener {
+
+            private Exception mException;
+
+            @Override
+            public void onStartDownloading() {
+                mException = null;
+            }
+
+            @Override
+            public String onFixname(String newFilename, String newExtension, String oldFilename) {
+                String name = oldFilename != null ? oldFilename : newFilename;
+                if (name != null && newExtension != null) {
+                    return name + "." + newExtension;
+                } else {
+                    return name;
+                }
+            }
+
+            @Override
+            public void onConnect(long totalSize) {
+                mTotalSize = totalSize;
+            }
+
+            @Override
+            public void onDonwlad(long receivedSize, long singleReceivedSize) {
+                mReceivedSize = receivedSize;
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                mException = e;
+            }
+        }
+    }
+}
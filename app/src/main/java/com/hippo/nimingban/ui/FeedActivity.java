@@ -55,6 +55,7 @@ import com.hippo.nimingban.util.Settings;
 import com.hippo.nimingban.widget.ContentLayout;
 import com.hippo.nimingban.widget.FontTextView;
 import com.hippo.nimingban.widget.LoadImageView;
+import com.hippo.nimingban.widget.ThumbPrefetcher;
 import com.hippo.ripple.Ripple;
 import com.hippo.util.DrawableManager;
 import com.hippo.widget.Snackbar;
@@ -86,6 +87,7 @@ public final class FeedActivity extends TranslucentActivity implements EasyRecyc
     private RecyclerViewSwipeManager mRecyclerViewSwipeManager;
     private RecyclerViewTouchActionGuardManager mRecyclerViewTouchActionGuardManager;
     private RecyclerView.OnScrollListener mOnScrollListener;
+    private ThumbPrefetcher mThumbPrefetcher;
 
     private NMBRequest mNMBRequest;
 
@@ -175,6 +177,8 @@ public final class FeedActivity extends TranslucentActivity implements EasyRecyc
             }
         };
         mRecyclerView.addOnScrollListener(mOnScrollListener);
+        mThumbPrefetcher = new ThumbPrefetcher(this, mFeedHelper);
+        mRecyclerView.addOnScrollListener(mThumbPrefetcher);
 
         // NOTE:
         // The initialization order is very important! This order determines the priority of touch event handling.
@@ -208,6 +212,11 @@ public final class FeedActivity extends TranslucentActivity implements EasyRecyc
             mRecyclerView.removeOnScrollListener(mOnScrollListener);
             mOnScrollListener = null;
         }
+        if (mThumbPrefetcher != null) {
+            mRecyclerView.removeOnScrollListener(mThumbPrefetcher);
+            mThumbPrefetcher.cancel();
+            mThumbPrefetcher = null;
+        }
 
         if (mRecyclerView != null) {
             mRecyclerView.setItemAnimator(null);
@@ -40,6 +40,7 @@ import com.hippo.conaco.DataContainer;
 import com.hippo.conaco.ProgressNotify;
 import com.hippo.drawable.ImageDrawable;
 import com.hippo.drawable.ImageWrapper;
+import com.hippo.drawable.RegionDrawable;
 import com.hippo.io.UniFileInputStreamPipe;
 import com.hippo.nimingban.ImageSearch;
 import com.hippo.nimingban.NMBAppConfig;
@@ -47,6 +48,7 @@ import com.hippo.nimingban.NMBApplication;
 import com.hippo.nimingban.R;
 import com.hippo.nimingban.client.data.Site;
 import com.hippo.nimingban.content.ImageProvider;
+import com.hippo.nimingban.service.DownloadService;
 import com.hippo.nimingban.util.BitmapUtils;
 import com.hippo.nimingban.util.OpenUrlHelper;
 import com.hippo.nimingban.util.Settings;
@@ -311,12 +313,17 @@ public class GalleryActivity2 extends SwipeBackActivity {
 
         @Override
         public void bindPagerHolder(GalleryHolder holder, int position) {
-            Object object = NMBApplication.getImageWrapperHelper(GalleryActivity2.this)
+            Object object = NMBApplication.getGalleryImageWrapperHelper(GalleryActivity2.this)
                     .decode(new UniFileInputStreamPipe(mImageFile));
             if (object != null) {
                 ImageWrapper imageWrapper = (ImageWrapper) object;
-                imageWrapper.start();
-                Drawable drawable = new ImageDrawable(imageWrapper);
+                Drawable drawable;
+                if (imageWrapper.isRegionDecodable()) {
+                    drawable = new RegionDrawable(imageWrapper);
+                } else {
+                    imageWrapper.start();
+                    drawable = new ImageDrawable(imageWrapper);
+                }
                 holder.galleryPage.showDrawable(drawable);
             } else {
                 holder.galleryPage.showFailedText();
@@ -390,7 +397,8 @@ public class GalleryActivity2 extends SwipeBackActivity {
             holder.galleryPage.unload();
 
             // Remove in cache
-            NMBApplication.getConaco(GalleryActivity2.this).getBeerBelly().remove(mImage);
+            NMBApplication.getImageConaco(GalleryActivity2.this).getBeerBelly().remove(mKey);
+            NMBApplication.getImageCacheStats(GalleryActivity2.this).recordRemove();
 
             // Remove all in save location
             UniFile dir = Settings.getImageSaveLocation();
@@ -412,13 +420,18 @@ public class GalleryActivity2 extends SwipeBackActivity {
         public void saveCurrentImage(boolean share) {
             GalleryHolder holder = getPagerHolder(0);
             UniFile dir = Settings.getImageSaveLocation();
+            String name = mSite.getReadableName(GalleryActivity2.this) + "-" + mId;
+            if (!share && dir != null && holder != null && !holder.galleryPage.isLoaded()) {
+                // Not loaded yet, let download service get it
+                DownloadService.download(GalleryActivity2.this, mImage, dir, name);
+                Toast.makeText(GalleryActivity2.this, R.string.download_queued, Toast.LENGTH_SHORT).show();
+                return;
+            }
             if (holder == null || !holder.galleryPage.isLoaded() || dir == null) {
                 onSaveTaskOver(null, share);
                 return;
             }
 
-            String name = mSite.getReadableName(GalleryActivity2.this) + "-" + mId;
-
             mSaveTask = new SingleImageSaveTask(GalleryActivity2.this, dir, name, mKey, share);
             mSaveTask.execute();
         }
@@ -724,7 +737,7 @@ public class GalleryActivity2 extends SwipeBackActivity {
             OutputStream os = null;
             try {
                 os = new FileOutputStream(temp);
-                Conaco conaco = NMBApplication.getConaco(mContext);
+                Conaco conaco = NMBApplication.getImageConaco(mContext);
                 ok = conaco.getBeerBelly().pullFromDiskCache(mKey, os);
             } catch (IOException e) {
                 ok = false;
@@ -89,6 +89,7 @@ import com.hippo.nimingban.widget.LeftDrawer;
 import com.hippo.nimingban.widget.LoadImageView;
 import com.hippo.nimingban.widget.MarqueeReplyView;
 import com.hippo.nimingban.widget.RightDrawer;
+import com.hippo.nimingban.widget.ThumbPrefetcher;
 import com.hippo.ripple.Ripple;
 import com.hippo.text.Html;
 import com.hippo.text.URLImageGetter;
@@ -147,6 +148,7 @@ public final class ListActivity extends AbsActivity
     private PostHelper mPostHelper;
     private PostAdapter mPostAdapter;
     private RecyclerView.OnScrollListener mOnScrollListener;
+    private ThumbPrefetcher mThumbPrefetcher;
 
     private NMBRequest mNMBRequest;
     private NMBRequest mUpdateRequest;
@@ -255,6 +257,7 @@ public final class ListActivity extends AbsActivity
 
         mPostHelper = new PostHelper();
         mPostHelper.setEmptyString(getString(R.string.no_post));
+        mPostHelper.setPrefetchLookAhead(Settings.getPrefetchLookAhead());
         mContentLayout.setHelper(mPostHelper);
         if (Settings.getFastScroller()) {
             mContentLayout.showFastScroll();
@@ -281,6 +284,8 @@ public final class ListActivity extends AbsActivity
             }
         };
         mRecyclerView.addOnScrollListener(mOnScrollListener);
+        mThumbPrefetcher = new ThumbPrefetcher(this, mPostHelper);
+        mRecyclerView.addOnScrollListener(mThumbPrefetcher);
 
         int interval = getResources().getDimensionPixelOffset(R.dimen.card_interval);
         if (getResources().getBoolean(R.bool.two_way)) {
@@ -451,6 +456,8 @@ public final class ListActivity extends AbsActivity
         }
 
         mRecyclerView.removeOnScrollListener(mOnScrollListener);
+        mRecyclerView.removeOnScrollListener(mThumbPrefetcher);
+        mThumbPrefetcher.cancel();
 
         for (WeakReference<ListHolder> ref : mListHolderList) {
             ListHolder holder = ref.get();
@@ -823,7 +830,7 @@ public final class ListActivity extends AbsActivity
                     View view = getLayoutInflater().inflate(R.layout.dialog_rule, null);
                     TextView tv = (TextView) view.findViewById(R.id.text);
                     tv.setText(fixURLSpan(Html.fromHtml(mCurrentForum.getNMBMsg(),
-                            new URLImageGetter(tv, NMBApplication.getConaco(this)), null)));
+                            new URLImageGetter(tv, NMBApplication.getSimpleImageConaco(this)), null)));
                     tv.setMovementMethod(new LinkMovementMethod2(ListActivity.this));
                     new AlertDialog.Builder(this).setTitle(R.string.rule).setView(view).show();
                 }
@@ -1221,6 +1228,7 @@ public final class ListActivity extends AbsActivity
                 request.setMethod(NMBClient.METHOD_GET_POST_LIST);
                 request.setArgs(forumId, page);
                 request.setCallback(new ListListener(taskId, page, forumId, request));
+                request.setIgnoreMemo(isUserRefresh(type));
                 mNMBClient.execute(request);
             }
         }
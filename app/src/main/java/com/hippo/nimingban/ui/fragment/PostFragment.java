@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
@@ -65,12 +66,14 @@ import com.hippo.nimingban.client.data.Reply;
 import com.hippo.nimingban.client.data.Site;
 import com.hippo.nimingban.ui.GalleryActivity2;
 import com.hippo.nimingban.ui.PostActivity;
+import com.hippo.nimingban.util.DB;
 import com.hippo.nimingban.util.OpenUrlHelper;
 import com.hippo.nimingban.util.ReadableTime;
 import com.hippo.nimingban.util.Settings;
 import com.hippo.nimingban.widget.ContentLayout;
 import com.hippo.nimingban.widget.LinkifyTextView;
 import com.hippo.nimingban.widget.LoadImageView;
+import com.hippo.nimingban.widget.ThumbPrefetcher;
 import com.hippo.ripple.Ripple;
 import com.hippo.util.ActivityHelper;
 import com.hippo.util.DrawableManager;
@@ -127,8 +130,11 @@ public class PostFragment extends BaseFragment
     private ReplyHelper mReplyHelper;
     private ReplyAdapter mReplyAdapter;
     private RecyclerView.OnScrollListener mOnScrollListener;
+    private ThumbPrefetcher mThumbPrefetcher;
 
     private NMBRequest mNMBRequest;
+    // The listener whose data is prefetched, not appended yet
+    private PostListener mPrefetchListener;
 
     private Site mSite;
     private String mId;
@@ -233,6 +239,7 @@ public class PostFragment extends BaseFragment
 
         mReplyHelper = new ReplyHelper();
         mReplyHelper.setEmptyString(getString(R.string.not_found));
+        mReplyHelper.setPrefetchLookAhead(Settings.getPrefetchLookAhead());
         mContentLayout.setHelper(mReplyHelper);
         if (Settings.getFastScroller()) {
             mContentLayout.showFastScroll();
@@ -259,6 +266,8 @@ public class PostFragment extends BaseFragment
             }
         };
         mRecyclerView.addOnScrollListener(mOnScrollListener);
+        mThumbPrefetcher = new ThumbPrefetcher(getContext(), mReplyHelper);
+        mRecyclerView.addOnScrollListener(mThumbPrefetcher);
 
         mOpColor = getResources().getColor(R.color.colorAccent);
 
@@ -284,6 +293,8 @@ public class PostFragment extends BaseFragment
         }
 
         mRecyclerView.removeOnScrollListener(mOnScrollListener);
+        mRecyclerView.removeOnScrollListener(mThumbPrefetcher);
+        mThumbPrefetcher.cancel();
 
         for (WeakReference<ReplyHolder> ref : mHolderList) {
             ReplyHolder holder = ref.get();
@@ -905,6 +916,14 @@ public class PostFragment extends BaseFragment
 
     private class ReplyHelper extends ContentLayout.ContentHelper<Reply> {
 
+        @Override
+        protected void onAppendPrefetchedData(int taskId) {
+            if (mPrefetchListener != null) {
+                mPrefetchListener.onAppendPrefetchedData(taskId);
+                mPrefetchListener = null;
+            }
+        }
+
         @Override
         protected Context getContext() {
             return PostFragment.this.getContext();
@@ -948,8 +967,49 @@ public class PostFragment extends BaseFragment
                 request.setMethod(NMBClient.METHOD_GET_POST);
                 request.setArgs(mId, page);
                 request.setCallback(new PostListener(taskId, type, page, request));
+                request.setIgnoreMemo(isUserRefresh(type));
                 mNMBClient.execute(request);
+
+                if (type == ContentLayout.ContentHelper.TYPE_REFRESH && page == 0 &&
+                        mReplyHelper.size() == 0 && mSite.getId() == Site.AC) {
+                    // Show the stored first page while the request is running
+                    new SnapshotTask(mId, taskId, request).execute();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the stored first page in background, it is dropped if the request is done.
+     */
+    private class SnapshotTask extends AsyncTask<Void, Void, Pair<Post, List<Reply>>> {
+
+        private final String mPostId;
+        private final int mTaskId;
+        private final NMBRequest mRequest;
+
+        public SnapshotTask(String postId, int taskId, NMBRequest request) {
+            mPostId = postId;
+            mTaskId = taskId;
+            mRequest = request;
+        }
+
+        @Override
+        protected Pair<Post, List<Reply>> doInBackground(Void... params) {
+            return DB.getACThreadPage(mPostId, 0);
+        }
+
+        @Override
+        protected void onPostExecute(Pair<Post, List<Reply>> snapshot) {
+            if (snapshot == null || mNMBRequest != mRequest) {
+                return;
             }
+
+            Post post = snapshot.first;
+            mPostUser = post.getNMBDisplayUsername();
+            List<Reply> replies = snapshot.second;
+            replies.add(0, post);
+            mReplyHelper.onGetSnapshotData(mTaskId, replies);
         }
     }
 
@@ -979,6 +1039,8 @@ public class PostFragment extends BaseFragment
         private int mTaskType;
         private int mPage;
         private NMBRequest mRequest;
+        // The post of prefetched data, kept to update pages
+        private Post mPost;
 
         public PostListener(int taskId, int type, int page, NMBRequest request) {
             mTaskId = taskId;
@@ -1004,6 +1066,7 @@ public class PostFragment extends BaseFragment
                     replies.add(0, post);
                 }
 
+                boolean prefetch = mReplyHelper.isPrefetchTask(mTaskId);
                 boolean empty;
                 if (replies.isEmpty()) {
                     empty = true;
@@ -1013,39 +1076,59 @@ public class PostFragment extends BaseFragment
                     mReplyHelper.onGetPageData(mTaskId, replies);
                 }
 
-                if (!empty && (mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE ||
-                        mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE_KEEP_POS ||
-                        mTaskType == ContentLayout.ContentHelper.TYPE_REFRESH ||
-                        mTaskType == ContentLayout.ContentHelper.TYPE_SOMEWHERE) &&
-                        mReplyHelper.size() == post.getNMBReplyCount() + 1) { // post is in data, so +1
-                    mReplyHelper.setPages(mPage + 1); // this is the last page
-                } else if (mPageSize == 0) {
-                    mReplyHelper.setPages(1); // Only post, no reply
-                } else if (empty && (mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE ||
-                        mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE_KEEP_POS)) {
-                    mReplyHelper.setPages(mPage); // previous page is the last page
-                } else if (mPageSize != -1) {
-                    mReplyHelper.setPages(MathUtils.ceilDivide(post.getNMBReplyCount(), mPageSize)); // Guess2
-                } else if (mTaskType == ContentLayout.ContentHelper.TYPE_REFRESH_PAGE ||
-                        mTaskType == ContentLayout.ContentHelper.TYPE_PRE_PAGE ||
-                        mTaskType == ContentLayout.ContentHelper.TYPE_PRE_PAGE_KEEP_POS ||
-                        mTaskType == ContentLayout.ContentHelper.TYPE_SOMEWHERE) {
-                    // Keep the pages
+                if (prefetch && !empty) {
+                    // Pages are updated when the data is appended
+                    mPost = post;
+                    mPrefetchListener = this;
                 } else {
-                    int pages = mReplyHelper.getPages();
-                    if (pages != -1 && pages != Integer.MAX_VALUE) {
-                        // Keep it
-                    } else if (empty) {
-                        mReplyHelper.setPages(1); // At least we get post
-                    } else {
-                        mReplyHelper.setPages(Integer.MAX_VALUE); // Keep going
-                    }
+                    updatePages(post, empty);
                 }
             }
             // Clear
             mRequest = null;
         }
 
+        private void updatePages(Post post, boolean empty) {
+            if (!empty && (mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE ||
+                    mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE_KEEP_POS ||
+                    mTaskType == ContentLayout.ContentHelper.TYPE_REFRESH ||
+                    mTaskType == ContentLayout.ContentHelper.TYPE_SOMEWHERE) &&
+                    mReplyHelper.size() == post.getNMBReplyCount() + 1) { // post is in data, so +1
+                mReplyHelper.setPages(mPage + 1); // this is the last page
+            } else if (mPageSize == 0) {
+                mReplyHelper.setPages(1); // Only post, no reply
+            } else if (empty && (mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE ||
+                    mTaskType == ContentLayout.ContentHelper.TYPE_NEXT_PAGE_KEEP_POS)) {
+                mReplyHelper.setPages(mPage); // previous page is the last page
+            } else if (mPageSize != -1) {
+                mReplyHelper.setPages(MathUtils.ceilDivide(post.getNMBReplyCount(), mPageSize)); // Guess2
+            } else if (mTaskType == ContentLayout.ContentHelper.TYPE_REFRESH_PAGE ||
+                    mTaskType == ContentLayout.ContentHelper.TYPE_PRE_PAGE ||
+                    mTaskType == ContentLayout.ContentHelper.TYPE_PRE_PAGE_KEEP_POS ||
+                    mTaskType == ContentLayout.ContentHelper.TYPE_SOMEWHERE) {
+                // Keep the pages
+            } else {
+                int pages = mReplyHelper.getPages();
+                if (pages != -1 && pages != Integer.MAX_VALUE) {
+                    // Keep it
+                } else if (empty) {
+                    mReplyHelper.setPages(1); // At least we get post
+                } else {
+                    mReplyHelper.setPages(Integer.MAX_VALUE); // Keep going
+                }
+            }
+        }
+
+        /**
+         * Called when the prefetched data of this listener is appended.
+         */
+        public void onAppendPrefetchedData(int taskId) {
+            if (taskId == mTaskId && mPost != null) {
+                updatePages(mPost, false);
+            }
+            mPost = null;
+        }
+
         @Override
         public void onFailure(Exception e) {
             if (mNMBRequest == mRequest) {
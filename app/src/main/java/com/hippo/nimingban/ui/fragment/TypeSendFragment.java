@@ -18,11 +18,15 @@ package com.hippo.nimingban.ui.fragment;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
@@ -34,6 +38,7 @@ import android.provider.MediaStore;
 import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
+import android.support.v7.app.NotificationCompat;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.StaggeredGridLayoutManager;
 import android.support.v7.widget.Toolbar;
@@ -65,6 +70,7 @@ import com.hippo.nimingban.NMBApplication;
 import com.hippo.nimingban.R;
 import com.hippo.nimingban.client.NMBClient;
 import com.hippo.nimingban.client.NMBRequest;
+import com.hippo.nimingban.client.ac.ACImageCompressor;
 import com.hippo.nimingban.client.ac.ACUrl;
 import com.hippo.nimingban.client.ac.data.ACPostStruct;
 import com.hippo.nimingban.client.ac.data.ACReplyStruct;
@@ -147,6 +153,8 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
     private Uri mSeletedImageUri;
     private String mSeletedImageType;
     private Bitmap mSeletedImageBitmap;
+    // Compresses the selected image while typing
+    private ACImageCompressor.Task mImageCompression;
 
     private Uri mCameraImageUri;
 
@@ -698,13 +706,18 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
         struct.image = mSeletedImageUri != null ? new UriInputStreamPipe(
                 getContext().getApplicationContext(), mSeletedImageUri) : null;
         struct.imageType = mSeletedImageType;
+        struct.imageCompression = mImageCompression;
+        // Owned by the request now
+        mImageCompression = null;
         struct.water = mWatermark.isChecked();
 
         NMBRequest request = new NMBRequest();
         request.setSite(mSite);
         request.setMethod(NMBClient.METHOD_REPLY);
         request.setArgs(struct);
-        request.setCallback(new ActionListener(getContext(), mMethod, mId, struct.content, mSeletedImageBitmap));
+        ActionListener listener = new ActionListener(getContext(), mMethod, mId, struct.content, mSeletedImageBitmap);
+        listener.setRequest(request);
+        request.setCallback(listener);
         mNMBClient.execute(request);
 
         SimpleHandler.getInstance().post(new Runnable() {
@@ -725,13 +738,18 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
         struct.image = mSeletedImageUri != null ? new UriInputStreamPipe(
                 getContext().getApplicationContext(), mSeletedImageUri) : null;
         struct.imageType = mSeletedImageType;
+        struct.imageCompression = mImageCompression;
+        // Owned by the request now
+        mImageCompression = null;
         struct.water = mWatermark.isChecked();
 
         NMBRequest request = new NMBRequest();
         request.setSite(mSite);
         request.setMethod(NMBClient.METHOD_CREATE_POST);
         request.setArgs(struct);
-        request.setCallback(new ActionListener(getContext(), mMethod, mId, struct.content, mSeletedImageBitmap));
+        ActionListener listener = new ActionListener(getContext(), mMethod, mId, struct.content, mSeletedImageBitmap);
+        listener.setRequest(request);
+        request.setCallback(listener);
         mNMBClient.execute(request);
 
         SimpleHandler.getInstance().post(new Runnable() {
@@ -844,10 +862,18 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
         new AlertDialog.Builder(getContext()).setItems(mForumNames, listener).show();
     }
 
+    private void cancelImageCompression() {
+        if (mImageCompression != null) {
+            mImageCompression.cancel();
+            mImageCompression = null;
+        }
+    }
+
     private void clearImagePreview() {
         mSeletedImageUri = null;
         mSeletedImageType = null;
         mSeletedImageBitmap = null;
+        cancelImageCompression();
 
         mPreview.setImageDrawable(null);
         mImagePreview.setVisibility(View.GONE);
@@ -866,6 +892,9 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
         mSeletedImageUri = uri;
         mSeletedImageType = type;
         mSeletedImageBitmap = bitmap;
+        cancelImageCompression();
+        mImageCompression = ACImageCompressor.start(new UriInputStreamPipe(
+                getContext().getApplicationContext(), uri), type);
 
         mPreview.setImageBitmap(bitmap);
         mImagePreview.setVisibility(View.VISIBLE);
@@ -941,7 +970,13 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
         }
     }
 
-    private static class ActionListener implements NMBClient.Callback<Void> {
+    private static class ActionListener implements NMBClient.ProgressCallback<Void> {
+
+        private static final String ACTION_CANCEL_UPLOADING =
+                "com.hippo.nimingban.ui.fragment.TypeSendFragment.CANCEL_UPLOADING";
+
+        // Different from the ones of UpdateHelper and DaDiaoService
+        private static int sNextNotifyId = 100;
 
         private Context mContext;
         @Method
@@ -950,6 +985,12 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
         private String mContent;
         private Bitmap mImage;
 
+        private NMBRequest mRequest;
+        private final int mNotifyId = sNextNotifyId++;
+        private NotificationCompat.Builder mUploadingBuilder;
+        private BroadcastReceiver mCancelReceiver;
+        private int mPercent = -1;
+
         public ActionListener(Context context, @Method int method, String id, String content, Bitmap image) {
             mContext = context.getApplicationContext();
             mMethod = method;
@@ -960,6 +1001,67 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
             Toast.makeText(context, method == METHOD_REPLY ? R.string.start_reply : R.string.start_creating_post, Toast.LENGTH_SHORT).show();
         }
 
+        public void setRequest(NMBRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public void onProgress(long sent, long total) {
+            if (total <= 0) {
+                return;
+            }
+            int percent = (int) (sent * 100 / total);
+            if (percent == mPercent) {
+                return;
+            }
+            mPercent = percent;
+
+            if (mUploadingBuilder == null) {
+                // Cancel action of the notification cancels the request
+                String action = ACTION_CANCEL_UPLOADING + "." + mNotifyId;
+                mCancelReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        if (mRequest != null) {
+                            mRequest.cancel();
+                        }
+                    }
+                };
+                mContext.registerReceiver(mCancelReceiver, new IntentFilter(action));
+                PendingIntent cancelIntent = PendingIntent.getBroadcast(mContext, 0,
+                        new Intent(action), PendingIntent.FLAG_UPDATE_CURRENT);
+
+                mUploadingBuilder = new NotificationCompat.Builder(mContext);
+                mUploadingBuilder.setContentTitle(mContext.getString(R.string.uploading_image))
+                        .setSmallIcon(android.R.drawable.stat_sys_upload)
+                        .setOngoing(true)
+                        .setAutoCancel(false)
+                        .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                                mContext.getString(android.R.string.cancel), cancelIntent);
+            }
+
+            mUploadingBuilder.setContentText(FileUtils.humanReadableByteCount(sent, false) +
+                    " / " + FileUtils.humanReadableByteCount(total, false))
+                    .setProgress(100, percent, false);
+            getNotificationManager().notify(mNotifyId, mUploadingBuilder.build());
+        }
+
+        private NotificationManager getNotificationManager() {
+            return (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        }
+
+        private void finishUploading() {
+            mRequest = null;
+            if (mUploadingBuilder != null) {
+                getNotificationManager().cancel(mNotifyId);
+                mUploadingBuilder = null;
+            }
+            if (mCancelReceiver != null) {
+                mContext.unregisterReceiver(mCancelReceiver);
+                mCancelReceiver = null;
+            }
+        }
+
         private void addToRecord(String image) {
             int type;
             String recordid = null;
@@ -980,6 +1082,8 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
 
         @Override
         public void onSuccess(Void result) {
+            finishUploading();
+
             if (mImage != null) {
                 // Save image file in new thread
                 // TODO looks ugly
@@ -1024,6 +1128,7 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
 
         @Override
         public void onFailure(final Exception e) {
+            finishUploading();
             mImage = null;
 
             if (!TextUtils.isEmpty(mContent)) {
@@ -1045,6 +1150,7 @@ public final class TypeSendFragment extends BaseFragment implements View.OnClick
 
         @Override
         public void onCancel() {
+            finishUploading();
             mImage = null;
 
             Log.d(TAG, "ActionListener onCancel");
@@ -18,19 +18,34 @@ package com.hippo.nimingban.util;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import android.util.Pair;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
 import com.hippo.nimingban.client.ac.data.ACForum;
+import com.hippo.nimingban.client.ac.data.ACPost;
+import com.hippo.nimingban.client.ac.data.ACReply;
 import com.hippo.nimingban.client.data.ACSite;
 import com.hippo.nimingban.client.data.CommonPost;
 import com.hippo.nimingban.client.data.DisplayForum;
+import com.hippo.nimingban.client.data.Post;
+import com.hippo.nimingban.client.data.Reply;
 import com.hippo.nimingban.dao.ACCommonPostDao;
 import com.hippo.nimingban.dao.ACCommonPostRaw;
 import com.hippo.nimingban.dao.ACForumDao;
 import com.hippo.nimingban.dao.ACForumRaw;
 import com.hippo.nimingban.dao.ACRecordDao;
 import com.hippo.nimingban.dao.ACRecordRaw;
+import com.hippo.nimingban.dao.ACThreadDao;
+import com.hippo.nimingban.dao.ACThreadPageDao;
+import com.hippo.nimingban.dao.ACThreadPageRaw;
+import com.hippo.nimingban.dao.ACThreadRaw;
 import com.hippo.nimingban.dao.DaoMaster;
 import com.hippo.nimingban.dao.DaoSession;
+import com.hippo.nimingban.dao.DownloadDao;
+import com.hippo.nimingban.dao.DownloadRaw;
 import com.hippo.nimingban.dao.DraftDao;
 import com.hippo.nimingban.dao.DraftRaw;
 import com.hippo.util.Arrays2;
@@ -44,6 +59,8 @@ import de.greenrobot.dao.query.LazyList;
 
 public final class DB {
 
+    private static final String TAG = DB.class.getSimpleName();
+
     private static String[] AC_FORUM_ID_ARRAY = {"4", "20", "11", "30", "32", "40", "35", "56", "103", "17", "98",
             "102", "97", "89", "27", "81", "106", "104", "14", "12", "99", "90", "87", "19", "64", "6", "5",
             "93", "101", "2", "73", "72", "86", "22", "70", "107", "108", "95", "10", "34", "51", "44", "23",
@@ -370,6 +387,11 @@ public final class DB {
                 case 3:
                     db.execSQL("ALTER TABLE '" + ACForumDao.TABLENAME + "' ADD COLUMN '" +
                             ACForumDao.Properties.Msg.columnName + "' TEXT");
+                case 4:
+                    ACThreadDao.createTable(db, true);
+                    ACThreadPageDao.createTable(db, true);
+                case 5:
+                    DownloadDao.createTable(db, true);
             }
         }
 
@@ -620,6 +642,39 @@ public final class DB {
         sDaoSession.getDraftDao().deleteByKey(id);
     }
 
+    public static List<DownloadRaw> getDownloads() {
+        return sDaoSession.getDownloadDao().queryBuilder().orderAsc(DownloadDao.Properties.Time).list();
+    }
+
+    public static boolean hasDownloads() {
+        return sDaoSession.getDownloadDao().count() > 0;
+    }
+
+    /**
+     * Returns the download to the same file if it is in the queue,
+     * two of them would write the same temp file.
+     */
+    public static DownloadRaw addDownload(String url, String dir, String filename) {
+        List<DownloadRaw> list = sDaoSession.getDownloadDao().queryBuilder()
+                .where(DownloadDao.Properties.Dir.eq(dir),
+                        DownloadDao.Properties.Filename.eq(filename)).limit(1).list();
+        if (!list.isEmpty()) {
+            return list.get(0);
+        }
+
+        DownloadRaw raw = new DownloadRaw();
+        raw.setUrl(url);
+        raw.setDir(dir);
+        raw.setFilename(filename);
+        raw.setTime(System.currentTimeMillis());
+        sDaoSession.getDownloadDao().insert(raw);
+        return raw;
+    }
+
+    public static void removeDownload(DownloadRaw raw) {
+        sDaoSession.getDownloadDao().delete(raw);
+    }
+
     public static final int AC_RECORD_POST = 0;
     public static final int AC_RECORD_REPLY = 1;
 
@@ -673,4 +728,142 @@ public final class DB {
 
         dao.insertInTx(insertList);
     }
+
+    /**
+     * The max number of threads in snapshot store
+     */
+    private static final int MAX_AC_THREAD = 50;
+
+    private static JSONObject toJSONObject(ACPost post) {
+        JSONObject jo = new JSONObject();
+        jo.put("id", post.id);
+        jo.put("img", post.img);
+        jo.put("ext", post.ext);
+        jo.put("now", post.now);
+        jo.put("userid", post.userid);
+        jo.put("name", post.name);
+        jo.put("email", post.email);
+        jo.put("title", post.title);
+        jo.put("content", post.content);
+        jo.put("sage", post.sage);
+        jo.put("admin", post.admin);
+        jo.put("replyCount", post.replyCount);
+        return jo;
+    }
+
+    private static JSONObject toJSONObject(ACReply reply) {
+        JSONObject jo = new JSONObject();
+        jo.put("id", reply.id);
+        jo.put("img", reply.img);
+        jo.put("ext", reply.ext);
+        jo.put("now", reply.now);
+        jo.put("userid", reply.userid);
+        jo.put("name", reply.name);
+        jo.put("email", reply.email);
+        jo.put("title", reply.title);
+        jo.put("content", reply.content);
+        jo.put("sage", reply.sage);
+        jo.put("admin", reply.admin);
+        return jo;
+    }
+
+    private static ACThreadRaw getACThreadRaw(String postId) {
+        List<ACThreadRaw> list = sDaoSession.getACThreadDao().queryBuilder()
+                .where(ACThreadDao.Properties.Postid.eq(postId)).limit(1).list();
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    private static ACThreadPageRaw getACThreadPageRaw(String postId, int page) {
+        List<ACThreadPageRaw> list = sDaoSession.getACThreadPageDao().queryBuilder()
+                .where(ACThreadPageDao.Properties.Postid.eq(postId),
+                        ACThreadPageDao.Properties.Page.eq(page)).limit(1).list();
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    private static void removeACThread(ACThreadRaw raw) {
+        sDaoSession.getACThreadPageDao().queryBuilder()
+                .where(ACThreadPageDao.Properties.Postid.eq(raw.getPostid()))
+                .buildDelete().executeDeleteWithoutDetachingEntities();
+        sDaoSession.getACThreadDao().delete(raw);
+    }
+
+    private static void trimACThreads() {
+        ACThreadDao dao = sDaoSession.getACThreadDao();
+        long count = dao.count();
+        if (count <= MAX_AC_THREAD) {
+            return;
+        }
+        List<ACThreadRaw> list = dao.queryBuilder().orderAsc(ACThreadDao.Properties.Time)
+                .limit((int) (count - MAX_AC_THREAD)).list();
+        for (ACThreadRaw raw : list) {
+            removeACThread(raw);
+        }
+    }
+
+    /**
+     * Store a fetched page of the thread, the header of the thread is updated too.
+     */
+    public static synchronized void putACThreadPage(ACPost post, int page) {
+        String postId = post.id;
+        long time = System.currentTimeMillis();
+
+        JSONArray ja = new JSONArray();
+        if (post.replys != null) {
+            for (ACReply reply : post.replys) {
+                ja.add(toJSONObject(reply));
+            }
+        }
+
+        ACThreadRaw thread = getACThreadRaw(postId);
+        if (thread == null) {
+            thread = new ACThreadRaw();
+            thread.setPostid(postId);
+        }
+        thread.setPost(toJSONObject(post).toJSONString());
+        thread.setTime(time);
+        sDaoSession.getACThreadDao().insertOrReplace(thread);
+
+        ACThreadPageRaw threadPage = getACThreadPageRaw(postId, page);
+        if (threadPage == null) {
+            threadPage = new ACThreadPageRaw();
+            threadPage.setPostid(postId);
+            threadPage.setPage(page);
+        }
+        threadPage.setReplies(ja.toJSONString());
+        threadPage.setTime(time);
+        sDaoSession.getACThreadPageDao().insertOrReplace(threadPage);
+
+        trimACThreads();
+    }
+
+    /**
+     * Get the stored page of the thread, it is generated.
+     *
+     * @return null if not stored
+     */
+    public static synchronized Pair<Post, List<Reply>> getACThreadPage(String postId, int page) {
+        ACThreadRaw thread = getACThreadRaw(postId);
+        if (thread == null) {
+            return null;
+        }
+        ACThreadPageRaw threadPage = getACThreadPageRaw(postId, page);
+        if (threadPage == null) {
+            return null;
+        }
+
+        try {
+            ACPost post = JSON.parseObject(thread.getPost(), ACPost.class);
+            List<ACReply> replies = JSON.parseArray(threadPage.getReplies(), ACReply.class);
+            if (post == null || replies == null) {
+                return null;
+            }
+            post.replys = replies;
+            post.generateSelfAndReplies(ACSite.getInstance());
+            return new Pair<Post, List<Reply>>(post, new ArrayList<Reply>(replies));
+        } catch (Exception e) {
+            Log.w(TAG, "Bad thread snapshot " + postId, e);
+            removeACThread(thread);
+            return null;
+        }
+    }
 }
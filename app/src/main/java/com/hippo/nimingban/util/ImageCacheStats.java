@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.util;
+
+import com.hippo.conaco.Conaco;
+
+import java.io.File;
+
+/**
+ * Statistics of an image cache. Views report where their images come from,
+ * occupancy is read from the disk cache dir.
+ * <p>
+ * The disk cache doesn't report evictions, so they are estimated from
+ * the entries written, removed and left since the first {@link #update()}.
+ */
+public class ImageCacheStats {
+
+    private final String mName;
+    private final File mDir;
+    private final long mMaxSize;
+
+    private int mMemoryHitCount;
+    private int mDiskHitCount;
+    private int mMissCount;
+
+    private boolean mHasBase;
+    private int mBaseEntryCount;
+    private int mStoreCount;
+    private int mRemoveCount;
+
+    private int mEntryCount;
+    private long mSize;
+
+    public ImageCacheStats(String name, File dir, long maxSize) {
+        mName = name;
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Call it when an image is got.
+     */
+    public synchronized void record(Conaco.Source source) {
+        switch (source) {
+            case MEMORY:
+                mMemoryHitCount++;
+                break;
+            case DISK:
+                mDiskHitCount++;
+                break;
+            case NETWORK:
+                // It is written to disk cache
+                mMissCount++;
+                mStoreCount++;
+                break;
+        }
+    }
+
+    /**
+     * Call it when an entry is removed from disk cache.
+     */
+    public synchronized void recordRemove() {
+        mRemoveCount++;
+    }
+
+    /**
+     * Reads occupancy from disk. Don't call it in UI thread.
+     * It is called when the app starts and goes to background,
+     * see {@link com.hippo.nimingban.NMBApplication#updateImageCacheStats}.
+     */
+    public void update() {
+        int entryCount = 0;
+        long size = 0;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+                if (!file.getName().startsWith("journal")) {
+                    entryCount++;
+                }
+            }
+        }
+
+        synchronized (this) {
+            mEntryCount = entryCount;
+            mSize = size;
+            if (!mHasBase) {
+                mHasBase = true;
+                mBaseEntryCount = entryCount;
+                mStoreCount = 0;
+                mRemoveCount = 0;
+            }
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns disk cache size in bytes of the last {@link #update()}.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns entry count of the last {@link #update()}.
+     */
+    public synchronized int getEntryCount() {
+        return mEntryCount;
+    }
+
+    public synchronized int getMemoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns hits in memory and disk / all requests, or 0 if no request.
+     */
+    public synchronized float getHitRate() {
+        int hit = mMemoryHitCount + mDiskHitCount;
+        int all = hit + mMissCount;
+        return all == 0 ? 0.0f : (float) hit / all;
+    }
+
+    /**
+     * Returns estimated eviction count since the first {@link #update()}.
+     */
+    public synchronized int getEvictionCount() {
+        if (!mHasBase) {
+            return 0;
+        }
+        return Math.max(0, mBaseEntryCount + mStoreCount - mRemoveCount - mEntryCount);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": " + mEntryCount + " entries, " + mSize + "/" + mMaxSize + " bytes, " +
+                "hit rate " + getHitRate() + " (memory " + mMemoryHitCount + ", disk " +
+                mDiskHitCount + ", miss " + mMissCount + "), evictions " + getEvictionCount();
+    }
+}
@@ -371,6 +371,21 @@ public final class Settings {
         putInt(KEY_VERSION_CODE, value);
     }
 
+    private static final String KEY_IMAGE_CACHE_SPLIT = "image_cache_split";
+    private static final boolean DEFAULT_IMAGE_CACHE_SPLIT = false;
+
+    /**
+     * Returns true if the old thumb cache is dropped.
+     * Full images were in it before they got their own cache.
+     */
+    public static boolean getImageCacheSplit() {
+        return getBoolean(KEY_IMAGE_CACHE_SPLIT, DEFAULT_IMAGE_CACHE_SPLIT);
+    }
+
+    public static void putImageCacheSplit(boolean value) {
+        putBoolean(KEY_IMAGE_CACHE_SPLIT, value);
+    }
+
     public static final String KEY_GUIDE_LIST_ACTIVITY = "guide_list_activity";
     public static final boolean VALUE_GUIDE_LIST_ACTIVITY = true;
 
@@ -439,6 +454,61 @@ public final class Settings {
         putLong(KEY_NOTICE_DATE, value);
     }
 
+    public static final String KEY_STREAM_JSON = "stream_json";
+    public static final boolean VALUE_STREAM_JSON = true;
+
+    public static boolean getStreamJson() {
+        return getBoolean(KEY_STREAM_JSON, VALUE_STREAM_JSON);
+    }
+
+    public static void putStreamJson(boolean value) {
+        putBoolean(KEY_STREAM_JSON, value);
+    }
+
+    public static final String KEY_REQUEST_MEMO_TTL = "request_memo_ttl";
+    public static final long VALUE_REQUEST_MEMO_TTL = 10 * 1000; // 10s
+
+    /**
+     * How long a parsed thread page is reused by {@link com.hippo.nimingban.client.NMBClient}
+     * in milliseconds.
+     */
+    public static long getRequestMemoTtl() {
+        return getLong(KEY_REQUEST_MEMO_TTL, VALUE_REQUEST_MEMO_TTL);
+    }
+
+    public static void putRequestMemoTtl(long value) {
+        putLong(KEY_REQUEST_MEMO_TTL, value);
+    }
+
+    public static final String KEY_PREFETCH_LOOK_AHEAD = "prefetch_look_ahead";
+    public static final int VALUE_PREFETCH_LOOK_AHEAD = 10;
+
+    /**
+     * How many items before the end of the list the next page is prefetched.
+     * 0 for no prefetch.
+     */
+    public static int getPrefetchLookAhead() {
+        return getInt(KEY_PREFETCH_LOOK_AHEAD, VALUE_PREFETCH_LOOK_AHEAD);
+    }
+
+    public static void putPrefetchLookAhead(int value) {
+        putInt(KEY_PREFETCH_LOOK_AHEAD, value);
+    }
+
+    public static final String KEY_PARALLEL_GENERATE = "parallel_generate";
+    public static final boolean VALUE_PARALLEL_GENERATE = false;
+
+    /**
+     * Generate posts and replies of a page on several threads.
+     */
+    public static boolean getParallelGenerate() {
+        return getBoolean(KEY_PARALLEL_GENERATE, VALUE_PARALLEL_GENERATE);
+    }
+
+    public static void putParallelGenerate(boolean value) {
+        putBoolean(KEY_PARALLEL_GENERATE, value);
+    }
+
     public static final String KEY_CRASH_FILENAME = "crash_filename";
     public static final String VALUE_CRASH_FILENAME = null;
 
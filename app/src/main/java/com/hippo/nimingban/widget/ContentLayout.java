@@ -17,6 +17,7 @@
 package com.hippo.nimingban.widget;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.v7.widget.RecyclerView;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -157,10 +158,18 @@ public class ContentLayout extends FrameLayout {
         public static final int TYPE_SOMEWHERE = 5;
         public static final int TYPE_REFRESH_PAGE = 6;
 
+        /**
+         * The time to get a page, used to turn scroll velocity to items
+         */
+        private static final long PREFETCH_LATENCY = 1000;
+
         public static final int REFRESH_TYPE_HEADER = 0;
         public static final int REFRESH_TYPE_FOOTER = 1;
         public static final int REFRESH_TYPE_PROGRESS_VIEW = 2;
 
+        // The last TYPE_REFRESH task is asked by the user
+        private boolean mUserRefresh;
+
         private ProgressView mProgressView;
         private ViewGroup mTipView;
         private ViewGroup mContentView;
@@ -212,15 +221,46 @@ public class ContentLayout extends FrameLayout {
 
         private int mNextPageScrollSize;
 
+        /**
+         * The id of the refresh task whose snapshot is shown
+         */
+        private int mSnapshotTaskId = -1;
+
+        /**
+         * Items left before the end of data to start prefetch, 0 for no prefetch
+         */
+        private int mPrefetchLookAhead;
+        private int mPrefetchTaskId = -1;
+        private int mPrefetchPage = -1;
+        /**
+         * The prefetched page, it is appended when the user gets there
+         */
+        private List<E> mPrefetchData;
+        // The task which got mPrefetchData
+        private int mPrefetchDataTaskId = -1;
+        /**
+         * Append without stopping the scroll
+         */
+        private boolean mAppendingPrefetch;
+
+        private long mLastScrollTime;
+        /**
+         * Scroll velocity in pixels per millisecond
+         */
+        private float mScrollVelocity;
+
         private String mEmptyString = "No hint";
 
         private RecyclerView.OnScrollListener mOnScrollListener = new RecyclerView.OnScrollListener() {
             @Override
             public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                updateScrollVelocity(dy);
                 if (!mRefreshLayout.isRefreshing() && mRefreshLayout.isAlmostBottom() && mEndPage < mPages) {
                     // Get next page
                     mRefreshLayout.setFooterRefreshing(true);
                     mOnRefreshListener.onFooterRefresh();
+                } else if (dy > 0) {
+                    prefetchIfNeeded();
                 }
             }
         };
@@ -228,13 +268,14 @@ public class ContentLayout extends FrameLayout {
         private RefreshLayout.OnRefreshListener mOnRefreshListener = new RefreshLayout.OnRefreshListener() {
             @Override
             public void onHeaderRefresh() {
+                clearPrefetch();
                 if (mStartPage > 0) {
                     mCurrentTaskId = mIdGenerator.nextId();
                     mCurrentTaskType = TYPE_PRE_PAGE_KEEP_POS;
                     mCurrentTaskPage = mStartPage - 1;
                     getPageData(mCurrentTaskId, mCurrentTaskType, mCurrentTaskPage);
                 } else {
-                    doRefresh();
+                    doRefresh(true);
                 }
             }
 
@@ -242,11 +283,9 @@ public class ContentLayout extends FrameLayout {
             public void onFooterRefresh() {
                 if (mEndPage < mPages) {
                     // Get next page
-                    mCurrentTaskId = mIdGenerator.nextId();
-                    mCurrentTaskType = TYPE_NEXT_PAGE_KEEP_POS;
-                    mCurrentTaskPage = mEndPage;
-                    getPageData(mCurrentTaskId, mCurrentTaskType, mCurrentTaskPage);
+                    getNextPage(TYPE_NEXT_PAGE_KEEP_POS);
                 } else if (mEndPage == mPages) {
+                    clearPrefetch();
                     // Refresh last page
                     mCurrentTaskId = mIdGenerator.nextId();
                     mCurrentTaskType = TYPE_REFRESH_PAGE;
@@ -301,6 +340,14 @@ public class ContentLayout extends FrameLayout {
          */
         protected abstract void getPageData(int taskId, int type, int page);
 
+        /**
+         * Returns true if the task is a refresh asked by the user,
+         * not the first load. Data got a moment ago should not be used.
+         */
+        protected boolean isUserRefresh(int type) {
+            return type == TYPE_REFRESH_PAGE || (type == TYPE_REFRESH && mUserRefresh);
+        }
+
         protected abstract Context getContext();
 
         protected abstract void notifyDataSetChanged();
@@ -312,6 +359,13 @@ public class ContentLayout extends FrameLayout {
         protected void onScrollToPosition() {
         }
 
+        /**
+         * Called after the data got by the prefetch task is appended,
+         * the user gets there.
+         */
+        protected void onAppendPrefetchedData(int taskId) {
+        }
+
         protected void onShowProgress() {
         }
 
@@ -373,7 +427,114 @@ public class ContentLayout extends FrameLayout {
             notifyItemRangeRemoved(index, 1);
         }
 
+        /**
+         * Set how many items before the end of data to prefetch the next page,
+         * 0 for no prefetch. The look-ahead grows with scroll velocity.
+         */
+        public void setPrefetchLookAhead(int lookAhead) {
+            mPrefetchLookAhead = Math.max(0, lookAhead);
+            if (mPrefetchLookAhead == 0) {
+                clearPrefetch();
+            }
+        }
+
+        private void updateScrollVelocity(int dy) {
+            long now = SystemClock.uptimeMillis();
+            long interval = now - mLastScrollTime;
+            mLastScrollTime = now;
+            if (interval <= 0 || interval > 100) {
+                // A new scroll
+                mScrollVelocity = 0.0f;
+            } else {
+                // Smooth it
+                mScrollVelocity = 0.5f * mScrollVelocity + 0.5f * dy / interval;
+            }
+        }
+
+        /**
+         * Returns true if the task is a running prefetch. Its data is kept,
+         * not shown until the user gets there.
+         */
+        public boolean isPrefetchTask(int taskId) {
+            return isPrefetching(taskId);
+        }
+
+        private boolean isPrefetching(int taskId) {
+            return mPrefetchTaskId == taskId && mCurrentTaskId != taskId;
+        }
+
+        private void clearPrefetch() {
+            mPrefetchTaskId = -1;
+            mPrefetchPage = -1;
+            mPrefetchData = null;
+            mPrefetchDataTaskId = -1;
+        }
+
+        /**
+         * Get page {@code mEndPage}, prefetched data or running prefetch is used.
+         */
+        private void getNextPage(int type) {
+            if (mPrefetchPage == mEndPage && mPrefetchData != null) {
+                // Prefetched, append it now
+                List<E> data = mPrefetchData;
+                int prefetchTaskId = mPrefetchDataTaskId;
+                clearPrefetch();
+                mCurrentTaskId = mIdGenerator.nextId();
+                mCurrentTaskType = type;
+                mCurrentTaskPage = mEndPage;
+                mAppendingPrefetch = type == TYPE_NEXT_PAGE_KEEP_POS;
+                onGetPageData(mCurrentTaskId, data);
+                mAppendingPrefetch = false;
+                onAppendPrefetchedData(prefetchTaskId);
+            } else if (mPrefetchPage == mEndPage && mPrefetchTaskId != -1) {
+                // Prefetching, take it as current task
+                mCurrentTaskId = mPrefetchTaskId;
+                mCurrentTaskType = type;
+                mCurrentTaskPage = mEndPage;
+                clearPrefetch();
+            } else {
+                clearPrefetch();
+                mCurrentTaskId = mIdGenerator.nextId();
+                mCurrentTaskType = type;
+                mCurrentTaskPage = mEndPage;
+                getPageData(mCurrentTaskId, mCurrentTaskType, mCurrentTaskPage);
+            }
+        }
+
+        private void prefetchIfNeeded() {
+            if (mPrefetchLookAhead <= 0 || mRefreshLayout.isRefreshing() || !isContentShowning() ||
+                    mEndPage >= mPages || mPrefetchPage == mEndPage) {
+                return;
+            }
+
+            RecyclerView.LayoutManager layoutManager = mRecyclerView.getLayoutManager();
+            int first = LayoutManagerUtils.getFirstVisibleItemPosition(layoutManager);
+            int last = LayoutManagerUtils.getLastVisibleItemPosition(layoutManager);
+            if (first < 0 || last < first) {
+                return;
+            }
+
+            // Items which will be passed before the next page comes
+            int itemHeight = Math.max(1, mRecyclerView.getHeight() / (last - first + 1));
+            int predicted = (int) (Math.max(0.0f, mScrollVelocity) * PREFETCH_LATENCY / itemHeight);
+            int left = mData.size() - 1 - last;
+            if (left > mPrefetchLookAhead + predicted) {
+                return;
+            }
+
+            clearPrefetch();
+            mPrefetchTaskId = mIdGenerator.nextId();
+            mPrefetchPage = mEndPage;
+            getPageData(mPrefetchTaskId, TYPE_NEXT_PAGE_KEEP_POS, mPrefetchPage);
+        }
+
         public void onGetEmptyData(int taskId) {
+            if (isPrefetching(taskId)) {
+                // No next page
+                clearPrefetch();
+                return;
+            }
+
             if (mCurrentTaskId != taskId) {
                 return;
             }
@@ -398,10 +559,51 @@ public class ContentLayout extends FrameLayout {
             mRefreshLayout.setFooterRefreshing(false);
         }
 
+        /**
+         * Show the stored data of the first page at once for {@link #TYPE_REFRESH} task.
+         * The task keeps running, call {@link #onGetPageData(int, List)} later.
+         * It does not scroll to top, so the user could keep reading the snapshot.
+         */
+        public void onGetSnapshotData(int taskId, List<E> data) {
+            if (mCurrentTaskId != taskId || mCurrentTaskType != TYPE_REFRESH || data.isEmpty()) {
+                return;
+            }
+
+            showContent();
+
+            mStartPage = 0;
+            mEndPage = 1;
+            mPageDivider.clear();
+            mPageDivider.add(data.size());
+
+            mData.clear();
+            mData.addAll(data);
+            notifyDataSetChanged();
+
+            mSnapshotTaskId = taskId;
+            mRefreshLayout.setFooterRefreshing(false);
+            mRefreshLayout.setHeaderRefreshing(true);
+        }
+
         public void onGetPageData(int taskId, List<E> data) {
+            if (isPrefetching(taskId)) {
+                // Keep it until the user gets there
+                mPrefetchTaskId = -1;
+                if (mPrefetchPage == mEndPage) {
+                    mPrefetchData = new ArrayList<>(data);
+                    mPrefetchDataTaskId = taskId;
+                } else {
+                    clearPrefetch();
+                }
+                return;
+            }
+
             if (mCurrentTaskId == taskId) {
                 showContent();
 
+                boolean showingSnapshot = mSnapshotTaskId == taskId;
+                mSnapshotTaskId = -1;
+
                 int dataSize;
                 switch (mCurrentTaskType) {
                     case TYPE_REFRESH:
@@ -414,9 +616,11 @@ public class ContentLayout extends FrameLayout {
                         mData.addAll(data);
                         notifyDataSetChanged();
 
-                        mRecyclerView.stopScroll();
-                        LayoutManagerUtils.scrollToPositionWithOffset(mRecyclerView.getLayoutManager(), 0, 0);
-                        onScrollToPosition();
+                        if (!showingSnapshot) {
+                            mRecyclerView.stopScroll();
+                            LayoutManagerUtils.scrollToPositionWithOffset(mRecyclerView.getLayoutManager(), 0, 0);
+                            onScrollToPosition();
+                        }
                         break;
                     case TYPE_PRE_PAGE:
                     case TYPE_PRE_PAGE_KEEP_POS:
@@ -451,7 +655,9 @@ public class ContentLayout extends FrameLayout {
                         mPageDivider.add(oldDataSize + dataSize);
 
                         mEndPage++;
-                        if (mCurrentTaskType == TYPE_NEXT_PAGE_KEEP_POS) {
+                        if (mAppendingPrefetch) {
+                            // Keep scrolling
+                        } else if (mCurrentTaskType == TYPE_NEXT_PAGE_KEEP_POS) {
                             mRecyclerView.stopScroll();
                             mRecyclerView.smoothScrollBy(0, mNextPageScrollSize);
                             onScrollToPosition();
@@ -509,6 +715,13 @@ public class ContentLayout extends FrameLayout {
         }
 
         public void onGetExpection(int taskId, Exception e) {
+            if (isPrefetching(taskId)) {
+                // The user will get it again when there
+                Log.d(TAG, "Prefetch failed", e);
+                clearPrefetch();
+                return;
+            }
+
             if (mCurrentTaskId == taskId) {
                 if (e != null) {
                     e.printStackTrace();
@@ -582,13 +795,16 @@ public class ContentLayout extends FrameLayout {
                     break;
             }
 
+            clearPrefetch();
             mCurrentTaskId = mIdGenerator.nextId();
             mCurrentTaskType = type;
             mCurrentTaskPage = page;
             getPageData(mCurrentTaskId, mCurrentTaskType, mCurrentTaskPage);
         }
 
-        private void doRefresh() {
+        private void doRefresh(boolean userRefresh) {
+            clearPrefetch();
+            mUserRefresh = userRefresh;
             mCurrentTaskId = mIdGenerator.nextId();
             mCurrentTaskType = TYPE_REFRESH;
             mCurrentTaskPage = 0;
@@ -600,7 +816,7 @@ public class ContentLayout extends FrameLayout {
          */
         public void firstRefresh() {
             showProgressBar(false);
-            doRefresh();
+            doRefresh(false);
         }
 
         /**
@@ -608,7 +824,7 @@ public class ContentLayout extends FrameLayout {
          */
         public void refresh() {
             showProgressBar();
-            doRefresh();
+            doRefresh(true);
         }
 
         private void cancelCurrentTask() {
@@ -673,6 +889,7 @@ public class ContentLayout extends FrameLayout {
                 LayoutManagerUtils.scrollToPositionWithOffset(mRecyclerView.getLayoutManager(), position, 0);
                 onScrollToPosition();
             } else if (page == mStartPage - 1) {
+                clearPrefetch();
                 mRefreshLayout.setFooterRefreshing(false);
                 mRefreshLayout.setHeaderRefreshing(true);
 
@@ -684,11 +901,9 @@ public class ContentLayout extends FrameLayout {
                 mRefreshLayout.setHeaderRefreshing(false);
                 mRefreshLayout.setFooterRefreshing(true);
 
-                mCurrentTaskId = mIdGenerator.nextId();
-                mCurrentTaskType = TYPE_NEXT_PAGE;
-                mCurrentTaskPage = page;
-                getPageData(mCurrentTaskId, mCurrentTaskType, mCurrentTaskPage);
+                getNextPage(TYPE_NEXT_PAGE);
             } else {
+                clearPrefetch();
                 mRefreshLayout.setFooterRefreshing(false);
                 mRefreshLayout.setHeaderRefreshing(true);
 
@@ -17,6 +17,7 @@
 package com.hippo.nimingban.widget;
 
 import android.content.Context;
+import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
@@ -31,17 +32,22 @@ import com.hippo.conaco.Unikery;
 import com.hippo.conaco.ValueHolder;
 import com.hippo.drawable.ImageDrawable;
 import com.hippo.drawable.ImageWrapper;
+import com.hippo.drawable.RegionDrawable;
 import com.hippo.nimingban.NMBApplication;
 import com.hippo.nimingban.R;
+import com.hippo.nimingban.util.ImageCacheStats;
 import com.hippo.widget.ProgressView;
 
 import uk.co.senab.photoview.PhotoView;
+import uk.co.senab.photoview.PhotoViewAttacher;
 
-public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapper>, View.OnClickListener {
+public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapper>, View.OnClickListener,
+        PhotoViewAttacher.OnMatrixChangedListener {
 
     private int mTaskId = Unikery.INVALID_ID;
 
     private Conaco<ImageWrapper> mConaco;
+    private ImageCacheStats mCacheStats;
 
     private ProgressView mProgressView;
     private View mFailed;
@@ -69,13 +75,15 @@ public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapp
     }
 
     private void init(Context context) {
-        mConaco = NMBApplication.getConaco(context);
+        mConaco = NMBApplication.getImageConaco(context);
+        mCacheStats = NMBApplication.getImageCacheStats(context);
 
         LayoutInflater.from(context).inflate(R.layout.widget_gallery_page, this);
 
         mProgressView = (ProgressView) findViewById(R.id.progress_view);
         mFailed = findViewById(R.id.failed);
         mPhotoView = (PhotoView) findViewById(R.id.image_view);
+        mPhotoView.setOnMatrixChangeListener(this);
     }
 
     private void addRetry() {
@@ -116,6 +124,10 @@ public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapp
             }
 
             maxScale = midScale * 3;
+            if (drawable instanceof RegionDrawable) {
+                // Large images could be zoomed to their full resolution
+                maxScale = Math.max(maxScale, 2.0f / Math.min(scaleX, scaleY));
+            }
             mPhotoView.setScaleLevels(1.0f, midScale, maxScale);
         }
     }
@@ -132,6 +144,8 @@ public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapp
         Drawable drawable = mPhotoView.getDrawable();
         if (drawable instanceof ImageDrawable) {
             ((ImageDrawable) drawable).recycle();
+        } else if (drawable instanceof RegionDrawable) {
+            ((RegionDrawable) drawable).recycle();
         }
         mPhotoView.setImageDrawable(null);
 
@@ -156,6 +170,19 @@ public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapp
     private void setImageDrawable(Drawable drawable) {
         mPhotoView.setImageDrawable(drawable);
         updateMaximumScale();
+
+        RectF displayRect = mPhotoView.getDisplayRect();
+        if (displayRect != null) {
+            onMatrixChanged(displayRect);
+        }
+    }
+
+    @Override
+    public void onMatrixChanged(RectF rect) {
+        Drawable drawable = mPhotoView.getDrawable();
+        if (drawable instanceof RegionDrawable && drawable.getIntrinsicWidth() > 0) {
+            ((RegionDrawable) drawable).setScale(rect.width() / drawable.getIntrinsicWidth());
+        }
     }
 
     @Override
@@ -228,6 +255,8 @@ public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapp
 
     @Override
     public boolean onGetObject(@NonNull ValueHolder<ImageWrapper> holder, Conaco.Source source) {
+        mCacheStats.record(source);
+
         // Release
         mKey = null;
         mUrl = null;
@@ -239,8 +268,13 @@ public final class GalleryPage extends FrameLayout implements Unikery<ImageWrapp
 
         mHolder = holder;
         ImageWrapper imageWrapper = holder.getValue();
-        Drawable drawable = new ImageDrawable(imageWrapper);
-        imageWrapper.start();
+        Drawable drawable;
+        if (imageWrapper.isRegionDecodable()) {
+            drawable = new RegionDrawable(imageWrapper);
+        } else {
+            drawable = new ImageDrawable(imageWrapper);
+            imageWrapper.start();
+        }
 
         setImageDrawable(drawable);
 
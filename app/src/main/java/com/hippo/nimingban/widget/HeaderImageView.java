@@ -88,7 +88,7 @@ public final class HeaderImageView extends FixedAspectImageView
     }
 
     private void init(Context context) {
-        mConaco = NMBApplication.getConaco(context);
+        mConaco = NMBApplication.getSimpleImageConaco(context);
         setScaleType(ScaleType.CENTER_CROP);
         setSoundEffectsEnabled(false);
         setOnClickListener(this);
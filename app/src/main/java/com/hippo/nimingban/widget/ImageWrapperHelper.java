@@ -16,6 +16,9 @@
 
 package com.hippo.nimingban.widget;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
@@ -25,15 +28,138 @@ import com.hippo.drawable.ImageWrapper;
 import com.hippo.image.Image;
 import com.hippo.yorozuya.io.InputStreamPipe;
 
+import java.io.IOException;
+
+/**
+ * Decodes images for conaco. With a target size, still images larger than it
+ * are subsampled to fit, so its memory cache holds images of the target size class.
+ * If region decode is enabled, very large JPEG and PNG images are not decoded at once,
+ * they are wrapped with a {@link BitmapRegionDecoder}. Only views which show them
+ * with {@link com.hippo.drawable.RegionDrawable} should enable it.
+ */
 public class ImageWrapperHelper implements ValueHelper<ImageWrapper> {
 
     private static final String TAG = ImageWrapperHelper.class.getSimpleName();
 
+    // Still images larger than it are region decoded
+    private static final int REGION_DECODE_MIN_PIXELS = 2048 * 2048;
+    private static final int REGION_DECODE_MIN_SIDE = 4096;
+
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+    private final boolean mRegionDecode;
+
+    /**
+     * Decodes images in full size.
+     */
+    public ImageWrapperHelper() {
+        this(0, 0, false);
+    }
+
+    /**
+     * Decodes images in full size, very large ones are region decoded
+     * if {@code regionDecode} is true.
+     */
+    public ImageWrapperHelper(boolean regionDecode) {
+        this(0, 0, regionDecode);
+    }
+
+    /**
+     * Decodes still images to fit the target size.
+     * Animated images are always in full size.
+     */
+    public ImageWrapperHelper(int targetWidth, int targetHeight) {
+        this(targetWidth, targetHeight, false);
+    }
+
+    private ImageWrapperHelper(int targetWidth, int targetHeight, boolean regionDecode) {
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+        mRegionDecode = regionDecode;
+    }
+
+    /**
+     * Returns the largest sample size which keeps the image no smaller
+     * than the target when it fits in the target.
+     */
+    private int getSampleSize(int width, int height) {
+        if (mTargetWidth <= 0 || mTargetHeight <= 0 || width <= 0 || height <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.max(width / mTargetWidth, height / mTargetHeight));
+    }
+
+    @NonNull
+    private static BitmapFactory.Options decodeBounds(@NonNull InputStreamPipe isPipe) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try {
+            BitmapFactory.decodeStream(isPipe.open(), null, options);
+        } finally {
+            isPipe.close();
+        }
+        return options;
+    }
+
+    private static boolean shouldDecodeRegion(BitmapFactory.Options bounds) {
+        if (!"image/jpeg".equals(bounds.outMimeType) && !"image/png".equals(bounds.outMimeType)) {
+            return false;
+        }
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        return (long) width * height > REGION_DECODE_MIN_PIXELS ||
+                Math.max(width, height) > REGION_DECODE_MIN_SIDE;
+    }
+
+    @Nullable
+    private static BitmapRegionDecoder newRegionDecoder(@NonNull InputStreamPipe isPipe) throws IOException {
+        try {
+            return BitmapRegionDecoder.newInstance(isPipe.open(), false);
+        } finally {
+            isPipe.close();
+        }
+    }
+
+    @Nullable
+    private Bitmap decodeSampled(@NonNull InputStreamPipe isPipe,
+            @NonNull BitmapFactory.Options options) throws IOException {
+        int sampleSize = getSampleSize(options.outWidth, options.outHeight);
+        // Keep animated gif
+        if (sampleSize <= 1 || "image/gif".equals(options.outMimeType)) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        try {
+            return BitmapFactory.decodeStream(isPipe.open(), null, options);
+        } catch (OutOfMemoryError e) {
+            return null;
+        } finally {
+            isPipe.close();
+        }
+    }
+
     @Nullable
     @Override
     public ImageWrapper decode(@NonNull InputStreamPipe isPipe) {
         try {
             isPipe.obtain();
+
+            BitmapFactory.Options bounds = decodeBounds(isPipe);
+            if (mTargetWidth > 0 && mTargetHeight > 0) {
+                Bitmap bitmap = decodeSampled(isPipe, bounds);
+                if (bitmap != null) {
+                    return new ImageWrapper(bitmap);
+                }
+            } else if (mRegionDecode && shouldDecodeRegion(bounds)) {
+                BitmapRegionDecoder regionDecoder = newRegionDecoder(isPipe);
+                if (regionDecoder != null) {
+                    return new ImageWrapper(regionDecoder);
+                }
+            }
+
             Image image = Image.decode(isPipe.open(), false);
             if (image != null) {
                 return new ImageWrapper(image);
@@ -51,6 +177,7 @@ public class ImageWrapperHelper implements ValueHelper<ImageWrapper> {
 
     @Override
     public int sizeOf(@NonNull String key, @NonNull ImageWrapper value) {
+        // Region decodable image is never in memory cache, see isLarge()
         return value.getWidth() * value.getHeight() * 4;
     }
 
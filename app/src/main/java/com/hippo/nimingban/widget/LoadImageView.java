@@ -35,6 +35,7 @@ import com.hippo.drawable.ImageDrawable;
 import com.hippo.drawable.ImageWrapper;
 import com.hippo.nimingban.NMBApplication;
 import com.hippo.nimingban.R;
+import com.hippo.nimingban.util.ImageCacheStats;
 import com.hippo.widget.FixedAspectImageView;
 
 public class LoadImageView extends FixedAspectImageView implements Unikery<ImageWrapper>,
@@ -43,6 +44,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
     private int mTaskId = Unikery.INVALID_ID;
 
     private Conaco<ImageWrapper> mConaco;
+    private ImageCacheStats mCacheStats;
 
     private String mKey;
     private String mUrl;
@@ -94,6 +96,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
         a.recycle();
 
         mConaco = NMBApplication.getConaco(context);
+        mCacheStats = NMBApplication.getThumbCacheStats(context);
     }
 
     public void setRetryType(RetryType retryType) {
@@ -261,6 +264,8 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
 
     @Override
     public boolean onGetObject(@NonNull ValueHolder<ImageWrapper> holder, Conaco.Source source) {
+        mCacheStats.record(source);
+
         // Release
         mKey = null;
         mUrl = null;
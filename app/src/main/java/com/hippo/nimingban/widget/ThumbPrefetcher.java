@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.widget;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.View;
+
+import com.hippo.conaco.Conaco;
+import com.hippo.conaco.ConacoTask;
+import com.hippo.conaco.Unikery;
+import com.hippo.conaco.ValueHolder;
+import com.hippo.drawable.ImageWrapper;
+import com.hippo.nimingban.NMBApplication;
+import com.hippo.nimingban.client.data.Reply;
+import com.hippo.nimingban.util.Settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads thumbnails of the rows after the visible ones in scroll direction,
+ * so they are in cache when the rows are bound.
+ * <p>
+ * It follows the image loading strategy, stops while scrolling too fast
+ * to see anything, and cancels the loads which are out of range.
+ */
+public class ThumbPrefetcher extends RecyclerView.OnScrollListener {
+
+    private static final int LOOK_AHEAD = 6;
+    private static final int MAX_TASKS = 4;
+    // Pixels per millisecond, rows pass faster than thumbnails could be loaded
+    private static final float MAX_VELOCITY = 8.0f;
+
+    private final Context mContext;
+    private final Conaco<ImageWrapper> mConaco;
+    private final ContentLayout.ContentHelper<? extends Reply> mHelper;
+
+    private final Map<String, PrefetchTask> mTasks = new HashMap<>();
+
+    private boolean mForward = true;
+    private long mLastScrollTime;
+    private float mVelocity;
+
+    public ThumbPrefetcher(Context context, ContentLayout.ContentHelper<? extends Reply> helper) {
+        mContext = context.getApplicationContext();
+        mConaco = NMBApplication.getConaco(context);
+        mHelper = helper;
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            mVelocity = 0.0f;
+            prefetch(recyclerView);
+        }
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) {
+            return;
+        }
+        mForward = dy > 0;
+
+        long now = SystemClock.uptimeMillis();
+        long interval = now - mLastScrollTime;
+        mLastScrollTime = now;
+        if (interval > 0 && interval < 1000) {
+            mVelocity = Math.abs(dy) / (float) interval;
+        } else {
+            mVelocity = 0.0f;
+        }
+
+        if (mVelocity <= MAX_VELOCITY) {
+            prefetch(recyclerView);
+        }
+    }
+
+    private void prefetch(RecyclerView recyclerView) {
+        int size = mHelper.size();
+        int childCount = recyclerView.getChildCount();
+        if (size == 0 || childCount == 0) {
+            cancel();
+            return;
+        }
+
+        // Find the visible range
+        int first = Integer.MAX_VALUE;
+        int last = Integer.MIN_VALUE;
+        for (int i = 0; i < childCount; i++) {
+            View child = recyclerView.getChildAt(i);
+            int position = recyclerView.getChildAdapterPosition(child);
+            if (position != RecyclerView.NO_POSITION) {
+                first = Math.min(first, position);
+                last = Math.max(last, position);
+            }
+        }
+        if (first > last) {
+            return;
+        }
+
+        int start;
+        int end;
+        if (mForward) {
+            start = last + 1;
+            end = Math.min(size, start + LOOK_AHEAD);
+        } else {
+            end = Math.min(first, size);
+            start = Math.max(0, end - LOOK_AHEAD);
+        }
+
+        boolean useNetwork;
+        int ils = Settings.getImageLoadingStrategy();
+        if (ils == Settings.IMAGE_LOADING_STRATEGY_ALL ||
+                (ils == Settings.IMAGE_LOADING_STRATEGY_WIFI && NMBApplication.isConnectedWifi(mContext))) {
+            useNetwork = true;
+        } else if (Settings.getImageLoadingStrategy2()) {
+            // Only warm memory cache from disk
+            useNetwork = false;
+        } else {
+            cancel();
+            return;
+        }
+
+        // Keys in range, the nearest row first
+        List<String> keys = new ArrayList<>();
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < end - start; i++) {
+            int position = mForward ? start + i : end - 1 - i;
+            Reply reply = mHelper.getDataAt(position);
+            String key = reply.getNMBThumbKey();
+            String url = reply.getNMBThumbUrl();
+            if (!TextUtils.isEmpty(key) && !TextUtils.isEmpty(url)) {
+                keys.add(key);
+                urls.add(url);
+            }
+        }
+
+        // Cancel the tasks out of range
+        for (Iterator<Map.Entry<String, PrefetchTask>> iterator = mTasks.entrySet().iterator();
+                iterator.hasNext();) {
+            Map.Entry<String, PrefetchTask> entry = iterator.next();
+            if (!keys.contains(entry.getKey())) {
+                iterator.remove();
+                PrefetchTask task = entry.getValue();
+                if (!task.mDone) {
+                    mConaco.cancel(task);
+                }
+            }
+        }
+
+        int running = 0;
+        for (PrefetchTask task : mTasks.values()) {
+            if (!task.mDone) {
+                running++;
+            }
+        }
+
+        for (int i = 0, n = keys.size(); i < n && running < MAX_TASKS; i++) {
+            String key = keys.get(i);
+            if (mTasks.containsKey(key)) {
+                continue;
+            }
+            PrefetchTask task = new PrefetchTask();
+            mTasks.put(key, task);
+            running++;
+            mConaco.load(new ConacoTask.Builder<ImageWrapper>()
+                    .setUnikery(task)
+                    .setKey(key)
+                    .setUrl(urls.get(i))
+                    .setUseNetwork(useNetwork));
+        }
+    }
+
+    /**
+     * Cancels all prefetching.
+     */
+    public void cancel() {
+        for (PrefetchTask task : mTasks.values()) {
+            if (!task.mDone) {
+                mConaco.cancel(task);
+            }
+        }
+        mTasks.clear();
+    }
+
+    private class PrefetchTask implements Unikery<ImageWrapper> {
+
+        private int mTaskId = Unikery.INVALID_ID;
+        // Done tasks stay until out of range, not to load them again,
+        // failed ones are tried again when they come back in range
+        private boolean mDone;
+
+        @Override
+        public void setTaskId(int id) {
+            mTaskId = id;
+        }
+
+        @Override
+        public int getTaskId() {
+            return mTaskId;
+        }
+
+        @Override
+        public void onMiss(Conaco.Source source) {
+        }
+
+        @Override
+        public void onRequest() {
+        }
+
+        @Override
+        public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {
+        }
+
+        @Override
+        public boolean onGetObject(@NonNull ValueHolder<ImageWrapper> holder, Conaco.Source source) {
+            // It is in cache now, don't hold it
+            holder.obtain(this);
+            holder.release(this);
+            if (holder.isFree() && !holder.isInMemoryCache()) {
+                holder.getValue().recycle();
+            }
+            mDone = true;
+            return true;
+        }
+
+        @Override
+        public void onSetDrawable(Drawable drawable) {
+        }
+
+        @Override
+        public void onFailure() {
+            mDone = true;
+        }
+
+        @Override
+        public void onCancel() {
+            mDone = true;
+        }
+    }
+}
@@ -147,6 +147,31 @@ public final class Html {
         return converter.convert();
     }
 
+    /**
+     * Like {@link #fromHtml(String, ImageGetter, TagHandler)}, but html which only contains
+     * br, b, i, strong, span, font and a is converted by a single pass scanner
+     * instead of TagSoup. The result is the same. Other html falls back to TagSoup.
+     * The {@code XMLReader} passed to {@code tagHandler} is null for scanned html.
+     */
+    public static SpannableStringBuilder fromSimpleHtml(String source, ImageGetter imageGetter,
+            TagHandler tagHandler) {
+        boolean simple;
+        try {
+            simple = SimpleHtmlParser.parse(source, null);
+        } catch (SAXException e) {
+            // Should not happen without handler
+            simple = false;
+        }
+
+        if (simple) {
+            HtmlToSpannedConverter converter =
+                    new HtmlToSpannedConverter(source, imageGetter, tagHandler, null);
+            return converter.convertSimple();
+        } else {
+            return fromHtml(source, imageGetter, tagHandler);
+        }
+    }
+
     /**
      * Returns an HTML representation of the provided Spanned text. A best effort is
      * made to add HTML tags corresponding to spans. Also note that HTML metacharacters
@@ -490,6 +515,20 @@ class HtmlToSpannedConverter implements ContentHandler {
         return mSpannableStringBuilder;
     }
 
+    /**
+     * Convert with {@link SimpleHtmlParser}, the source must be supported by it.
+     * No paragraph style is generated for such source, so no need to fix them.
+     */
+    public SpannableStringBuilder convertSimple() {
+        try {
+            SimpleHtmlParser.parse(mSource, this);
+        } catch (SAXException e) {
+            // We are reading from a string. There should not be problems.
+            throw new RuntimeException(e);
+        }
+        return mSpannableStringBuilder;
+    }
+
     private void handleStartTag(String tag, Attributes attributes) {
         if (mTagHandler == null || !mTagHandler.handleTag(true, tag,
                 mSpannableStringBuilder, mReader, attributes)) {
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.text;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.Locale;
+
+/**
+ * A single pass scanner for html which only contains
+ * {@code br, b, i, strong, span, font} and {@code a}.
+ * It reports the same SAX events as TagSoup for such html.
+ * <p>
+ * Anything it isn't sure about, like other tags, comments, unknown entities,
+ * mismatched end tags and nested links, makes it give up, so the caller
+ * could fall back to TagSoup.
+ */
+final class SimpleHtmlParser {
+    private SimpleHtmlParser() {}
+
+    private static final String[] TAGS = {
+            "br", "b", "i", "strong", "span", "font", "a"
+    };
+
+    private static final int MAX_DEPTH = 16;
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(char c) {
+        return isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == ':' || c == '.';
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static String getTag(String source, int start, int end) {
+        int length = end - start;
+        for (String tag : TAGS) {
+            if (tag.length() == length && source.regionMatches(true, start, tag, 0, length)) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    private static int skipSpace(String source, int index) {
+        int n = source.length();
+        while (index < n && isSpace(source.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the char of the entity at {@code index}, which points to {@code '&'},
+     * or -1 if it is not supported. The end index is stored in {@code end[0]}.
+     */
+    private static int parseEntity(String source, int index, int[] end) {
+        int semicolon = source.indexOf(';', index + 1);
+        if (semicolon == -1 || semicolon - index > 10) {
+            return -1;
+        }
+        end[0] = semicolon + 1;
+
+        if (source.charAt(index + 1) == '#') {
+            int start = index + 2;
+            int radix = 10;
+            if (start < semicolon && (source.charAt(start) == 'x' || source.charAt(start) == 'X')) {
+                start++;
+                radix = 16;
+            }
+            if (start == semicolon) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = start; i < semicolon; i++) {
+                int digit = Character.digit(source.charAt(i), radix);
+                if (digit == -1) {
+                    return -1;
+                }
+                value = value * radix + digit;
+            }
+            // TagSoup maps 0x80 - 0x9F as windows-1252, leave it and others to TagSoup
+            if (value < 0x20 || (value >= 0x7F && value <= 0x9F) ||
+                    (value >= 0xD800 && value <= 0xDFFF) || value > 0xFFFF) {
+                return -1;
+            }
+            return value;
+        }
+
+        int length = semicolon - index - 1;
+        if (length == 2 && source.regionMatches(index + 1, "lt", 0, 2)) {
+            return '<';
+        } else if (length == 2 && source.regionMatches(index + 1, "gt", 0, 2)) {
+            return '>';
+        } else if (length == 3 && source.regionMatches(index + 1, "amp", 0, 3)) {
+            return '&';
+        } else if (length == 4 && source.regionMatches(index + 1, "quot", 0, 4)) {
+            return '"';
+        } else if (length == 4 && source.regionMatches(index + 1, "nbsp", 0, 4)) {
+            return '\u00A0';
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Scans the html and reports SAX events to the handler.
+     * Without handler, it only checks whether the html is supported.
+     * Nothing is reported if the html is not supported,
+     * so call it without handler first.
+     *
+     * @return false if the html is not supported
+     */
+    public static boolean parse(String source, ContentHandler handler) throws SAXException {
+        int n = source.length();
+        String[] stack = new String[MAX_DEPTH];
+        int depth = 0;
+        int[] entityEnd = new int[1];
+        AttributesImpl attributes = handler != null ? new AttributesImpl() : null;
+        char[] text = handler != null ? new char[n] : null;
+        int textLength = 0;
+
+        int i = 0;
+        while (i < n) {
+            char c = source.charAt(i);
+
+            if (c == '<') {
+                if (i + 1 >= n) {
+                    return false;
+                }
+
+                // Flush text
+                if (textLength > 0) {
+                    handler.characters(text, 0, textLength);
+                    textLength = 0;
+                }
+
+                char next = source.charAt(i + 1);
+                if (next == '/') {
+                    // End tag
+                    int nameStart = i + 2;
+                    int nameEnd = nameStart;
+                    while (nameEnd < n && isNameChar(source.charAt(nameEnd))) {
+                        nameEnd++;
+                    }
+                    String tag = getTag(source, nameStart, nameEnd);
+                    int close = skipSpace(source, nameEnd);
+                    if (tag == null || "br".equals(tag) || close >= n || source.charAt(close) != '>' ||
+                            depth == 0 || !tag.equals(stack[depth - 1])) {
+                        return false;
+                    }
+                    depth--;
+                    if (handler != null) {
+                        handler.endElement("", tag, tag);
+                    }
+                    i = close + 1;
+                } else if (isLetter(next)) {
+                    // Start tag
+                    int nameStart = i + 1;
+                    int nameEnd = nameStart;
+                    while (nameEnd < n && isNameChar(source.charAt(nameEnd))) {
+                        nameEnd++;
+                    }
+                    String tag = getTag(source, nameStart, nameEnd);
+                    if (tag == null) {
+                        return false;
+                    }
+                    if (attributes != null) {
+                        attributes.clear();
+                    }
+
+                    boolean selfClosing = false;
+                    int index = nameEnd;
+                    for (;;) {
+                        boolean spaced = index < n && isSpace(source.charAt(index));
+                        index = skipSpace(source, index);
+                        if (index >= n) {
+                            return false;
+                        }
+                        char ch = source.charAt(index);
+                        if (ch == '>') {
+                            index++;
+                            break;
+                        } else if (ch == '/') {
+                            if (index + 1 >= n || source.charAt(index + 1) != '>') {
+                                return false;
+                            }
+                            selfClosing = true;
+                            index += 2;
+                            break;
+                        } else if (!spaced || !isLetter(ch)) {
+                            return false;
+                        }
+
+                        // Attribute name
+                        int attrStart = index;
+                        while (index < n && isNameChar(source.charAt(index))) {
+                            index++;
+                        }
+                        int attrEnd = index;
+                        index = skipSpace(source, index);
+                        if (index >= n || source.charAt(index) != '=') {
+                            // TagSoup gives it a value
+                            return false;
+                        }
+                        index = skipSpace(source, index + 1);
+                        if (index >= n) {
+                            return false;
+                        }
+
+                        // Attribute value
+                        int valueStart;
+                        int valueEnd;
+                        char quote = source.charAt(index);
+                        if (quote == '"' || quote == '\'') {
+                            valueStart = index + 1;
+                            valueEnd = source.indexOf(quote, valueStart);
+                            if (valueEnd == -1) {
+                                return false;
+                            }
+                            index = valueEnd + 1;
+                        } else {
+                            valueStart = index;
+                            while (index < n) {
+                                char vc = source.charAt(index);
+                                if (isSpace(vc) || vc == '>') {
+                                    break;
+                                } else if (vc == '/' || vc == '"' || vc == '\'' || vc == '<' ||
+                                        vc == '=' || vc == '`') {
+                                    return false;
+                                }
+                                index++;
+                            }
+                            valueEnd = index;
+                        }
+                        for (int j = valueStart; j < valueEnd; j++) {
+                            char vc = source.charAt(j);
+                            // Leave entities and whitespace normalization to TagSoup
+                            if (vc == '&' || vc == '<' || (vc < 0x20 && vc != ' ')) {
+                                return false;
+                            }
+                        }
+
+                        if (attributes != null) {
+                            String name = source.substring(attrStart, attrEnd).toLowerCase(Locale.US);
+                            if (attributes.getIndex(name) != -1) {
+                                return false;
+                            }
+                            attributes.addAttribute("", name, name, "CDATA",
+                                    source.substring(valueStart, valueEnd));
+                        }
+                    }
+
+                    if ("br".equals(tag)) {
+                        if (handler != null) {
+                            handler.startElement("", tag, tag, attributes);
+                            handler.endElement("", tag, tag);
+                        }
+                    } else {
+                        if (selfClosing || depth == MAX_DEPTH) {
+                            return false;
+                        }
+                        if ("a".equals(tag)) {
+                            // TagSoup closes the outer link
+                            for (int j = 0; j < depth; j++) {
+                                if ("a".equals(stack[j])) {
+                                    return false;
+                                }
+                            }
+                        }
+                        stack[depth++] = tag;
+                        if (handler != null) {
+                            handler.startElement("", tag, tag, attributes);
+                        }
+                    }
+                    i = index;
+                } else {
+                    // Comment, doctype or a single '<'
+                    return false;
+                }
+            } else if (c == '&') {
+                int ch = parseEntity(source, i, entityEnd);
+                if (ch == -1) {
+                    return false;
+                }
+                if (text != null) {
+                    text[textLength++] = (char) ch;
+                }
+                i = entityEnd[0];
+            } else if (c == '\r') {
+                // TagSoup turns \r\n and \r to \n
+                if (text != null) {
+                    text[textLength++] = '\n';
+                }
+                i++;
+                if (i < n && source.charAt(i) == '\n') {
+                    i++;
+                }
+            } else if (c < 0x20 && c != '\n') {
+                return false;
+            } else {
+                if (text != null) {
+                    text[textLength++] = c;
+                }
+                i++;
+            }
+        }
+
+        if (textLength > 0) {
+            handler.characters(text, 0, textLength);
+        }
+
+        // Close the left tags like TagSoup
+        while (depth > 0) {
+            String tag = stack[--depth];
+            if (handler != null) {
+                handler.endElement("", tag, tag);
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.benchmark;
+
+import com.alibaba.fastjson.JSON;
+import com.hippo.nimingban.client.ac.data.ACPost;
+import com.hippo.nimingban.client.ac.data.ACReply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads AC api responses in src/jmh/resources/fixtures,
+ * the benchmarks in androidTest of app read them too.
+ * <ul>
+ * <li>thread.json: a thread page, a post with 19 replies</li>
+ * <li>forum.json: a forum page, 20 posts with 5 replies each</li>
+ * <li>error.json: an error message as json string</li>
+ * </ul>
+ * The pages are written in the shape of the api output,
+ * the recordFixtures task replaces them with recorded ones.
+ */
+final class Fixtures {
+    private Fixtures() {}
+
+    public static final String FORUM = "forum.json";
+    public static final String ERROR = "error.json";
+
+    public static byte[] read(String name) throws IOException {
+        InputStream is = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (is == null) {
+            throw new IOException("Can't find fixture " + name);
+        }
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
+            }
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    public static String readString(String name) throws IOException {
+        return new String(read(name), "utf-8");
+    }
+
+    /**
+     * Returns all posts and replies in the forum page.
+     */
+    public static List<ACReply> readItems() throws IOException {
+        List<ACPost> posts = JSON.parseArray(readString(FORUM), ACPost.class);
+        List<ACReply> items = new ArrayList<>();
+        for (ACPost post : posts) {
+            ACReply reply = new ACReply();
+            reply.now = post.now;
+            reply.content = post.content;
+            reply.sage = post.sage;
+            reply.title = post.title;
+            reply.name = post.name;
+            reply.email = post.email;
+            items.add(reply);
+            items.addAll(post.replys);
+        }
+        return items;
+    }
+}
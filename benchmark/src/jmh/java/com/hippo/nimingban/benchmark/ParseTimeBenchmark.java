@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.nimingban.benchmark;
+
+import com.hippo.nimingban.client.ac.data.ACPost;
+import com.hippo.nimingban.client.ac.data.ACReply;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ACPost#parseTime(String)} over the times of a forum page,
+ * on one thread and on four threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseTimeBenchmark {
+
+    private static final int ITEMS = 120;
+
+    private String[] mTimes;
+
+    @Setup
+    public void setup() throws IOException {
+        List<ACReply> items = Fixtures.readItems();
+        mTimes = new String[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            mTimes[i] = items.get(i % items.size()).now;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void parseTime(Blackhole blackhole) {
+        for (String time : mTimes) {
+            blackhole.consume(ACPost.parseTime(time));
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(ITEMS)
+    public void parseTimeConcurrent(Blackhole blackhole) {
+        for (String time : mTimes) {
+            blackhole.consume(ACPost.parseTime(time));
+        }
+    }
+}
@@ -28,7 +28,7 @@ public class NMBDaoGenerator {
     private static final String OUT_DIR = "../app/src/main/java-gen";
     private static final String DELETE_DIR = "../app/src/main/java-gen/com/hippo/nimingban/dao";
 
-    private static final int VERSION = 4;
+    private static final int VERSION = 6;
 
     public static void generate() throws Exception {
         Utilities.deleteContents(new File(DELETE_DIR));
@@ -41,6 +41,9 @@ public class NMBDaoGenerator {
         addDraft(schema);
         addACRecord(schema);
         addACCommonPost(schema);
+        addACThread(schema);
+        addACThreadPage(schema);
+        addDownload(schema);
         new DaoGenerator().generateAll(schema, OUT_DIR);
     }
 
@@ -94,4 +97,51 @@ public class NMBDaoGenerator {
         entity.addStringProperty("name");
         entity.addStringProperty("postid");
     }
+
+    /**
+     * Header of the thread snapshot
+     *
+     * @since 5
+     */
+    private static void addACThread(Schema schema) {
+        Entity entity = schema.addEntity("ACThreadRaw");
+        entity.setTableName("AC_THREAD");
+        entity.setClassNameDao("ACThreadDao");
+        entity.addIdProperty();
+        entity.addStringProperty("postid");
+        entity.addStringProperty("post");
+        entity.addLongProperty("time");
+    }
+
+    /**
+     * Replies in one page of the thread snapshot
+     *
+     * @since 5
+     */
+    private static void addACThreadPage(Schema schema) {
+        Entity entity = schema.addEntity("ACThreadPageRaw");
+        entity.setTableName("AC_THREAD_PAGE");
+        entity.setClassNameDao("ACThreadPageDao");
+        entity.addIdProperty();
+        entity.addStringProperty("postid");
+        entity.addIntProperty("page");
+        entity.addStringProperty("replies");
+        entity.addLongProperty("time");
+    }
+
+    /**
+     * Queue of DownloadService
+     *
+     * @since 6
+     */
+    private static void addDownload(Schema schema) {
+        Entity entity = schema.addEntity("DownloadRaw");
+        entity.setTableName("DOWNLOAD");
+        entity.setClassNameDao("DownloadDao");
+        entity.addIdProperty();
+        entity.addStringProperty("url");
+        entity.addStringProperty("dir");
+        entity.addStringProperty("filename");
+        entity.addLongProperty("time");
+    }
 }